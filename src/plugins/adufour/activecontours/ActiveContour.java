@@ -7,10 +7,16 @@ import icy.system.SystemUtil;
 import icy.system.thread.Processor;
 
 import java.awt.Color;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import javax.media.j3d.BoundingBox;
 import javax.media.j3d.BoundingSphere;
 import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import org.w3c.dom.Node;
 
 import plugins.adufour.activecontours.ActiveContours.ROIType;
 import plugins.adufour.vars.lang.Var;
@@ -24,7 +30,13 @@ import plugins.nchenouard.spot.Detection;
  */
 public abstract class ActiveContour extends Detection implements Iterable<Point3d>
 {
-    protected static final Processor processor = new Processor(SystemUtil.getNumberOfCPUs() * 2);
+    /**
+     * Thread pool shared by all contours for their internal (nested) parallel tasks. It is kept
+     * separate from the pools running the contours themselves (so that nested tasks never wait for
+     * a thread of their own pool), and sized to the number of processors since it is shared by all
+     * concurrent runs
+     */
+    protected static final Processor processor = new Processor(SystemUtil.getNumberOfCPUs());
     
     protected String name;
     
@@ -36,6 +48,17 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
     
     protected final BoundingBox boundingBox = new BoundingBox();
     
+    /**
+     * The major axis of the contour (see {@link #getMajorAxis()})
+     */
+    private final Vector3d majorAxis = new Vector3d();
+    
+    /**
+     * Label position and bounds of the contour as of the last published snapshot (x, y, minX, minY,
+     * maxX, maxY), or <code>null</code> before the first one (see {@link #publishSnapshot()})
+     */
+    private volatile double[] displayBounds;
+    
     protected Var<Double> divisionSensitivity;
     
     /**
@@ -46,21 +69,33 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
         super(0, 0, 0, 0);
     }
     
-    @SuppressWarnings("unchecked")
     protected ActiveContour(Var<Double> sampling, SlidingWindow convergenceWindow)
     {
         super(0, 0, 0, 0);
         
+        setEvolutionParameters(sampling, convergenceWindow);
+        processor.setThreadName(getClass().getSimpleName());
+        
+        // give a random color
+        setColor(Color.getHSBColor((float) Math.random(), 0.8f, 0.9f));
+    }
+    
+    /**
+     * Sets the evolution parameters of this contour (contours created for loading purposes have
+     * none)
+     * 
+     * @param sampling
+     * @param convergenceWindow
+     */
+    @SuppressWarnings("unchecked")
+    void setEvolutionParameters(Var<Double> sampling, SlidingWindow convergenceWindow)
+    {
         // follow and shortcut references to avoid memory leaks
         while (sampling.getReference() != null)
             sampling = (Var<Double>) sampling.getReference();
         this.sampling.setReference(sampling);
         
         this.convergence = convergenceWindow;
-        processor.setThreadName(getClass().getSimpleName());
-        
-        // give a random color
-        setColor(Color.getHSBColor((float) Math.random(), 0.8f, 0.9f));
     }
     
     public String getName()
@@ -106,9 +141,32 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      * 
      * @param weight
      */
-    abstract void computeAxisForces(double weight);
+    void computeAxisForces(double weight)
+    {
+        Vector3d axis = getMajorAxis();
+        axis.normalize();
+        computeAxisForces(weight, axis, 0, getVertexSlotCount());
+    }
+    
+    /**
+     * Range-based version of {@link #computeAxisForces(double)}, using a pre-computed axis
+     * 
+     * @param weight
+     * @param axis
+     *            the (normalized) principal axis of the contour
+     * @param fromIndex
+     *            the first vertex slot to process (inclusive)
+     * @param toIndex
+     *            the last vertex slot to process (exclusive)
+     */
+    abstract void computeAxisForces(double weight, Vector3d axis, int fromIndex, int toIndex);
+    
+    void computeBalloonForces(double weight)
+    {
+        computeBalloonForces(weight, 0, getVertexSlotCount());
+    }
     
-    abstract void computeBalloonForces(double weight);
+    abstract void computeBalloonForces(double weight, int fromIndex, int toIndex);
     
     /**
      * Update edge term of the contour evolution according to the image gradient
@@ -117,7 +175,12 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      * @param edgeData
      *            a sequence containing the edge information (one channel per edge direction)
      */
-    abstract void computeEdgeForces(Sequence edgeData, int channel, double weight);
+    void computeEdgeForces(Sequence edgeData, int channel, double weight)
+    {
+        computeEdgeForces(edgeData, channel, weight, 0, getVertexSlotCount());
+    }
+    
+    abstract void computeEdgeForces(Sequence edgeData, int channel, double weight, int fromIndex, int toIndex);
     
     /**
      * Update region term of the contour evolution according to the Chan-Vese-Mumford-Shah
@@ -134,9 +197,19 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      * @param sensitivity
      *            set 1 for default, greater than 1 for high SNRs and vice-versa
      */
-    abstract void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout);
+    void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout)
+    {
+        computeRegionForces(imageData, channel, weight, sensitivity, cin, cout, 0, getVertexSlotCount());
+    }
+    
+    abstract void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout, int fromIndex, int toIndex);
     
-    abstract void computeInternalForces(double weight);
+    void computeInternalForces(double weight)
+    {
+        computeInternalForces(weight, 0, getVertexSlotCount());
+    }
+    
+    abstract void computeInternalForces(double weight, int fromIndex, int toIndex);
     
     abstract void computeVolumeConstraint(double targetVolume);
     
@@ -148,7 +221,12 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      *            the contour that is being penetrated
      * @return the number of actual point-mesh intersection tests
      */
-    abstract int computeFeedbackForces(ActiveContour target);
+    int computeFeedbackForces(ActiveContour target)
+    {
+        return computeFeedbackForces(target, 0, getVertexSlotCount());
+    }
+    
+    abstract int computeFeedbackForces(ActiveContour target, int fromIndex, int toIndex);
     
     /**
      * Compute the average image intensity inside the contour on the specified image data, and fill
@@ -181,6 +259,29 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      */
     public abstract double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask);
     
+    /**
+     * Computes the average image intensity in the local neighborhood of the contour, using
+     * pre-computed integral images (see {@link MaskedIntegralImage}). This is equivalent to (but
+     * much faster than) {@link #computeBackgroundIntensity(Sequence, BooleanMask3D)}, since the
+     * cost of the measure no longer depends on the size of the contour
+     * 
+     * @param imageData
+     *            the data on which the integral images were computed
+     * @param background
+     *            the integral images of the intensity and pixel count outside all contours
+     * @return the average intensity outside the contour
+     */
+    public abstract double computeBackgroundIntensity(Sequence imageData, MaskedIntegralImage background);
+    
+    /**
+     * @param imageData
+     *            the image onto which the contour is rasterised
+     * @return the region of the image (in pixels) that may be covered when rasterising this
+     *         contour (see {@link #computeAverageIntensity(Sequence, BooleanMask3D)}), as {minX,
+     *         maxX, minY, maxY, minZ, maxZ} (exclusive upper bounds, not clipped to the image)
+     */
+    abstract int[] getRasterBounds(Sequence imageData);
+    
     /**
      * Tests whether the given point is inside the contour, and if so returns the penetration depth
      * of this point. <br>
@@ -208,7 +309,148 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      */
     public abstract double getDimension(int order);
     
-    abstract void move(ROI field, double timeStep);
+    /**
+     * Range-based methods (e.g. {@link #computeEdgeForces(Sequence, int, double, int, int)})
+     * address the contour vertices by their internal index, such that large contours can be split
+     * into independent vertex ranges and processed concurrently
+     * 
+     * @return the number of vertex slots that can be addressed by the range-based methods. This
+     *         may be larger than <code>getDimension(0)</code> if the underlying structure contains
+     *         empty slots
+     */
+    abstract int getVertexSlotCount();
+    
+    /**
+     * @return The major axis of this contour, i.e. an unnormalized vector along the principal
+     *         direction of the contour points (derived from their second-order moments), with a
+     *         length of four standard deviations along that direction (i.e. roughly the object
+     *         length). This axis is updated along with the other meta-data (see
+     *         {@link #updateMetaData()})
+     */
+    public Vector3d getMajorAxis()
+    {
+        return new Vector3d(majorAxis);
+    }
+    
+    /**
+     * Updates the major axis of this contour from the second-order central moments of its points
+     * 
+     * @param moments
+     *            the sums of (xx, xy, xz, yy, yz, zz) over all points (relative to the center)
+     * @param nbPts
+     *            the number of points
+     */
+    protected void updateMajorAxis(double[] moments, double nbPts)
+    {
+        if (nbPts == 0)
+        {
+            majorAxis.set(0, 0, 0);
+            return;
+        }
+        
+        double xx = moments[0] / nbPts, xy = moments[1] / nbPts, xz = moments[2] / nbPts;
+        double yy = moments[3] / nbPts, yz = moments[4] / nbPts, zz = moments[5] / nbPts;
+        
+        // largest eigen value of the (symmetric) covariance matrix, in closed form
+        double q = (xx + yy + zz) / 3;
+        double p1 = xy * xy + xz * xz + yz * yz;
+        double p2 = (xx - q) * (xx - q) + (yy - q) * (yy - q) + (zz - q) * (zz - q) + 2 * p1;
+        double p = Math.sqrt(p2 / 6);
+        
+        double lambda = q;
+        
+        if (p > 0)
+        {
+            // r = det((A - qI) / p) / 2
+            double bxx = (xx - q) / p, byy = (yy - q) / p, bzz = (zz - q) / p;
+            double bxy = xy / p, bxz = xz / p, byz = yz / p;
+            double r = (bxx * (byy * bzz - byz * byz) - bxy * (bxy * bzz - byz * bxz) + bxz * (bxy * byz - byy * bxz)) / 2;
+            double phi = Math.acos(Math.max(-1, Math.min(1, r))) / 3;
+            lambda = q + 2 * p * Math.cos(phi);
+        }
+        
+        // the eigen vector is orthogonal to the rows of (A - lambda.I)
+        Vector3d r0 = new Vector3d(xx - lambda, xy, xz);
+        Vector3d r1 = new Vector3d(xy, yy - lambda, yz);
+        Vector3d r2 = new Vector3d(xz, yz, zz - lambda);
+        
+        Vector3d candidate = new Vector3d();
+        double bestLengthSq = 0;
+        
+        candidate.cross(r0, r1);
+        if (candidate.lengthSquared() > bestLengthSq)
+        {
+            bestLengthSq = candidate.lengthSquared();
+            majorAxis.set(candidate);
+        }
+        candidate.cross(r0, r2);
+        if (candidate.lengthSquared() > bestLengthSq)
+        {
+            bestLengthSq = candidate.lengthSquared();
+            majorAxis.set(candidate);
+        }
+        candidate.cross(r1, r2);
+        if (candidate.lengthSquared() > bestLengthSq)
+        {
+            bestLengthSq = candidate.lengthSquared();
+            majorAxis.set(candidate);
+        }
+        
+        if (bestLengthSq < 1e-24)
+        {
+            // degenerate case (e.g. a circle): any direction orthogonal to the rows will do
+            Vector3d row = r0;
+            if (r1.lengthSquared() > row.lengthSquared()) row = r1;
+            if (r2.lengthSquared() > row.lengthSquared()) row = r2;
+            
+            if (row.lengthSquared() == 0)
+            {
+                majorAxis.set(1, 0, 0);
+            }
+            else
+            {
+                Vector3d ref = Math.abs(row.x) <= Math.abs(row.y) && Math.abs(row.x) <= Math.abs(row.z) ? new Vector3d(1, 0, 0) : Math.abs(row.y) <= Math.abs(row.z) ? new Vector3d(0, 1, 0) : new Vector3d(0, 0, 1);
+                majorAxis.cross(row, ref);
+            }
+        }
+        
+        majorAxis.normalize();
+        majorAxis.scale(4 * Math.sqrt(Math.max(0, lambda)));
+    }
+    
+    /**
+     * Displaces the contour according to the forces computed so far, and updates its meta-data
+     * 
+     * @param field
+     *            the area where model forces are allowed to apply
+     * @param timeStep
+     *            the evolution time step
+     */
+    void move(EvolutionField field, double timeStep)
+    {
+        move(field, timeStep, 0, getVertexSlotCount());
+        commitMove();
+    }
+    
+    /**
+     * Range-based version of {@link #move(EvolutionField, double)}. This method only displaces the vertices in
+     * the specified range, and {@link #commitMove()} must be called once all ranges have moved
+     * 
+     * @param field
+     *            the area where model forces are allowed to apply
+     * @param timeStep
+     *            the evolution time step
+     * @param fromIndex
+     *            the first vertex slot to process (inclusive)
+     * @param toIndex
+     *            the last vertex slot to process (exclusive)
+     */
+    abstract void move(EvolutionField field, double timeStep, int fromIndex, int toIndex);
+    
+    /**
+     * Updates the contour meta-data and convergence criterion once all its vertices have moved
+     */
+    abstract void commitMove();
     
     /**
      * Re-samples the Contour according to an 'average distance between points' criterion. This
@@ -248,7 +490,50 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      * @param output
      * @param value
      */
-    public abstract void toSequence(Sequence output, double value);
+    public void toSequence(Sequence output, double value)
+    {
+        LabelRenderer.render(this, output, value);
+    }
+    
+    /**
+     * Publishes a copy of the current geometry for display. Contours are painted as of their last
+     * published snapshot (and not at all before the first one), such that the display never reads
+     * a contour while it is being deformed. This method must therefore be called while the contour
+     * is not being modified (e.g. between two iterations of the evolution). Overriding methods
+     * must publish their geometry before calling this method
+     */
+    void publishSnapshot()
+    {
+        Point3d min = new Point3d(), max = new Point3d();
+        boundingBox.getLower(min);
+        boundingBox.getUpper(max);
+        
+        displayBounds = new double[] { getX(), getY(), min.x, min.y, max.x, max.y };
+    }
+    
+    /**
+     * @return the label position and bounds of the contour as of the last published snapshot (x,
+     *         y, minX, minY, maxX, maxY), or <code>null</code> if no snapshot was published yet.
+     *         Unlike {@link #getX()} or {@link #boundingBox}, this can be read while the contour
+     *         is being deformed (e.g. by the overlay)
+     */
+    double[] getDisplayBounds()
+    {
+        return displayBounds;
+    }
+    
+    /**
+     * Adds the section of this contour with the specified slice to the specified renderer, as a set
+     * of closed loops in pixel coordinates
+     * 
+     * @param renderer
+     * @param z
+     *            the slice (in pixels)
+     * @param imageData
+     *            the image onto which the contour is rasterised (used to convert the contour into
+     *            pixel units)
+     */
+    abstract void addSection(LabelRenderer renderer, int z, Sequence imageData);
     
     /**
      * Updates the contour's meta-data (i.e. data that can be computed directly from the actual
@@ -298,16 +583,28 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
         
         boundingSphere.setCenter(center);
         
-        // radius calculation
+        // radius and second-order moments calculation
+        double[] moments = new double[6];
+        
         for (Point3d p : this)
         {
             double d = p.distance(center);
             
             if (d > radius) radius = d;
+            
+            double dx = p.x - center.x, dy = p.y - center.y, dz = p.z - center.z;
+            moments[0] += dx * dx;
+            moments[1] += dx * dy;
+            moments[2] += dx * dz;
+            moments[3] += dy * dy;
+            moments[4] += dy * dz;
+            moments[5] += dz * dz;
         }
         
         boundingSphere.setRadius(radius);
         
+        updateMajorAxis(moments, nbPts);
+        
         boundingBox.setLower(minX, minY, minZ);
         boundingBox.setUpper(maxX, maxY, maxZ);
         
@@ -329,6 +626,22 @@ public abstract class ActiveContour extends Detection implements Iterable<Point3
      */
     public abstract boolean hasConverged(SlidingWindow.Operation operation, double epsilon);
     
+    /**
+     * Writes the geometry of this contour in binary form (see {@link Checkpoint})
+     * 
+     * @param out
+     * @throws IOException
+     */
+    abstract void writeGeometry(DataOutput out) throws IOException;
+    
+    /**
+     * Reads the geometry of this contour, as written by {@link #writeGeometry(DataOutput)}
+     * 
+     * @param in
+     * @throws IOException
+     */
+    abstract void readGeometry(DataInput in) throws IOException;
+    
     public void setDivisionSensitivity(Var<Double> divisionSensitivity)
     {
         this.divisionSensitivity = divisionSensitivity;
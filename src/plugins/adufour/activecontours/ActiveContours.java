@@ -1,26 +1,37 @@
 package plugins.adufour.activecontours;
 
+import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Point3d;
 import javax.vecmath.Tuple3d;
+import javax.vecmath.Vector3d;
 
 import icy.gui.viewer.Viewer;
 import icy.image.IcyBufferedImage;
 import icy.main.Icy;
-import icy.math.ArrayMath;
 import icy.painter.Overlay;
 import icy.painter.Overlay.OverlayPriority;
 import icy.roi.BooleanMask2D;
@@ -43,6 +54,8 @@ import icy.type.rectangle.Rectangle3D;
 import icy.util.OMEUtil;
 import icy.util.ShapeUtil.BooleanOperator;
 import icy.util.StringUtil;
+import plugins.adufour.activecontours.ContourPartitioner.Slice;
+import plugins.adufour.activecontours.ReSampler.TopologyChange;
 import plugins.adufour.activecontours.SlidingWindow.Operation;
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
@@ -56,6 +69,7 @@ import plugins.adufour.ezplug.EzVarBoolean;
 import plugins.adufour.ezplug.EzVarDimensionPicker;
 import plugins.adufour.ezplug.EzVarDouble;
 import plugins.adufour.ezplug.EzVarEnum;
+import plugins.adufour.ezplug.EzVarFile;
 import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarListener;
 import plugins.adufour.ezplug.EzVarSequence;
@@ -65,7 +79,6 @@ import plugins.adufour.filtering.GaussianFilter;
 import plugins.adufour.filtering.Kernels1D;
 import plugins.adufour.hierarchicalkmeans.HKMeans;
 import plugins.adufour.vars.lang.Var;
-import plugins.adufour.vars.lang.VarBoolean;
 import plugins.adufour.vars.lang.VarROIArray;
 import plugins.adufour.vars.lang.VarSequence;
 import plugins.adufour.vars.util.VarException;
@@ -76,8 +89,6 @@ import plugins.kernel.canvas.VtkCanvas;
 import plugins.kernel.roi.descriptor.measure.ROIMassCenterDescriptorsPlugin;
 import plugins.kernel.roi.roi2d.ROI2DArea;
 import plugins.kernel.roi.roi2d.ROI2DPolygon;
-import plugins.kernel.roi.roi2d.ROI2DRectangle;
-import plugins.kernel.roi.roi3d.ROI3DStack;
 import plugins.nchenouard.spot.Detection;
 
 public class ActiveContours extends EzPlug implements EzStoppable, Block
@@ -116,6 +127,24 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     public final EzVarDouble convergence_criterion = new EzVarDouble("Convergence criterion", 0.001, 0, 1, 0.0001);
     public final EzVarInteger convergence_nbIter = new EzVarInteger("Max. iterations", 100000, 100, 100000, 1000);
     
+    public final EzVarBoolean deterministic = new EzVarBoolean("Reproducible results", false);
+    
+    /**
+     * Maximum number of display updates per second during the evolution (the contours are
+     * displayed as of their last published snapshot, see {@link ActiveContour#publishSnapshot()})
+     */
+    public final EzVarInteger display_refreshRate = new EzVarInteger("Display refresh rate (Hz)", 20, 1, 100, 1);
+    
+    /**
+     * Seed of the colour generator used in reproducible mode
+     */
+    private static final long COLOR_SEED = 0L;
+    
+    /**
+     * Colour generator (only used in reproducible mode, see {@link #deterministic})
+     */
+    private Random colorGenerator = new Random(COLOR_SEED);
+    
     public enum ExportROI
     {
         NO, ON_INPUT, ON_NEW_IMAGE, AS_LABELS
@@ -137,13 +166,103 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     public final EzVarEnum<ROIType> output_roiType = new EzVarEnum<ROIType>("Type of ROI", ROIType.values(), ROIType.AREA);
     private VarSequence output_labels = new VarSequence("Labels", null);
     
+    /**
+     * If set (and the results are gathered in memory), the ROI are only created once the run has
+     * completed (in parallel), instead of after each frame
+     */
+    public final EzVarBoolean output_deferROI = new EzVarBoolean("Defer ROI creation", false);
+    
+    /**
+     * <code>true</code> if the ROI of the current run are created at the end of the run (see
+     * {@link #output_deferROI})
+     */
+    private boolean deferROI;
+    
+    /**
+     * The contours whose ROI will be created at the end of the run (see {@link #output_deferROI})
+     */
+    private final ArrayList<ActiveContour> deferredContours = new ArrayList<ActiveContour>();
+    
+    /**
+     * The names of the ROI of {@link #deferredContours}
+     */
+    private final ArrayList<String> deferredNames = new ArrayList<String>();
+    
+    /**
+     * If set, the labels of each frame are written to this file as soon as the frame is complete,
+     * instead of being kept in memory (see {@link LabelStack})
+     */
+    public final EzVarFile output_labelFile = new EzVarFile("Label file", null);
+    
+    /**
+     * If the labels are written to a file, they are displayed (in interactive mode) through a lazy
+     * view over that file, which only holds the displayed frame in memory. The view is only meant
+     * for display: the labels output remains empty, since other frames would read as zeros until
+     * displayed
+     */
+    public final EzVarBoolean output_labelView = new EzVarBoolean("Lazy label view", true);
+    
+    /**
+     * The file where the labels are written during the current run, or <code>null</code> if the
+     * labels are kept in memory
+     */
+    private LabelStack labelStack;
+    
+    /**
+     * The view over the labels written during the last run (see {@link #output_labelView})
+     */
+    private LabelStack.View labelView;
+    
     public final EzVarBoolean tracking = new EzVarBoolean("Track objects over time", false);
     
+    /**
+     * If tracking is off, segments every frame of the sequence independently (and in parallel)
+     * instead of the current frame only
+     */
+    public final EzVarBoolean independent_frames = new EzVarBoolean("Segment all frames independently", false);
+    
+    /**
+     * If tracking is on, splits the time axis into overlapping chunks that are tracked in parallel,
+     * and stitched together afterwards (see {@link TrackStitcher})
+     */
+    public final EzVarBoolean tracking_chunks = new EzVarBoolean("Track time chunks in parallel", false);
+    
+    /**
+     * Number of frames shared by consecutive time chunks (used to converge the provisional seeds of
+     * each chunk, and to stitch the tracks)
+     */
+    public final EzVarInteger tracking_chunkOverlap = new EzVarInteger("Chunk overlap (frames)", 3, 1, 100, 1);
+    
+    public final EzVarFile tracking_checkpoint = new EzVarFile("Checkpoint file", null);
+    
+    public final EzVarInteger tracking_checkpointInterval = new EzVarInteger("Checkpoint interval (frames)", 100, 1, 100000, 1);
+    
+    /**
+     * The checkpoint to resume from (see {@link #resume(File)}), or <code>null</code> to start a
+     * new run
+     */
+    private Checkpoint resumeCheckpoint;
+    
+    /**
+     * Writes checkpoints in the background (during tracking runs with a checkpoint file only)
+     */
+    private Processor checkpointWriter;
+    
+    private Future<?> pendingCheckpoint;
+    
+    /**
+     * Exports the results of each frame in the background while the next frame is processed (see
+     * {@link #storeResult(int)}), or <code>null</code> to export them in the evolution thread
+     */
+    private Processor exportService;
+    
+    private Future<?> pendingExport;
+    
     public final EzVarDouble division_sensitivity = new EzVarDouble("Division sensitivity", 0, 0, 2, 0.1);
     
     public final EzVarBoolean tracking_newObjects = new EzVarBoolean("Watch entering objects", false);
     
-    private final HashMap<TrackSegment, Double> volumes = new HashMap<TrackSegment, Double>();
+    private final HashMap<TrackSegment, Double> volumes = new LinkedHashMap<TrackSegment, Double>();
     public final EzVarBoolean volume_constraint = new EzVarBoolean("Volume constraint", false);
     
     public final EzButton showTrackManager = new EzButton("Send to track manager", new ActionListener()
@@ -170,6 +289,25 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     private Sequence edgeData = new Sequence("Edge information");
     private BooleanMask3D contourMask_buffer;
     
+    /**
+     * Integral images of the region data outside all contours (used to measure the local
+     * background intensity, only allocated if {@link #region_localise} is enabled)
+     */
+    private MaskedIntegralImage backgroundIntegral;
+    
+    /**
+     * Regions of {@link #contourMask_buffer} painted by the last rasterisation, as {minX, maxX,
+     * minY, maxY, minZ, maxZ} (clipped to the image). Only these regions need to be cleared or
+     * scanned afterwards
+     */
+    private final ArrayList<int[]> contourMask_painted = new ArrayList<int[]>();
+    
+    /**
+     * Total intensity of each slice of the region data (the global background intensity is
+     * derived from it by subtracting the contour interiors)
+     */
+    private double[] region_sliceSums;
+    
     private Sequence region_data;
     private Sequence region_data_summed;
     private HashMap<TrackSegment, Double> region_cin = new HashMap<TrackSegment, Double>(0);
@@ -178,27 +316,143 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
     public final VarROIArray roiInput = new VarROIArray("input ROI");
     public final VarROIArray roiOutput = new VarROIArray("Regions of interest");
     
+    /**
+     * The sink receiving the results of each frame, or <code>null</code> to gather them in
+     * {@link #roiOutput} (see {@link #setResultSink(ResultSink)})
+     */
+    private ResultSink resultSink;
+    
+    /**
+     * The sink used during the current run
+     */
+    private ResultSink frameSink;
+    
     private boolean globalStop;
     
     private Var<TrackGroup> trackGroup = new Var<TrackGroup>("Tracks", TrackGroup.class);
     
     /**
-     * All contours present on the current time point
+     * All contours present on the current time point (N.B.: the iteration order must not depend on
+     * the memory layout to produce reproducible results)
      */
-    private final HashSet<ActiveContour> allContoursAtTimeT = new HashSet<ActiveContour>();
+    private final LinkedHashSet<ActiveContour> allContoursAtTimeT = new LinkedHashSet<ActiveContour>();
     
     /**
      * Set of contours that have not yet converged on the current time point
      */
-    private final HashSet<ActiveContour> evolvingContoursAtTimeT = new HashSet<ActiveContour>();
+    private final LinkedHashSet<ActiveContour> evolvingContoursAtTimeT = new LinkedHashSet<ActiveContour>();
+    
+    /**
+     * Track segment of each contour present on the current time point (avoids searching the whole
+     * track group for each contour)
+     */
+    private final HashMap<ActiveContour, TrackSegment> segmentsAtTimeT = new HashMap<ActiveContour, TrackSegment>();
     
     private ActiveContoursOverlay overlay;
     
-    private Processor multiThreadService = new Processor(SystemUtil.getNumberOfCPUs());
+    private final int nbThreads;
+    
+    private final Processor multiThreadService;
+    
+    /**
+     * <code>true</code> if {@link #multiThreadService} was created by (and should be stopped with)
+     * this instance, <code>false</code> if it is shared with other instances
+     */
+    private final boolean ownsThreadPool;
+    
+    /**
+     * Thread pool running the frames or time chunks processed in parallel (see
+     * {@link #independent_frames} and {@link #tracking_chunks}), shared by the instances of a batch,
+     * or <code>null</code> to create a dedicated pool for each run
+     */
+    private final Processor frameService;
+    
+    /**
+     * The batch job run by this instance (or <code>null</code> if this instance is not part of a
+     * batch)
+     */
+    ActiveContoursBatch.Job batchJob;
+    
+    /**
+     * <code>true</code> if this instance processes a single frame on behalf of another instance
+     * (see {@link #independent_frames})
+     */
+    private boolean frameWorker = false;
     
     public ActiveContours()
     {
+        this(SystemUtil.getNumberOfCPUs());
+    }
+    
+    /**
+     * @param nbThreads
+     *            the number of threads used to process contours in parallel
+     */
+    ActiveContours(int nbThreads)
+    {
+        this.nbThreads = nbThreads;
+        multiThreadService = new Processor(nbThreads);
         multiThreadService.setThreadName("Active Contours");
+        ownsThreadPool = true;
+        frameService = null;
+    }
+    
+    /**
+     * @param sharedService
+     *            a thread pool shared with other instances (it is not stopped by this instance)
+     */
+    ActiveContours(Processor sharedService)
+    {
+        this(sharedService, null);
+    }
+    
+    /**
+     * @param sharedService
+     *            a thread pool shared with other instances (it is not stopped by this instance)
+     * @param frameService
+     *            a thread pool shared with other instances, used to process frames or time chunks
+     *            in parallel (or <code>null</code> to create a dedicated pool when needed)
+     */
+    ActiveContours(Processor sharedService, Processor frameService)
+    {
+        this.nbThreads = sharedService.getMaximumPoolSize();
+        multiThreadService = sharedService;
+        ownsThreadPool = false;
+        this.frameService = frameService;
+    }
+    
+    /**
+     * Stops the thread pool of this instance (unless it is shared with other instances)
+     */
+    void releaseThreadPool()
+    {
+        if (ownsThreadPool) multiThreadService.shutdownNow();
+    }
+    
+    /**
+     * @param nbWorkerThreads
+     *            the number of threads of the worker (ignored if the thread pool of this instance
+     *            is shared, in which case the worker shares it as well)
+     * @return a new instance processing part of the input on behalf of this instance
+     */
+    private ActiveContours createWorker(int nbWorkerThreads)
+    {
+        ActiveContours worker = ownsThreadPool ? new ActiveContours(nbWorkerThreads) : new ActiveContours(multiThreadService);
+        worker.frameWorker = true;
+        copyParametersTo(worker);
+        return worker;
+    }
+    
+    /**
+     * Reports the progress of this instance (to the interface, and to the batch running it if any)
+     * 
+     * @param progress
+     *            the fraction of the input processed so far (between 0 and 1)
+     */
+    private void reportProgress(double progress)
+    {
+        if (getUI() != null) getUI().setProgressBarValue(progress);
+        if (batchJob != null) batchJob.setProgress(progress);
     }
     
     public TrackGroup getTrackGroup()
@@ -206,6 +460,21 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         return trackGroup.getValue();
     }
     
+    /**
+     * Sets the destination of the ROI of each frame, which then receives them as soon as the
+     * contours of that frame have converged (instead of gathering them in {@link #roiOutput} once
+     * the run completes). The sink is used by all subsequent runs, and is closed at the end of
+     * each of them
+     * 
+     * @param sink
+     *            the sink receiving the results, or <code>null</code> to gather them in
+     *            {@link #roiOutput}
+     */
+    public void setResultSink(ResultSink sink)
+    {
+        this.resultSink = sink;
+    }
+    
     @Override
     public void initialize()
     {
@@ -271,7 +540,13 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         evolution_bounds.setToolTipText("Bounds the evolution of the contour to all ROI of the given sequence (select \"No sequence\" to deactivate)");
         showAdvancedOptions.addVisibilityTriggerTo(evolution_bounds, true);
         
-        evolution.add(evolution_bounds, contour_resolution, contour_timeStep, convergence_winSize, convergence_operation, convergence_criterion, convergence_nbIter);
+        deterministic.setToolTipText("Produce identical results on identical inputs, regardless of the number of processors (contours are given reproducible colours)");
+        showAdvancedOptions.addVisibilityTriggerTo(deterministic, true);
+        
+        display_refreshRate.setToolTipText("Maximum number of times per second the contours and progress are displayed during the evolution (lower values leave more time to the evolution)");
+        showAdvancedOptions.addVisibilityTriggerTo(display_refreshRate, true);
+        
+        evolution.add(evolution_bounds, contour_resolution, contour_timeStep, convergence_winSize, convergence_operation, convergence_criterion, convergence_nbIter, deterministic, display_refreshRate);
         addEzComponent(evolution);
         
         // output
@@ -280,15 +555,42 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         output_roiType.setToolTipText("Select the type of ROI to export");
         addEzComponent(output_roiType);
         output_rois.addVisibilityTriggerTo(output_roiType, ExportROI.ON_INPUT, ExportROI.ON_NEW_IMAGE);
+        output_deferROI.setToolTipText("Create the ROI once all frames have been processed (in parallel), rather than after each frame");
+        addEzComponent(output_deferROI);
+        showAdvancedOptions.addVisibilityTriggerTo(output_deferROI, true);
+        output_labelFile.setToolTipText("Write the labels of each frame to this file as soon as the frame is complete, instead of keeping them in memory (leave empty to deactivate)");
+        addEzComponent(output_labelFile);
+        output_rois.addVisibilityTriggerTo(output_labelFile, ExportROI.AS_LABELS);
+        output_labelView.setToolTipText("Display the labels written to file through a (read-only) view that only loads the displayed frame");
+        addEzComponent(output_labelView);
+        output_rois.addVisibilityTriggerTo(output_labelView, ExportROI.AS_LABELS);
         
         // tracking
         tracking.setToolTipText("Track objects over time");
         addEzComponent(tracking);
         
+        independent_frames.setToolTipText("Segment every frame of the sequence independently (in parallel), starting from the input ROI of all frames or of each frame");
+        addEzComponent(independent_frames);
+        tracking.addVisibilityTriggerTo(independent_frames, false);
+        
         addEzComponent(tracking_newObjects);
         tracking.addVisibilityTriggerTo(tracking_newObjects, true);
         addEzComponent(volume_constraint);
         tracking.addVisibilityTriggerTo(volume_constraint, true);
+        
+        tracking_chunks.setToolTipText("Split the sequence into overlapping time chunks, seeded from the objects detected on their first frame, tracked in parallel and stitched afterwards (checkpoints are not supported)");
+        tracking_chunkOverlap.setToolTipText("Number of frames shared by consecutive chunks (higher values give the contours of each chunk more time to converge)");
+        addEzComponent(tracking_chunks);
+        addEzComponent(tracking_chunkOverlap);
+        tracking.addVisibilityTriggerTo(tracking_chunks, true);
+        tracking_chunks.addVisibilityTriggerTo(tracking_chunkOverlap, true);
+        
+        tracking_checkpoint.setToolTipText("Periodically save the tracking state to this file (leave empty to deactivate), to be able to resume the run after a crash or cancellation");
+        tracking_checkpointInterval.setToolTipText("Number of frames between consecutive checkpoints");
+        addEzComponent(tracking_checkpoint);
+        addEzComponent(tracking_checkpointInterval);
+        tracking.addVisibilityTriggerTo(tracking_checkpoint, true);
+        tracking.addVisibilityTriggerTo(tracking_checkpointInterval, true);
         addEzComponent(showTrackManager);
         
         setTimeDisplay(true);
@@ -302,8 +604,41 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         roiOutput.setValue(null);
         inputData = input.getValue(true);
         
+        if (tracking.getValue() && tracking_chunks.getValue() && tracking_checkpoint.getValue() != null && !frameWorker && resumeCheckpoint == null)
+        {
+            // chunks are tracked in parallel, hence there is no single tracking state to save
+            throw new VarException(tracking_checkpoint.getVariable(), "Active contours: checkpoints are not supported when tracking time chunks in parallel");
+        }
+        
+        frameSink = resultSink != null ? resultSink : new ResultSink.Memory();
+        deferROI = resultSink == null && output_deferROI.getValue();
+        deferredContours.clear();
+        deferredNames.clear();
+        labelView = null;
+        
+        File labelFile = output_labelFile.getValue();
+        if (labelFile != null && !frameWorker && (output_labels.isReferenced() || output_rois.getValue() == ExportROI.AS_LABELS))
+        {
+            try
+            {
+                labelStack = LabelStack.create(labelFile, inputData.getWidth(), inputData.getHeight(), inputData.getSizeZ(), inputData.getSizeT());
+            }
+            catch (IOException e)
+            {
+                throw new IcyHandledException("Active contours: couldn't create the label file: " + e.getMessage());
+            }
+        }
+        
         globalStop = false;
         
+        colorGenerator = new Random(COLOR_SEED);
+        
+        if (!frameWorker)
+        {
+            exportService = new Processor(1);
+            exportService.setThreadName("Active Contours (export)");
+        }
+        
         int startT = inputData.getFirstViewer() == null ? 0 : inputData.getFirstViewer().getPositionT();
         int endT = tracking.getValue() ? inputData.getSizeT() - 1 : startT;
         
@@ -316,7 +651,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         
         if (overlay != null) overlay.remove();
         
-        if (!Icy.getMainInterface().isHeadLess())
+        if (!Icy.getMainInterface().isHeadLess() && !frameWorker)
         {
             // replace any ActiveContours Painter object on the sequence by ours
             for (Overlay existingOverlay : inputData.getOverlays())
@@ -327,7 +662,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             inputData.addOverlay(overlay);
         }
         
-        if (getUI() != null)
+        if (getUI() != null && resumeCheckpoint == null)
         {
             roiInput.setValue(new ROI[0]);
             
@@ -337,160 +672,209 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             }
         }
         
-        for (int t = startT; t <= endT; t++)
+        // first frame to process (after the checkpoint frame when resuming)
+        int firstT = startT;
+        
+        if (resumeCheckpoint != null)
+        {
+            startT = resumeCheckpoint.startT;
+            firstT = resumeCheckpoint.frame + 1;
+            endT = inputData.getSizeT() - 1;
+            restoreCheckpoint(resumeCheckpoint);
+        }
+        
+        if (!tracking.getValue() && independent_frames.getValue())
+        {
+            segmentFramesIndependently();
+        }
+        else if (tracking.getValue() && tracking_chunks.getValue() && !frameWorker && resumeCheckpoint == null)
         {
-            if (isHeadLess()) System.out.println("Processing frame #" + t);
+            trackChunks(startT, endT);
+        }
+        else
+        {
+            File checkpointFile = tracking_checkpoint.getValue();
+            if (tracking.getValue() && checkpointFile != null && !frameWorker)
+            {
+                checkpointWriter = new Processor(1);
+                checkpointWriter.setThreadName("Active Contours (checkpoints)");
+            }
             
-            if (inputData.getFirstViewer() != null)
+            for (int t = firstT; t <= endT; t++)
             {
-                Viewer viewer = inputData.getFirstViewer();
-                viewer.setPositionT(t);
-                if (viewer.getCanvas() instanceof VtkCanvas)
+                if (isVerbose()) System.out.println("Processing frame #" + t);
+                
+                if (inputData.getFirstViewer() != null)
                 {
-                    final VtkCanvas vtk = (VtkCanvas) viewer.getCanvas();
-                    if (vtk.getVolumeSample() < 2)
+                    Viewer viewer = inputData.getFirstViewer();
+                    viewer.setPositionT(t);
+                    if (viewer.getCanvas() instanceof VtkCanvas)
                     {
-                        ThreadUtil.invokeLater(new Runnable()
+                        final VtkCanvas vtk = (VtkCanvas) viewer.getCanvas();
+                        if (vtk.getVolumeSample() < 2)
                         {
-                            public void run()
+                            ThreadUtil.invokeLater(new Runnable()
                             {
-                                // it is almost impossible that the rendering is smooth
-                                // (it's ray-casting after all!)
-                                // decrease it for faster rendering
-                                vtk.setVolumeSample(5);
-                            }
-                        });
+                                public void run()
+                                {
+                                    // it is almost impossible that the rendering is smooth
+                                    // (it's ray-casting after all!)
+                                    // decrease it for faster rendering
+                                    vtk.setVolumeSample(5);
+                                }
+                            });
+                        }
                     }
                 }
-            }
-            
-            if (isHeadLess()) System.out.println("=> retrieving image data...");
-            initData(t, t == startT);
-            
-            if (Thread.currentThread().isInterrupted()) break;
-            
-            if (isHeadLess()) System.out.println("=> creating contours...");
-            initContours(t, t == startT);
-            
-            if (Thread.currentThread().isInterrupted()) break;
-            
-            // if (firstRun)
-            // {
-            // // the thread pool now is warmed up
-            // // and the JIT did its business
-            // // => restart at full speed
-            // firstRun = false;
-            // execute();
-            // return;
-            // }
-            
-            if (isHeadLess()) System.out.println("=> evolving contours...");
-            
-            // evolve contours on the current image
-            evolveContours(t);
-            
-            if (Thread.currentThread().isInterrupted())
-            {
-                // store results if we are in GUI mode
-                if (!isHeadLess()) storeResult(t);
                 
-                break;
-            }
-            
-            // store detections and results
-            storeResult(t);
-            
-            if (tracking_newObjects.getValue() && inputData.getSizeZ() == 1)
-            {
-                // watch for new objects in the field (2D only)
+                if (isVerbose()) System.out.println("=> retrieving image data...");
+                initData(t, t == firstT);
+                
+                if (Thread.currentThread().isInterrupted()) break;
+                
+                if (isVerbose()) System.out.println("=> creating contours...");
+                initContours(t, t == startT);
                 
-                ArrayList<ROI2D> newObjects = new ArrayList<ROI2D>();
+                if (Thread.currentThread().isInterrupted()) break;
                 
-                double vol = 0;
-                for (Double volume : volumes.values())
-                    vol += volume;
-                vol /= volumes.values().size();
+                // if (firstRun)
+                // {
+                // // the thread pool now is warmed up
+                // // and the JIT did its business
+                // // => restart at full speed
+                // firstRun = false;
+                // execute();
+                // return;
+                // }
                 
-                int minVol = (int) (vol / 10);
-                int maxVol = (int) vol;
+                if (isVerbose()) System.out.println("=> evolving contours...");
+                
+                // evolve contours on the current image
+                evolveContours(t);
                 
-                Sequence currentT = SequenceUtil.extractFrame(inputData, t);
-                Sequence filtered = GaussianFilter.filter(currentT, 4.0, 4.0, 0.0);
-                for (ROI roi : HKMeans.hKMeans(filtered, (byte) 10, minVol, maxVol, 0.0))
+                if (Thread.currentThread().isInterrupted())
                 {
-                    newObjects.add((ROI2D) roi);
+                    // store results if we are in GUI mode
+                    if (!isHeadLess()) storeResult(t);
+                    
+                    break;
                 }
                 
-                // 1) discard objects overlapping with existing contours
-                for (TrackSegment segment : tracks.getTrackSegmentList())
+                // store detections and results
+                storeResult(t);
+                
+                if (batchJob != null) batchJob.setProgress((double) (t - startT + 1) / (endT - startT + 1));
+                
+                if (tracking_newObjects.getValue() && inputData.getSizeZ() == 1)
                 {
-                    Detection previous = segment.getDetectionAtTime(t);
+                    // watch for new objects in the field (2D only)
                     
-                    if (previous == null) continue;
+                    ArrayList<ROI2D> newObjects = new ArrayList<ROI2D>();
                     
-                    ActiveContour previousContour = (ActiveContour) previous;
+                    double vol = 0;
+                    for (Double volume : volumes.values())
+                        vol += volume;
+                    vol /= volumes.values().size();
                     
-                    // remove any "new object" at that location"
-                    for (int i = 0; i < newObjects.size(); i++)
+                    int minVol = (int) (vol / 10);
+                    int maxVol = (int) vol;
+                    
+                    for (ROI roi : detectObjects(inputData, t, minVol, maxVol))
                     {
-                        Point3D center = ROIMassCenterDescriptorsPlugin.computeMassCenter(newObjects.get(i)).toPoint3D();
-                        
-                        if (previousContour.getDistanceToEdge(new Point3d(center.getX(), center.getY(), center.getZ())) > 0) newObjects.remove(i--);
+                        newObjects.add((ROI2D) roi);
                     }
-                }
-                
-                for (ROI2D newROI : newObjects)
-                    try
+                    
+                    // 1) discard objects overlapping with existing contours
+                    for (TrackSegment segment : tracks.getTrackSegmentList())
                     {
-                        ROI2DArea roi = new ROI2DArea(newROI.getBooleanMask(true));
-                        roi.setZ(0);
-                        ActiveContour contour = new Polygon2D(contour_resolution.getVariable(), new SlidingWindow(convergence_winSize.getValue()), roi);
-                        contour.setDivisionSensitivity(division_sensitivity.getVariable());
-                        contour.setT(t);
+                        Detection previous = segment.getDetectionAtTime(t);
                         
-                        TrackSegment segment = null;
-                        // does it overlap with a track that terminates in the previous frame?
-                        synchronized (trackGroup)
+                        if (previous == null) continue;
+                        
+                        ActiveContour previousContour = (ActiveContour) previous;
+                        
+                        // remove any "new object" at that location"
+                        for (int i = 0; i < newObjects.size(); i++)
+                        {
+                            Point3D center = ROIMassCenterDescriptorsPlugin.computeMassCenter(newObjects.get(i)).toPoint3D();
+                            
+                            if (previousContour.getDistanceToEdge(new Point3d(center.getX(), center.getY(), center.getZ())) > 0) newObjects.remove(i--);
+                        }
+                    }
+                    
+                    for (ROI2D newROI : newObjects)
+                        try
                         {
-                            for (TrackSegment track : trackGroup.getValue().getTrackSegmentList())
+                            ROI2DArea roi = new ROI2DArea(newROI.getBooleanMask(true));
+                            roi.setZ(0);
+                            ActiveContour contour = new Polygon2D(contour_resolution.getVariable(), new SlidingWindow(convergence_winSize.getValue()), roi);
+                            contour.setDivisionSensitivity(division_sensitivity.getVariable());
+                            contour.setT(t);
+                            assignColor(contour);
+                            
+                            TrackSegment segment = null;
+                            // does it overlap with a track that terminates in the previous frame?
+                            synchronized (trackGroup)
                             {
-                                ActiveContour trackEnd = (ActiveContour) track.getLastDetection();
-                                if (trackEnd == null) System.err.println("null");
-                                else if (trackEnd.getT() == (t - 1) && trackEnd.boundingBox.intersect(contour.boundingBox))
+                                for (TrackSegment track : trackGroup.getValue().getTrackSegmentList())
                                 {
-                                    System.out.println("found link at time " + t + ", position (" + contour.getX() + ";" + contour.getY() + ")");
-                                    segment = track;
-                                    break;
+                                    ActiveContour trackEnd = (ActiveContour) track.getLastDetection();
+                                    if (trackEnd == null) System.err.println("null");
+                                    else if (trackEnd.getT() == (t - 1) && trackEnd.boundingBox.intersect(contour.boundingBox))
+                                    {
+                                        System.out.println("found link at time " + t + ", position (" + contour.getX() + ";" + contour.getY() + ")");
+                                        segment = track;
+                                        break;
+                                    }
                                 }
+                                
+                                if (segment == null)
+                                { // no candidate contour found
+                                    segment = new TrackSegment();
+                                    trackGroup.getValue().addTrackSegment(segment);
+                                    region_cin.put(segment, 0.0);
+                                    region_cout.put(segment, 0.0);
+                                }
+                                
+                                segment.addDetection(contour);
                             }
-                            
-                            if (segment == null)
-                            { // no candidate contour found
-                                segment = new TrackSegment();
-                                trackGroup.getValue().addTrackSegment(segment);
-                                region_cin.put(segment, 0.0);
-                                region_cout.put(segment, 0.0);
-                            }
-                            
-                            segment.addDetection(contour);
                         }
-                    }
-                    catch (TopologyException topo)
-                    {
-                        double xC = newROI.getBounds().getCenterX();
-                        double yC = newROI.getBounds().getCenterY();
-                        System.err.println("Warning: couldn't create a contour at location " + xC + " ; " + yC + ")");
-                    }
+                        catch (TopologyException topo)
+                        {
+                            double xC = newROI.getBounds().getCenterX();
+                            double yC = newROI.getBounds().getCenterY();
+                            System.err.println("Warning: couldn't create a contour at location " + xC + " ; " + yC + ")");
+                        }
+                    
+                    evolveContours(t);
+                }
+                
+                if (checkpointWriter != null && (t - startT + 1) % tracking_checkpointInterval.getValue() == 0) saveCheckpoint(startT, t, checkpointFile);
+                
+                if (Thread.currentThread().isInterrupted()) break;
+                
+                if (globalStop) break;
                 
-                evolveContours(t);
             }
             
-            if (Thread.currentThread().isInterrupted()) break;
-            
-            if (globalStop) break;
-            
+            if (checkpointWriter != null)
+            {
+                // let the last checkpoint complete in the background
+                checkpointWriter.shutdown();
+                checkpointWriter = null;
+                pendingCheckpoint = null;
+            }
         }
         
+        awaitExport();
+        stopExportService();
+        
+        // display the contours added since the last refresh (if any)
+        repaintOverlay();
+        
+        closeResults();
+        closeLabels();
+        
         if (getUI() != null)
         {
             Sequence out = inputData;
@@ -502,12 +886,13 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                     out.setName(inputData.getName() + " + Active contours");
                     //$FALL-THROUGH$
                 case ON_INPUT:
-                    for (ROI roi : roiOutput.getValue())
+                    if (roiOutput.getValue() != null) for (ROI roi : roiOutput.getValue())
                         out.addROI(roi, false);
                     if (out != inputData) addSequence(out);
                 break;
                 case AS_LABELS:
-                    addSequence(output_labels.getValue());
+                    if (labelView != null) labelView.show();
+                    else if (output_labels.getValue() != null) addSequence(output_labels.getValue());
                 break;
                 default:
             }
@@ -520,17 +905,582 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         region_cin.clear();
         region_cout.clear();
         allContoursAtTimeT.clear();
+        segmentsAtTimeT.clear();
         inputData = null;
         edgeData = null;
         region_data = null;
         region_data_summed = null;
+        backgroundIntegral = null;
+        region_sliceSums = null;
+        contourMask_painted.clear();
     }
     
-    private void initData(int t, boolean isFirstFrame)
+    /**
+     * @return <code>true</code> if progress messages should be printed to the console
+     */
+    private boolean isVerbose()
     {
-        if (edge_c.getValue() >= inputData.getSizeC())
+        return isHeadLess() && !frameWorker;
+    }
+    
+    /**
+     * The results of a frame (or time chunk) processed by a separate instance (see
+     * {@link ActiveContours#independent_frames} and {@link ActiveContours#tracking_chunks})
+     */
+    private static class FrameResult
+    {
+        /**
+         * The first frame processed by the separate instance
+         */
+        final int t;
+        
+        final ArrayList<ROI> rois = new ArrayList<ROI>();
+        
+        final ArrayList<TrackSegment> segments = new ArrayList<TrackSegment>();
+        
+        Sequence labels;
+        
+        FrameResult(int t)
         {
-            throw new IcyHandledException("The selected edge channel is invalid.");
+            this.t = t;
+        }
+        
+        /**
+         * Retrieves the results of the specified instance, and shifts them in time such that its
+         * first frame becomes frame {@link #t}
+         */
+        void collect(ActiveContours worker)
+        {
+            if (worker.roiOutput.getValue() != null) for (ROI roi : worker.roiOutput.getValue())
+            {
+                if (roi instanceof ROI2D) ((ROI2D) roi).setT(((ROI2D) roi).getT() + t);
+                else if (roi instanceof ROI3D) ((ROI3D) roi).setT(((ROI3D) roi).getT() + t);
+                rois.add(roi);
+            }
+            
+            for (TrackSegment segment : worker.getTrackGroup().getTrackSegmentList())
+            {
+                for (Detection detection : segment.getDetectionList())
+                    detection.setT(detection.getT() + t);
+                segments.add(segment);
+            }
+            
+            labels = worker.output_labels.getValue();
+        }
+    }
+    
+    /**
+     * Segments every frame of the input sequence independently (i.e. without tracking). Several
+     * frames are processed in parallel, each by a separate single-frame instance of this plug-in,
+     * and the results are merged in frame order once all frames have been processed
+     */
+    private void segmentFramesIndependently()
+    {
+        final ArrayList<ROI> seeds = getSeeds();
+        
+        final ArrayList<FrameResult> results = new ArrayList<FrameResult>();
+        final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        final AtomicInteger nbProcessedFrames = new AtomicInteger();
+        
+        final int nbFrameThreads = Math.max(1, Math.min(Math.min(nbThreads, inputData.getSizeT()), getMaxFramesInMemory()));
+        final int nbThreadsPerFrame = Math.max(1, nbThreads / nbFrameThreads);
+        
+        for (int t = 0; t < inputData.getSizeT(); t++)
+        {
+            final ArrayList<ROI> frameSeeds = getSeeds(seeds, t);
+            
+            if (frameSeeds.isEmpty()) continue;
+            
+            final FrameResult result = new FrameResult(t);
+            results.add(result);
+            
+            tasks.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    if (isVerbose()) System.out.println("Processing frame #" + result.t);
+                    
+                    ActiveContours worker = createWorker(nbThreadsPerFrame);
+                    worker.input.setValue(SequenceUtil.extractFrame(inputData, result.t));
+                    worker.roiInput.setValue(frameSeeds.toArray(new ROI[frameSeeds.size()]));
+                    
+                    try
+                    {
+                        worker.execute();
+                        result.collect(worker);
+                    }
+                    finally
+                    {
+                        // N.B.: clean() would also clear the (collected) tracks
+                        worker.releaseThreadPool();
+                    }
+                    
+                    if (labelStack != null && result.labels != null)
+                    {
+                        // write the labels right away, such that only the frames being processed
+                        // are held in memory
+                        try
+                        {
+                            labelStack.writeFrame(result.t, result.labels, 0);
+                        }
+                        catch (IOException e)
+                        {
+                            throw new IcyHandledException("Active contours: couldn't write the labels of frame " + result.t + ": " + e.getMessage());
+                        }
+                        
+                        result.labels = null;
+                    }
+                    
+                    reportProgress((double) nbProcessedFrames.incrementAndGet() / results.size());
+                    
+                    return null;
+                }
+            });
+        }
+        
+        if (!invokeFrameTasks(nbFrameThreads, tasks)) return;
+        
+        // merge the results
+        TrackGroup tracks = trackGroup.getValue();
+        
+        for (FrameResult result : results)
+        {
+            for (TrackSegment segment : result.segments)
+            {
+                if (overlay != null) for (Detection detection : segment.getDetectionList())
+                    ((ActiveContour) detection).publishSnapshot();
+                
+                tracks.addTrackSegment(segment);
+            }
+            
+            sendResults(result.t, result.rois);
+            
+            // N.B.: labels written to the label file are already gone
+            if (result.labels == null) continue;
+            
+            Sequence binSeq = output_labels.getValue();
+            if (binSeq == null)
+            {
+                output_labels.setValue(binSeq = new Sequence());
+            }
+            
+            for (int z = 0; z < result.labels.getSizeZ(); z++)
+            {
+                IcyBufferedImage labels = result.labels.getImage(0, z);
+                if (labels != null) binSeq.setImage(result.t, z, labels);
+            }
+        }
+        
+        repaintOverlay();
+        
+        if (output_labels.getValue() != null) output_labels.getValue().dataChanged();
+    }
+    
+    /**
+     * Tracks objects over time by splitting the time axis into overlapping chunks, tracked in
+     * parallel by separate instances of this plug-in. Each chunk is seeded from the input ROI of
+     * its first frame or, if there are none, provisionally from the objects detected on that frame
+     * (see {@link #detectObjects(Sequence, int, int, int)}). The chunks are then stitched together
+     * on their overlapping frames (see {@link TrackStitcher})
+     * 
+     * @param startT
+     *            the first frame to process
+     * @param endT
+     *            the last frame to process
+     */
+    private void trackChunks(final int startT, int endT)
+    {
+        final ArrayList<ROI> seeds = getSeeds();
+        
+        // the expected object size (in pixels), used to detect the objects of the later chunks
+        double size = 0;
+        for (ROI roi : seeds)
+            size += roi.getNumberOfPoints();
+        final double seedSize = size / Math.max(1, seeds.size());
+        
+        int nbFrames = endT - startT + 1;
+        int overlap = tracking_chunkOverlap.getValue();
+        
+        // chunks should own at least twice as many frames as they share
+        int nbChunks = Math.max(1, Math.min(Math.min(nbThreads, getMaxFramesInMemory()), nbFrames / (2 * overlap)));
+        final int nbThreadsPerChunk = Math.max(1, nbThreads / nbChunks);
+        
+        final ArrayList<FrameResult> results = new ArrayList<FrameResult>(nbChunks);
+        final int[] firstOwnedFrames = new int[nbChunks];
+        final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nbChunks);
+        final AtomicInteger nbProcessedChunks = new AtomicInteger();
+        
+        for (int chunk = 0; chunk < nbChunks; chunk++)
+        {
+            firstOwnedFrames[chunk] = startT + (int) ((long) nbFrames * chunk / nbChunks);
+            final int lastFrame = startT + (int) ((long) nbFrames * (chunk + 1) / nbChunks) - 1;
+            final int firstFrame = Math.max(startT, firstOwnedFrames[chunk] - (chunk == 0 ? 0 : overlap));
+            
+            // seed from the input ROI of the first frame, or provisionally from the objects detected
+            // on that frame (see below)
+            boolean hasSeeds = chunk == 0;
+            for (ROI roi : seeds)
+                if ((roi instanceof ROI2D ? ((ROI2D) roi).getT() : ((ROI3D) roi).getT()) == firstFrame) hasSeeds = true;
+            
+            final ArrayList<ROI> chunkSeeds = hasSeeds ? getSeeds(seeds, firstFrame) : null;
+            final FrameResult result = new FrameResult(firstFrame);
+            results.add(result);
+            
+            tasks.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    if (isVerbose()) System.out.println("Processing frames #" + firstFrame + " to #" + lastFrame);
+                    
+                    List<ROI> workerSeeds = chunkSeeds;
+                    
+                    if (workerSeeds == null)
+                    {
+                        workerSeeds = detectObjects(inputData, firstFrame, (int) (seedSize / 10), (int) (seedSize * 4));
+                        
+                        if (workerSeeds.isEmpty())
+                        {
+                            System.err.println("Warning: no object detected on frame " + firstFrame + ", seeding frames #" + firstFrame + " to #" + lastFrame + " from the initial ROI");
+                            workerSeeds = getSeeds(seeds, startT);
+                        }
+                    }
+                    
+                    ActiveContours worker = createWorker(nbThreadsPerChunk);
+                    worker.tracking.setValue(true);
+                    worker.tracking_newObjects.setValue(tracking_newObjects.getValue());
+                    worker.volume_constraint.setValue(volume_constraint.getValue());
+                    // results are exported after stitching
+                    worker.output_rois.setValue(ExportROI.NO);
+                    worker.input.setValue(extractFrames(firstFrame, lastFrame));
+                    worker.roiInput.setValue(workerSeeds.toArray(new ROI[workerSeeds.size()]));
+                    
+                    try
+                    {
+                        worker.execute();
+                        result.collect(worker);
+                    }
+                    finally
+                    {
+                        // N.B.: clean() would also clear the (collected) tracks
+                        worker.releaseThreadPool();
+                    }
+                    
+                    reportProgress((double) nbProcessedChunks.incrementAndGet() / results.size());
+                    
+                    return null;
+                }
+            });
+        }
+        
+        if (!invokeFrameTasks(nbChunks, tasks)) return;
+        
+        // stitch the chunks in time order
+        TrackGroup tracks = trackGroup.getValue();
+        
+        for (int chunk = 0; chunk < nbChunks; chunk++)
+        {
+            List<TrackSegment> newTracks = results.get(chunk).segments;
+            
+            // objects detected on the first frame of a chunk are only tracked further if they
+            // continue an existing track (unless entering objects are tracked as well)
+            if (chunk > 0) newTracks = TrackStitcher.stitch(tracks.getTrackSegmentList(), newTracks, firstOwnedFrames[chunk], tracking_newObjects.getValue());
+            
+            for (TrackSegment segment : newTracks)
+                tracks.addTrackSegment(segment);
+        }
+        
+        // export the results as in the frame-by-frame mode
+        for (int t = startT; t <= endT; t++)
+            storeResult(t);
+        
+        repaintOverlay();
+    }
+    
+    /**
+     * @return all the input ROI that can be used to initialise contours (2D ROI with no Z position
+     *         are assigned the visible slice, since separate instances have no viewer to ask)
+     */
+    private ArrayList<ROI> getSeeds()
+    {
+        ROI[] inputROI = roiInput.getValue();
+        
+        if (inputROI.length == 0)
+        {
+            if (isHeadLess()) throw new VarException(roiInput, "Active contours: no input ROI");
+            
+            ArrayList<ROI> roiFromSequence = inputData.getROIs();
+            
+            if (roiFromSequence.isEmpty()) throw new VarException(input.getVariable(), "Please draw or select a ROI");
+            
+            inputROI = roiFromSequence.toArray(new ROI[roiFromSequence.size()]);
+        }
+        
+        // a 2D contour cannot be created from a "virtually 3D" ROI => use the visible slice (the
+        // single-frame instances have no viewer to ask)
+        int currentVisibleSlice = -1;
+        if (getUI() != null && inputData.getFirstViewer() != null) currentVisibleSlice = inputData.getFirstViewer().getPositionZ();
+        
+        final ArrayList<ROI> seeds = new ArrayList<ROI>(inputROI.length);
+        for (ROI roi : inputROI)
+        {
+            if (roi instanceof ROI2D && ((ROI2D) roi).getZ() == -1 && currentVisibleSlice != -1)
+            {
+                ROI2D roi2d = (ROI2D) roi.getCopy();
+                roi2d.setZ(currentVisibleSlice);
+                seeds.add(roi2d);
+            }
+            else if (roi instanceof ROI2D || roi instanceof ROI3D)
+            {
+                seeds.add(roi);
+            }
+        }
+        
+        return seeds;
+    }
+    
+    /**
+     * @return the seeds of the specified frame, i.e. the ROI located on that frame or on all frames
+     */
+    private static ArrayList<ROI> getSeeds(List<ROI> seeds, int t)
+    {
+        ArrayList<ROI> frameSeeds = new ArrayList<ROI>();
+        
+        for (ROI roi : seeds)
+        {
+            int roiT = roi instanceof ROI2D ? ((ROI2D) roi).getT() : ((ROI3D) roi).getT();
+            if (roiT == -1 || roiT == t) frameSeeds.add(roi);
+        }
+        
+        return frameSeeds;
+    }
+    
+    /**
+     * Detects the bright objects of the specified frame with a hierarchical K-Means (after a
+     * Gaussian smoothing), as done to watch for entering objects
+     * 
+     * @param sequence
+     * @param t
+     *            the frame to process
+     * @param minSize
+     *            the minimum object size (in pixels)
+     * @param maxSize
+     *            the maximum object size (in pixels)
+     * @return the detected objects
+     */
+    private static ArrayList<ROI> detectObjects(Sequence sequence, int t, int minSize, int maxSize)
+    {
+        Sequence frame = SequenceUtil.extractFrame(sequence, t);
+        Sequence filtered = GaussianFilter.filter(frame, 4.0, 4.0, 0.0);
+        
+        ArrayList<ROI> objects = new ArrayList<ROI>();
+        
+        for (ROI roi : HKMeans.hKMeans(filtered, (byte) 10, minSize, maxSize, 0.0))
+            if (roi instanceof ROI2D || roi instanceof ROI3D) objects.add(roi);
+        
+        return objects;
+    }
+    
+    /**
+     * @return a sequence made of the specified frames of the input sequence (the images are shared,
+     *         not copied)
+     */
+    private Sequence extractFrames(int fromT, int toT)
+    {
+        Sequence frames = new Sequence(OMEUtil.createOMEXMLMetadata(inputData.getOMEXMLMetadata()), inputData.getName());
+        
+        for (int t = fromT; t <= toT; t++)
+            for (int z = 0; z < inputData.getSizeZ(); z++)
+                frames.setImage(t - fromT, z, inputData.getImage(t, z));
+        
+        return frames;
+    }
+    
+    /**
+     * Copies the parameters of this instance to the specified single-frame instance
+     */
+    private void copyParametersTo(ActiveContours worker)
+    {
+        worker.regul_weight.setValue(regul_weight.getValue());
+        worker.edge_c.setValue(edge_c.getValue());
+        worker.edge_weight.setValue(edge_weight.getValue());
+        worker.region_c.setValue(region_c.getValue());
+        worker.region_weight.setValue(region_weight.getValue());
+        worker.region_sensitivity.setValue(region_sensitivity.getValue());
+        worker.region_localise.setValue(region_localise.getValue());
+        worker.balloon_weight.setValue(balloon_weight.getValue());
+        worker.axis_weight.setValue(axis_weight.getValue());
+        worker.coupling_flag.setValue(coupling_flag.getValue());
+        worker.evolution_bounds.setValue(evolution_bounds.getValue());
+        worker.contour_resolution.setValue(contour_resolution.getValue());
+        worker.contour_timeStep.setValue(contour_timeStep.getValue());
+        worker.convergence_winSize.setValue(convergence_winSize.getValue());
+        worker.convergence_operation.setValue(convergence_operation.getValue());
+        worker.convergence_criterion.setValue(convergence_criterion.getValue());
+        worker.convergence_nbIter.setValue(convergence_nbIter.getValue());
+        worker.deterministic.setValue(deterministic.getValue());
+        worker.division_sensitivity.setValue(division_sensitivity.getValue());
+        worker.output_roiType.setValue(output_roiType.getValue());
+        
+        // labels are only produced if necessary
+        boolean labels = output_labels.isReferenced() || output_rois.getValue() == ExportROI.AS_LABELS;
+        worker.output_rois.setValue(labels ? ExportROI.AS_LABELS : ExportROI.NO);
+        
+        worker.tracking.setValue(false);
+        worker.tracking_newObjects.setValue(false);
+        worker.volume_constraint.setValue(false);
+    }
+    
+    /**
+     * Resumes a tracking run from a checkpoint (see {@link #tracking_checkpoint}). The parameters
+     * and input sequence should be the same as those of the interrupted run. The contours and
+     * tracks of the frames processed before the checkpoint are restored (and exported again), and
+     * the evolution restarts on the following frame
+     * 
+     * @param checkpointFile
+     *            the checkpoint to resume from
+     * @throws IOException
+     *             if the checkpoint cannot be read
+     */
+    public void resume(File checkpointFile) throws IOException
+    {
+        Sequence sequence = input.getValue(true);
+        
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile, contour_resolution.getVariable(), convergence_winSize.getValue());
+        
+        if (checkpoint.frame >= sequence.getSizeT()) throw new IcyHandledException("The checkpoint does not match the input sequence (frame " + checkpoint.frame + " is out of bounds)");
+        
+        tracking.setValue(true);
+        resumeCheckpoint = checkpoint;
+        
+        try
+        {
+            execute();
+        }
+        finally
+        {
+            resumeCheckpoint = null;
+        }
+    }
+    
+    /**
+     * Restores the tracks and statistics of a checkpoint, and exports the restored frames
+     */
+    private void restoreCheckpoint(Checkpoint checkpoint)
+    {
+        TrackGroup tracks = trackGroup.getValue();
+        
+        for (TrackSegment segment : checkpoint.segments)
+        {
+            tracks.addTrackSegment(segment);
+            
+            double[] statistics = checkpoint.regionStatistics.get(segment);
+            if (statistics == null) continue;
+            
+            region_cin.put(segment, statistics[0]);
+            region_cout.put(segment, statistics[1]);
+        }
+        
+        colorGenerator = checkpoint.getColorGenerator();
+        
+        for (int t = checkpoint.startT; t <= checkpoint.frame; t++)
+            storeResult(t);
+    }
+    
+    /**
+     * Takes a snapshot of the current run, and writes it to disk in the background (unless the
+     * previous checkpoint is still being written, in which case this checkpoint is skipped)
+     * 
+     * @param startT
+     *            the first frame of the run
+     * @param t
+     *            the last processed frame
+     * @param file
+     *            the checkpoint file
+     */
+    private void saveCheckpoint(int startT, int t, final File file)
+    {
+        if (pendingCheckpoint != null && !pendingCheckpoint.isDone()) return;
+        
+        final Checkpoint checkpoint = Checkpoint.snapshot(startT, t, trackGroup.getValue().getTrackSegmentList(), region_cin, region_cout, colorGenerator);
+        
+        pendingCheckpoint = checkpointWriter.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    checkpoint.write(file);
+                    if (isVerbose()) System.out.println("Checkpoint saved after frame #" + checkpoint.frame);
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Warning: couldn't save the checkpoint: " + e.getMessage());
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return the number of frames that can be processed simultaneously without exhausting the
+     *         available memory (estimated from the intermediate data created for each frame)
+     */
+    private int getMaxFramesInMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long availableMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        
+        // keep half of the memory for the contours and results
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, availableMemory / 2 / Math.max(1, estimateFrameMemory(inputData, region_localise.getValue()))));
+    }
+    
+    /**
+     * @return the maximum number of frames processed simultaneously with the current parameters
+     *         (several frames are processed at once in the independent-frame and time chunk modes),
+     *         regardless of the available memory
+     */
+    int getMaxParallelFrames()
+    {
+        Sequence sequence = input.getValue();
+        
+        if (sequence == null) return 1;
+        
+        if (!tracking.getValue() && independent_frames.getValue()) return Math.max(1, Math.min(nbThreads, sequence.getSizeT()));
+        
+        if (tracking.getValue() && tracking_chunks.getValue()) return Math.max(1, Math.min(nbThreads, sequence.getSizeT() / (2 * tracking_chunkOverlap.getValue())));
+        
+        return 1;
+    }
+    
+    /**
+     * @param sequence
+     *            the input sequence
+     * @param localise
+     *            <code>true</code> if the background intensity is measured locally
+     * @return the estimated memory (in bytes) of the intermediate data created to process one
+     *         frame of the specified sequence
+     */
+    static long estimateFrameMemory(Sequence sequence, boolean localise)
+    {
+        long nbVoxels = (long) sequence.getSizeX() * sequence.getSizeY() * sequence.getSizeZ();
+        
+        // edge, region and summed region data (float), contour mask, labels (ushort)...
+        long bytesPerVoxel = 4 + 4 + 4 + 1 + 2;
+        // ...integral images (variable background only)...
+        if (localise) bytesPerVoxel += 12;
+        // ...and the channels of the current frame, in their original type
+        bytesPerVoxel += sequence.getSizeC() * sequence.getDataType_().getSize();
+        
+        return nbVoxels * bytesPerVoxel;
+    }
+    
+    private void initData(int t, boolean isFirstFrame)
+    {
+        if (edge_c.getValue() >= inputData.getSizeC())
+        {
+            throw new IcyHandledException("The selected edge channel is invalid.");
         }
         
         if (region_c.getValue() >= inputData.getSizeC())
@@ -591,9 +1541,25 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             }
         }
         
+        // total intensity of each slice, accumulated in double precision (as the sums inside the
+        // contours it is compared with), rather than from the float summed lines
+        region_sliceSums = new double[bounds.sizeZ];
+        for (int z = 0; z < bounds.sizeZ; z++)
+        {
+            float[] regionDataSlice = region_data.getDataXYAsFloat(0, z, 0);
+            
+            double sliceSum = 0;
+            for (int offset = 0; offset < regionDataSlice.length; offset++)
+                sliceSum += regionDataSlice[offset];
+            
+            region_sliceSums[z] = sliceSum;
+        }
+        
         // initialize the mask buffer (used to calculate average intensities inside/outside
         if (isFirstFrame)
         {
+            contourMask_painted.clear();
+            
             BooleanMask2D[] maskSlices = new BooleanMask2D[bounds.sizeZ];
             
             for (int z = 0; z < inputData.getSizeZ(); z++)
@@ -730,6 +1696,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                                     final ActiveContour contour = new Polygon2D(contour_resolution.getVariable(), window, r2);
                                     contour.setDivisionSensitivity(division_sensitivity.getVariable());
                                     contour.setT(t);
+                                    assignColor(contour);
                                     
                                     TrackSegment segment = new TrackSegment();
                                     segment.addDetection(contour);
@@ -758,6 +1725,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                             final SlidingWindow window = new SlidingWindow(convergence_winSize.getValue());
                             final ActiveContour contour = new Polygon2D(contour_resolution.getVariable(), window, roi2d);
                             contour.setDivisionSensitivity(division_sensitivity.getVariable());
+                            assignColor(contour);
                             
                             TrackSegment segment = new TrackSegment();
                             segment.addDetection(contour);
@@ -791,6 +1759,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                         // contour.setX(r3.getBounds3D().getCenterX());
                         // contour.setY(r3.getBounds3D().getCenterY());
                         contour.setT(t);
+                        assignColor(contour);
                         
                         // contour.toSequence(inputData, 3000);
                         
@@ -854,17 +1823,21 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         // retrieve the contours on the current frame and store them in currentContours
         
         allContoursAtTimeT.clear();
+        segmentsAtTimeT.clear();
         
         for (TrackSegment segment : trackGroup.getValue().getTrackSegmentList())
         {
             Detection det = segment.getDetectionAtTime(t);
-            if (det != null) allContoursAtTimeT.add((ActiveContour) det);
+            if (det == null) continue;
+            
+            allContoursAtTimeT.add((ActiveContour) det);
+            segmentsAtTimeT.put((ActiveContour) det, segment);
         }
         
         if (allContoursAtTimeT.size() == 0) return;
         
-        // get the bounded field of evolution
-        ROI field;
+        // get the bounded field of evolution (rasterised once for all iterations)
+        EvolutionField field;
         
         Sequence boundSource = evolution_bounds.getValue();
         
@@ -872,7 +1845,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         {
             try
             {
-                field = ROIUtil.merge(boundSource.getROIs(), BooleanOperator.OR);
+                field = EvolutionField.fromROI(ROIUtil.merge(boundSource.getROIs(), BooleanOperator.OR));
             }
             catch (UnsupportedOperationException e)
             {
@@ -880,16 +1853,9 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                         "Cannot compute the evolution bounds: " + e.getMessage() + "\nIf you are not sure how to fix this, change this parameter to \"No Sequence\"");
             }
         }
-        else if (inputData.getSizeZ() == 1)
-        {
-            field = new ROI2DRectangle(0, 0, inputData.getWidth(), inputData.getHeight());
-        }
         else
         {
-            ROI3DStack<ROI2DRectangle> field3D = new ROI3DStack<ROI2DRectangle>(ROI2DRectangle.class);
-            for (int z = 0; z < inputData.getSizeZ() - 1; z++)
-                field3D.setSlice(z, new ROI2DRectangle(0, 0, inputData.getWidth(), inputData.getHeight()));
-            field = field3D;
+            field = EvolutionField.wholeImage(inputData.getSizeX(), inputData.getSizeY(), inputData.getSizeZ());
         }
         
         int iter = 0;
@@ -897,6 +1863,10 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         
         evolvingContoursAtTimeT.clear();
         
+        // the display is refreshed at most every refreshPeriod nanoseconds
+        long refreshPeriod = 1000000000L / display_refreshRate.getValue();
+        long nextRefresh = System.nanoTime();
+        
         while (!globalStop && nbConvergedContours < allContoursAtTimeT.size())
         {
             nbConvergedContours = 0;
@@ -916,7 +1886,11 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                 evolvingContoursAtTimeT.add(contour);
             }
             
-            if (getUI() != null)
+            long now = System.nanoTime();
+            boolean refreshDisplay = now - nextRefresh >= 0;
+            if (refreshDisplay) nextRefresh = now + refreshPeriod;
+            
+            if (getUI() != null && refreshDisplay)
             {
                 if (nbConvergedContours == 0)
                 {
@@ -945,7 +1919,7 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                 for (ActiveContour contour : allContoursAtTimeT)
                 {
                     // make sure this contour's statistics exist
-                    if (region_cout.containsKey(trackGroup.getValue().getTrackSegmentWithDetection(contour))) continue;
+                    if (region_cout.containsKey(segmentsAtTimeT.get(contour))) continue;
                     
                     updateRegionStatistics = true;
                     break;
@@ -960,14 +1934,14 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             // compute energy
             // computeEnergy(mainService, allContours);
             
-            if (!Icy.getMainInterface().isHeadLess())
-            {
-                overlay.painterChanged();
-            }
+            if (refreshDisplay) refreshDisplay();
             
             if (iter > convergence_nbIter.getValue())
             {
-                System.out.println("[Active Contours] Converged on frame " + t + " in " + iter + " iterations");
+                // N.B.: workers only see their own frames (numbered from 0), and their parent reports
+                // the progress instead
+                if (!frameWorker) System.out.println("[Active Contours] Converged on frame " + t + " in " + iter + " iterations");
+                refreshDisplay();
                 return;
             }
             
@@ -979,7 +1953,34 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             }
         }
         
-        System.out.println("[Active Contours] Converged on frame " + t + " in " + iter + " iterations");
+        if (!frameWorker) System.out.println("[Active Contours] Converged on frame " + t + " in " + iter + " iterations");
+        refreshDisplay();
+    }
+    
+    /**
+     * Publishes the current geometry of the contours of the current frame for display (see
+     * {@link ActiveContour#publishSnapshot()}), and repaints the overlay
+     */
+    private void refreshDisplay()
+    {
+        if (overlay == null) return;
+        
+        for (ActiveContour contour : allContoursAtTimeT)
+            contour.publishSnapshot();
+        
+        repaintOverlay();
+    }
+    
+    /**
+     * Indexes the changes of the track group (see {@link ActiveContoursOverlay#updateIndex()}),
+     * and repaints the overlay. This method must be called in the thread modifying the track group
+     */
+    private void repaintOverlay()
+    {
+        if (overlay == null) return;
+        
+        overlay.updateIndex();
+        overlay.painterChanged();
     }
     
     /**
@@ -1005,12 +2006,25 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
      */
     public void deformContours(final ROI field)
     {
-        if (evolvingContoursAtTimeT.size() == 1 && allContoursAtTimeT.size() == 1)
+        deformContours(field == null ? null : EvolutionField.fromROI(field));
+    }
+    
+    /**
+     * Deform contours together
+     * 
+     * @param field
+     *            the allowed displacement field for all contours (see
+     *            {@link EvolutionField#wholeImage(int, int, int)} and
+     *            {@link EvolutionField#fromROI(ROI)})
+     */
+    public void deformContours(final EvolutionField field)
+    {
+        if (evolvingContoursAtTimeT.size() == 1 && allContoursAtTimeT.size() == 1 && !ContourPartitioner.isSplittable(evolvingContoursAtTimeT.iterator().next()))
         {
             // no multi-threading needed
             
             ActiveContour contour = evolvingContoursAtTimeT.iterator().next();
-            TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
+            TrackSegment segment = segmentsAtTimeT.get(contour);
             
             if (Math.abs(edge_weight.getValue()) > EPSILON)
             {
@@ -1048,167 +2062,300 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         }
         else
         {
-            ArrayList<Callable<ActiveContour>> tasks = new ArrayList<Callable<ActiveContour>>(evolvingContoursAtTimeT.size());
+            final HashMap<ActiveContour, TrackSegment> segments = new HashMap<ActiveContour, TrackSegment>(evolvingContoursAtTimeT.size());
             
-            for (final ActiveContour contour : evolvingContoursAtTimeT)
+            for (ActiveContour contour : evolvingContoursAtTimeT)
             {
-                final TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
+                TrackSegment segment = segmentsAtTimeT.get(contour);
                 
                 if (!region_cin.containsKey(segment) && region_weight.getValue() > EPSILON) updateRegionStatistics();
                 
-                tasks.add(new Callable<ActiveContour>()
+                segments.put(contour, segment);
+            }
+            
+            // the principal axis is a global property of each contour (cached with its
+            // meta-data), and must be known before the contours are split into vertex ranges
+            final HashMap<ActiveContour, Vector3d> axes = new HashMap<ActiveContour, Vector3d>(evolvingContoursAtTimeT.size());
+            
+            if (axis_weight.getValue() > EPSILON)
+            {
+                for (ActiveContour contour : evolvingContoursAtTimeT)
+                {
+                    Vector3d axis = contour.getMajorAxis();
+                    axis.normalize();
+                    axes.put(contour, axis);
+                }
+            }
+            
+            // 1) compute the forces over balanced work units: small contours are batched together,
+            // while large contours are split into independent vertex ranges
+            
+            // N.B.: the vertex slots don't change until the next re-sampling, so the same units
+            // are reused to move the contours
+            final List<List<Slice>> units = ContourPartitioner.partition(evolvingContoursAtTimeT, nbThreads);
+            
+            ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            
+            for (final List<Slice> unit : units)
+            {
+                tasks.add(new Callable<Object>()
                 {
-                    public ActiveContour call()
+                    public Object call()
                     {
-                        
-                        if (regul_weight.getValue() > EPSILON)
-                        {
-                            contour.computeInternalForces(regul_weight.getValue());
-                        }
-                        
-                        if (Math.abs(edge_weight.getValue()) > EPSILON)
-                        {
-                            contour.computeEdgeForces(edgeData, 0, edge_weight.getValue());
-                        }
-                        
-                        if (region_weight.getValue() > EPSILON)
-                        {
-                            double cin = region_cin.get(segment);
-                            double cout = region_cout.get(segment);
-                            contour.computeRegionForces(region_data, 0, region_weight.getValue(), region_sensitivity.getValue(), cin, cout);
-                        }
-                        
-                        if (axis_weight.getValue() > EPSILON)
-                        {
-                            contour.computeAxisForces(axis_weight.getValue());
-                        }
-                        
-                        if (Math.abs(balloon_weight.getValue()) > EPSILON)
+                        for (Slice slice : unit)
                         {
-                            contour.computeBalloonForces(balloon_weight.getValue());
-                        }
-                        
-                        if (coupling_flag.getValue())
-                        {
-                            // Don't move the contours just now: coupling feedback must be computed
-                            // against ALL contours (including those which have already converged)
-                            for (ActiveContour otherContour : allContoursAtTimeT)
+                            ActiveContour contour = slice.contour;
+                            int from = slice.from, to = slice.to;
+                            
+                            if (regul_weight.getValue() > EPSILON)
                             {
-                                if (otherContour == null || otherContour == contour) continue;
-                                
-                                contour.computeFeedbackForces(otherContour);
+                                contour.computeInternalForces(regul_weight.getValue(), from, to);
                             }
                             
-                            if (volume_constraint.getValue() && volumes.containsKey(segment))
+                            if (Math.abs(edge_weight.getValue()) > EPSILON)
                             {
-                                contour.computeVolumeConstraint(volumes.get(segment));
+                                contour.computeEdgeForces(edgeData, 0, edge_weight.getValue(), from, to);
+                            }
+                            
+                            if (region_weight.getValue() > EPSILON)
+                            {
+                                TrackSegment segment = segments.get(contour);
+                                double cin = region_cin.get(segment);
+                                double cout = region_cout.get(segment);
+                                contour.computeRegionForces(region_data, 0, region_weight.getValue(), region_sensitivity.getValue(), cin, cout, from, to);
+                            }
+                            
+                            if (axis_weight.getValue() > EPSILON)
+                            {
+                                contour.computeAxisForces(axis_weight.getValue(), axes.get(contour), from, to);
+                            }
+                            
+                            if (Math.abs(balloon_weight.getValue()) > EPSILON)
+                            {
+                                contour.computeBalloonForces(balloon_weight.getValue(), from, to);
+                            }
+                            
+                            if (coupling_flag.getValue())
+                            {
+                                // Don't move the contours just now: coupling feedback must be
+                                // computed against ALL contours (including those which have
+                                // already converged)
+                                for (ActiveContour otherContour : allContoursAtTimeT)
+                                {
+                                    if (otherContour == null || otherContour == contour) continue;
+                                    
+                                    contour.computeFeedbackForces(otherContour, from, to);
+                                }
                             }
-                        }
-                        else
-                        {
-                            // move contours asynchronously
-                            contour.move(field, contour_timeStep.getValue());
                         }
                         
-                        return contour;
+                        return null;
                     }
                 });
             }
             
-            try
+            if (!invokeAll(tasks)) return;
+            
+            // 2) all forces are known (and contours can no longer penetrate each other's
+            // unmoved position) => apply the global constraints...
+            
+            final List<List<ActiveContour>> batches = ContourPartitioner.batch(evolvingContoursAtTimeT, nbThreads);
+            
+            if (coupling_flag.getValue() && volume_constraint.getValue())
             {
-                for (Future<ActiveContour> future : multiThreadService.invokeAll(tasks))
-                    try
-                    {
-                        future.get();
-                    }
-                    catch (ExecutionException e)
+                ArrayList<Callable<Object>> volumeTasks = new ArrayList<Callable<Object>>();
+                
+                for (final List<ActiveContour> batch : batches)
+                {
+                    volumeTasks.add(new Callable<Object>()
                     {
-                        throw new RuntimeException(e.getCause());
-                    }
-            }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                return;
+                        public Object call()
+                        {
+                            for (ActiveContour contour : batch)
+                            {
+                                TrackSegment segment = segments.get(contour);
+                                
+                                if (volumes.containsKey(segment)) contour.computeVolumeConstraint(volumes.get(segment));
+                            }
+                            return null;
+                        }
+                    });
+                }
+                
+                if (!invokeAll(volumeTasks)) return;
             }
-            catch (RejectedExecutionException e)
+            
+            // 3) ...move the vertices (over the same units as the forces)...
+            
+            ArrayList<Callable<Object>> moveTasks = new ArrayList<Callable<Object>>();
+            
+            for (final List<Slice> unit : units)
             {
-                Thread.currentThread().interrupt();
-                return;
+                moveTasks.add(new Callable<Object>()
+                {
+                    public Object call()
+                    {
+                        for (Slice slice : unit)
+                            slice.contour.move(field, contour_timeStep.getValue(), slice.from, slice.to);
+                        return null;
+                    }
+                });
             }
             
-            if (coupling_flag.getValue())
+            if (!invokeAll(moveTasks)) return;
+            
+            // 4) ...and update the meta-data and convergence criterion of each contour
+            
+            ArrayList<Callable<Object>> commitTasks = new ArrayList<Callable<Object>>();
+            
+            for (final List<ActiveContour> batch : batches)
             {
-                // motion is synchronous, and can be done now
-                for (ActiveContour contour : evolvingContoursAtTimeT)
-                    contour.move(field, contour_timeStep.getValue());
+                commitTasks.add(new Callable<Object>()
+                {
+                    public Object call()
+                    {
+                        for (ActiveContour contour : batch)
+                            contour.commitMove();
+                        return null;
+                    }
+                });
             }
+            
+            invokeAll(commitTasks);
         }
     }
     
     /**
-     * Resample all contours to maintain a homogeneous resoltution
+     * Runs the specified tasks on the thread pool and waits for their completion
+     * 
+     * @param tasks
+     *            the tasks to run
+     * @return <code>true</code> if all tasks completed, <code>false</code> if the current thread
+     *         was interrupted in the meantime
+     */
+    private boolean invokeAll(Collection<? extends Callable<Object>> tasks)
+    {
+        return invokeAll(multiThreadService, tasks);
+    }
+    
+    /**
+     * Runs the specified frame or time chunk tasks in parallel, and waits for their completion.
+     * Within a batch, the tasks are queued on the frame pool shared by all jobs (such that the
+     * number of frames processed at once does not grow with the number of jobs), otherwise they run
+     * on a dedicated thread pool of the specified size
+     * 
+     * @return <code>false</code> if the current thread was interrupted while waiting
+     */
+    private boolean invokeFrameTasks(int nbThreads, Collection<? extends Callable<Object>> tasks)
+    {
+        if (frameService != null) return invokeAll(frameService, tasks);
+        
+        Processor service = new Processor(nbThreads);
+        service.setThreadName("Active Contours (frames)");
+        
+        try
+        {
+            return invokeAll(service, tasks);
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+    }
+    
+    /**
+     * Runs the specified tasks on the specified thread pool, and waits for their completion
+     * 
+     * @return <code>false</code> if the current thread was interrupted while waiting
+     */
+    private static boolean invokeAll(Processor service, Collection<? extends Callable<Object>> tasks)
+    {
+        try
+        {
+            for (Future<Object> future : service.invokeAll(tasks))
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    throw new RuntimeException(e.getCause());
+                }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (RejectedExecutionException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Gives the specified (newly created) contour a reproducible colour, if the
+     * {@link #deterministic} mode is active
+     * 
+     * @param contour
+     */
+    private void assignColor(ActiveContour contour)
+    {
+        if (!deterministic.getValue()) return;
+        
+        contour.setColor(Color.getHSBColor(colorGenerator.nextFloat(), 0.8f, 0.9f));
+    }
+    
+    /**
+     * Resample all contours to maintain a homogeneous resoltution. Contours that divide are
+     * replaced by their children, which are re-sampled in turn (and so on until no more topology
+     * changes occur), while contours that have been re-sampled successfully are left alone.
      * 
-     * @param evolvingContours
-     * @param allContours
      * @param t
-     * @return <code>true</code> if the list of contours has changed (a contour has vanished or
-     *         divided), <code>false</code> otherwise
      */
     private void resampleContours(final int t)
     {
         // if (isHeadLess()) System.out.println("=> Resampling contours...");
         
-        final VarBoolean loop = new VarBoolean("loop", true);
+        final ConcurrentLinkedQueue<TopologyChange> changes = new ConcurrentLinkedQueue<TopologyChange>();
         
-        final VarBoolean change = new VarBoolean("change", false);
+        // contours to re-sample in the current round
+        ArrayList<ActiveContour> worklist = new ArrayList<ActiveContour>(evolvingContoursAtTimeT);
         
-        int maxIterations = 10000;
+        boolean changed = false;
         
-        int itCount = 0;
-        while (loop.getValue())
+        // each round processes the children of the previous round, so this is only a safeguard
+        // against contours that would keep dividing into contours that divide...
+        int maxRounds = 100;
+        
+        for (int round = 0; !worklist.isEmpty(); round++)
         {
-            if (itCount++ > maxIterations || Thread.currentThread().isInterrupted()) break;
+            if (round >= maxRounds || Thread.currentThread().isInterrupted()) break;
+            
+            ArrayList<ReSampler> tasks = new ArrayList<ReSampler>(worklist.size());
             
-            loop.setValue(false);
+            for (final ActiveContour contour : worklist)
+                tasks.add(new ReSampler(contour, tasks.size(), changes));
             
-            if (evolvingContoursAtTimeT.size() == 1)
+            if (tasks.size() == 1)
             {
                 // no multi-threading needed
-                Iterator<ActiveContour> iterator = evolvingContoursAtTimeT.iterator();
-                if (iterator.hasNext())
-                {
-                    ActiveContour contour = evolvingContoursAtTimeT.iterator().next();
-                    ReSampler reSampler = new ReSampler(trackGroup.getValue(), contour, evolvingContoursAtTimeT, allContoursAtTimeT);
-                    if (reSampler.call())
-                    {
-                        change.setValue(true);
-                        loop.setValue(true);
-                    }
-                }
+                tasks.get(0).call();
             }
             else
             {
-                ArrayList<ReSampler> tasks = new ArrayList<ReSampler>(evolvingContoursAtTimeT.size());
-                
-                for (final ActiveContour contour : evolvingContoursAtTimeT)
-                    tasks.add(new ReSampler(trackGroup.getValue(), contour, evolvingContoursAtTimeT, allContoursAtTimeT));
-                
                 try
                 {
                     for (Future<Boolean> resampled : multiThreadService.invokeAll(tasks))
-                    {
-                        if (resampled.get())
-                        {
-                            change.setValue(true);
-                            loop.setValue(true);
-                        }
-                    }
+                        resampled.get();
                 }
                 catch (InterruptedException e)
                 {
                     Thread.currentThread().interrupt();
+                    break;
                 }
                 catch (ExecutionException e)
                 {
@@ -1219,11 +2366,90 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                 {
                     throw e;
                 }
+            }
+            
+            // the next round only processes the newly created contours
+            worklist = new ArrayList<ActiveContour>();
+            
+            if (applyTopologyChanges(changes, worklist)) changed = true;
+        }
+        
+        if (changed && region_weight.getValue() > EPSILON) updateRegionStatistics();
+    }
+    
+    /**
+     * Applies (in one batch) the topology changes emitted by the {@link ReSampler}s to the contour
+     * sets and the track group. Changes are applied in the order of the re-sampled contours, so
+     * that the result does not depend on the order in which the tasks have completed.
+     * 
+     * @param changes
+     *            the change log to apply (emptied on return)
+     * @param newContours
+     *            a collection where the newly created contours (if any) will be added
+     * @return <code>true</code> if at least one contour has divided or vanished
+     */
+    private boolean applyTopologyChanges(Queue<TopologyChange> changes, Collection<ActiveContour> newContours)
+    {
+        if (changes.isEmpty()) return false;
+        
+        ArrayList<TopologyChange> log = new ArrayList<TopologyChange>(changes);
+        changes.clear();
+        Collections.sort(log);
+        
+        TrackGroup tracks = trackGroup.getValue();
+        
+        for (TopologyChange change : log)
+        {
+            ActiveContour contour = change.contour;
+            
+            contour.clean();
+            
+            // 1) remove it from the list of contours
+            
+            allContoursAtTimeT.remove(contour);
+            evolvingContoursAtTimeT.remove(contour);
+            
+            // 2) remove it from its segment
+            
+            TrackSegment currentSegment = segmentsAtTimeT.remove(contour);
+            
+            if (currentSegment != null)
+            {
+                currentSegment.removeDetection(contour);
+                
+                if (currentSegment.getDetectionList().size() == 0)
+                {
+                    // the current contour is the only detection in this segment
+                    // => remove the whole segment
+                    tracks.removeTrackSegment(currentSegment);
+                    currentSegment = null;
+                }
+            }
+            
+            // 3) deal with the children (if any)
+            
+            for (ActiveContour child : change.children)
+            {
+                child.setT(contour.getT());
+                assignColor(child);
+                allContoursAtTimeT.add(child);
+                evolvingContoursAtTimeT.add(child);
                 
+                // create the new track segment with the child contour
+                TrackSegment childSegment = new TrackSegment();
+                childSegment.addDetection(child);
+                tracks.addTrackSegment(childSegment);
+                segmentsAtTimeT.put(child, childSegment);
+                newContours.add(child);
+                
+                if (currentSegment != null) currentSegment.addNext(childSegment);
             }
         }
         
-        if (change.getValue() && region_weight.getValue() > EPSILON) updateRegionStatistics();
+        // stop displaying the removed contours right away
+        if (overlay != null) overlay.updateIndex();
+        
+        return true;
     }
     
     private void updateRegionStatistics()
@@ -1237,21 +2463,23 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         
         if (nbContours == 0) return;
         
-        // use a global mask for global statistics
-        if (!locally) for (BooleanMask2D slice : contourMask_buffer.mask.values())
-            Arrays.fill(slice.mask, false);
+        // all contours are rasterised into the mask (both the global and local background
+        // statistics measure what lies outside)
+        resetContourMask();
+        
+        ArrayList<LocalRegionStatisticsComputer> updaters = new ArrayList<LocalRegionStatisticsComputer>();
         
         if (nbContours == 1)
         {
             // use the current thread
-            new LocalRegionStatisticsComputer(allContoursAtTimeT.iterator().next(), !locally).call();
+            updaters.add(new LocalRegionStatisticsComputer(allContoursAtTimeT));
+            updaters.get(0).call();
         }
         else
         {
-            // use multiple threads
-            Collection<Callable<Object>> updaters = new ArrayList<Callable<Object>>(allContoursAtTimeT.size());
-            for (ActiveContour contour : allContoursAtTimeT)
-                updaters.add(new LocalRegionStatisticsComputer(contour, !locally));
+            // use multiple threads (on balanced batches of contours)
+            for (List<ActiveContour> batch : ContourPartitioner.batch(allContoursAtTimeT, nbThreads))
+                updaters.add(new LocalRegionStatisticsComputer(batch));
             
             try
             {
@@ -1271,34 +2499,56 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             }
         }
         
+        // merge the results (the shared maps and sets are not modified by the tasks themselves)
+        for (LocalRegionStatisticsComputer updater : updaters)
+        {
+            region_cin.putAll(updater.cin);
+            
+            for (ActiveContour contour : updater.invalidContours)
+            {
+                allContoursAtTimeT.remove(contour);
+                evolvingContoursAtTimeT.remove(contour);
+            }
+        }
+        
         updateBackgroundStatistics(locally);
     }
     
     private class LocalRegionStatisticsComputer implements Callable<Object>
     {
-        final ActiveContour contour;
-        final boolean maskBased;
+        final ArrayList<ActiveContour> contours;
         
-        public LocalRegionStatisticsComputer(ActiveContour contour, boolean maskBased)
+        /**
+         * The measured intensities (merged by the caller once all tasks have completed)
+         */
+        final HashMap<TrackSegment, Double> cin = new HashMap<TrackSegment, Double>();
+        
+        /**
+         * The contours that could not be measured (removed by the caller once all tasks have
+         * completed)
+         */
+        final ArrayList<ActiveContour> invalidContours = new ArrayList<ActiveContour>();
+        
+        public LocalRegionStatisticsComputer(Collection<ActiveContour> contours)
         {
-            this.contour = contour;
-            this.maskBased = maskBased;
+            // work on a copy, since contours may be removed from the original collection
+            this.contours = new ArrayList<ActiveContour>(contours);
         }
         
         @Override
         public Object call()
         {
-            try
-            {
-                double cin = contour.computeAverageIntensity(contour instanceof Mesh3D ? region_data : region_data_summed, maskBased ? contourMask_buffer : null);
-                region_cin.put(trackGroup.getValue().getTrackSegmentWithDetection(contour), cin);
-            }
-            catch (TopologyException topo)
-            {
-                System.err.println("Removing a contour. Reason: " + topo.getMessage());
-                allContoursAtTimeT.remove(contour);
-                evolvingContoursAtTimeT.remove(contour);
-            }
+            for (ActiveContour contour : contours)
+                try
+                {
+                    double value = contour.computeAverageIntensity(contour instanceof Mesh3D ? region_data : region_data_summed, contourMask_buffer);
+                    cin.put(segmentsAtTimeT.get(contour), value);
+                }
+                catch (TopologyException topo)
+                {
+                    System.err.println("Removing a contour. Reason: " + topo.getMessage());
+                    invalidContours.add(contour);
+                }
             return null;
         }
     }
@@ -1311,17 +2561,21 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         
         if (locally)
         {
+            if (!updateBackgroundIntegral()) return;
+            
+            ArrayList<LocalBackgroundStatisticsComputer> updaters = new ArrayList<LocalBackgroundStatisticsComputer>();
+            
             if (nbContours == 1)
             {
                 // use the current thread
-                new LocalBackgroundStatisticsComputer(allContoursAtTimeT.iterator().next()).call();
+                updaters.add(new LocalBackgroundStatisticsComputer(allContoursAtTimeT));
+                updaters.get(0).call();
             }
             else
             {
-                // use multiple threads
-                Collection<Callable<Object>> updaters = new ArrayList<Callable<Object>>(allContoursAtTimeT.size());
-                for (ActiveContour contour : allContoursAtTimeT)
-                    updaters.add(new LocalBackgroundStatisticsComputer(contour));
+                // use multiple threads (on balanced batches of contours)
+                for (List<ActiveContour> batch : ContourPartitioner.batch(allContoursAtTimeT, nbThreads))
+                    updaters.add(new LocalBackgroundStatisticsComputer(batch));
                 
                 try
                 {
@@ -1340,80 +2594,366 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
                     throw new RuntimeException(e);
                 }
             }
+            
+            for (LocalBackgroundStatisticsComputer updater : updaters)
+                region_cout.putAll(updater.cout);
         }
         else
         {
             double[] outs = new double[inputData.getSizeZ()];
             
+            // outside = whole slice - union of the contour interiors
+            double[] inSums = new double[outs.length];
+            int[] inCounts = new int[outs.length];
+            measureContourMask(inSums, inCounts);
+            
+            double sliceSize = (double) contourMask_buffer.bounds.sizeX * contourMask_buffer.bounds.sizeY;
+            
+            // slices entirely covered by the contours have no background (NaN), and are skipped
+            double meanOut = 0;
+            int nbBackgroundSlices = 0;
+            
             for (int z = 0; z < outs.length; z++)
             {
-                double outSumSlice = 0, outCptSlice = 0;
-                
-                boolean[] _mask = contourMask_buffer.mask.get(z).mask;
-                float[] _data = region_data.getDataXYAsFloat(0, z, 0);
-                
-                for (int i = 0; i < _mask.length; i++)
-                    if (!_mask[i])
-                    {
-                        outSumSlice += _data[i];
-                        outCptSlice++;
-                    }
+                if (inCounts[z] >= sliceSize)
+                {
+                    outs[z] = Double.NaN;
+                    continue;
+                }
                 
-                outs[z] = outSumSlice / outCptSlice;
+                outs[z] = (region_sliceSums[z] - inSums[z]) / (sliceSize - inCounts[z]);
+                meanOut += outs[z];
+                nbBackgroundSlices++;
             }
             
+            meanOut /= nbBackgroundSlices;
+            
             for (ActiveContour contour : allContoursAtTimeT)
             {
-                TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
-                if (contour instanceof Polygon2D)
-                {
-                    double cout = outs[(int) Math.round(contour.getZ())];
-                    region_cout.put(segment, cout);
-                    // System.out.println(" out: " + cout);
-                }
-                else
-                {
-                    double cout = ArrayMath.mean(outs);
-                    region_cout.put(segment, cout);
-                    // System.out.println(" out: " + cout);
-                }
+                TrackSegment segment = segmentsAtTimeT.get(contour);
+                
+                double cout = contour instanceof Polygon2D ? outs[(int) Math.round(contour.getZ())] : meanOut;
+                
+                // no background: keep the previous estimate (if any)
+                if (!Double.isNaN(cout)) region_cout.put(segment, cout);
+                // System.out.println(" out: " + cout);
             }
         }
     }
     
-    private class LocalBackgroundStatisticsComputer implements Callable<Object>
+    /**
+     * Clears the regions of the contour mask painted by the previous rasterisation (instead of the
+     * whole mask), and records the regions that the current contours are about to paint
+     */
+    private void resetContourMask()
     {
-        final ActiveContour contour;
+        Rectangle3D.Integer bounds = contourMask_buffer.bounds;
         
-        public LocalBackgroundStatisticsComputer(ActiveContour contour)
+        for (int[] box : contourMask_painted)
+            for (int z = box[4]; z < box[5]; z++)
+            {
+                boolean[] _mask = contourMask_buffer.mask.get(z).mask;
+                
+                for (int j = box[2]; j < box[3]; j++)
+                    Arrays.fill(_mask, box[0] + j * bounds.sizeX, box[1] + j * bounds.sizeX, false);
+            }
+        
+        contourMask_painted.clear();
+        
+        for (ActiveContour contour : allContoursAtTimeT)
         {
-            this.contour = contour;
+            int[] box = contour.getRasterBounds(region_data);
+            
+            box[0] = Math.max(0, box[0]);
+            box[1] = Math.min(bounds.sizeX, box[1]);
+            box[2] = Math.max(0, box[2]);
+            box[3] = Math.min(bounds.sizeY, box[3]);
+            box[4] = Math.max(0, box[4]);
+            box[5] = Math.min(bounds.sizeZ, box[5]);
+            
+            if (box[0] < box[1] && box[2] < box[3] && box[4] < box[5]) contourMask_painted.add(box);
         }
+    }
+    
+    /**
+     * Measures the total intensity and number of pixels covered by the union of all contours on
+     * each slice of the contour mask. Only the painted regions are scanned, and overlapping regions
+     * are merged along each line so that no pixel is counted twice
+     * 
+     * @param inSums
+     *            (output) the total intensity inside the contours, for each slice
+     * @param inCounts
+     *            (output) the number of pixels inside the contours, for each slice
+     */
+    private void measureContourMask(double[] inSums, int[] inCounts)
+    {
+        int sizeX = contourMask_buffer.bounds.sizeX;
         
-        @Override
-        public Object call()
+        // sort the regions from left to right (to merge them on the fly along each line)
+        ArrayList<int[]> boxes = new ArrayList<int[]>(contourMask_painted);
+        Collections.sort(boxes, new Comparator<int[]>()
         {
-            TrackSegment segment = trackGroup.getValue().getTrackSegmentWithDetection(contour);
+            @Override
+            public int compare(int[] box1, int[] box2)
+            {
+                return box1[0] - box2[0];
+            }
+        });
+        
+        ArrayList<int[]> sliceBoxes = new ArrayList<int[]>(boxes.size());
+        
+        for (int z = 0; z < inSums.length; z++)
+        {
+            sliceBoxes.clear();
+            int minY = Integer.MAX_VALUE, maxY = 0;
+            
+            for (int[] box : boxes)
+                if (box[4] <= z && z < box[5])
+                {
+                    sliceBoxes.add(box);
+                    minY = Math.min(minY, box[2]);
+                    maxY = Math.max(maxY, box[3]);
+                }
+            
+            if (sliceBoxes.isEmpty()) continue;
             
-            double cout = contour.computeBackgroundIntensity(region_data, contourMask_buffer);
+            boolean[] _mask = contourMask_buffer.mask.get(z).mask;
+            float[] _data = region_data.getDataXYAsFloat(0, z, 0);
             
-            region_cout.put(segment, cout);
+            double inSum = 0;
+            int inCount = 0;
+            
+            for (int j = minY; j < maxY; j++)
+            {
+                int lineOffset = j * sizeX;
+                
+                // all pixels of the line left of this position have been scanned already
+                int scanned = 0;
+                
+                for (int[] box : sliceBoxes)
+                {
+                    if (j < box[2] || j >= box[3] || box[1] <= scanned) continue;
+                    
+                    for (int offset = lineOffset + Math.max(box[0], scanned); offset < lineOffset + box[1]; offset++)
+                        if (_mask[offset])
+                        {
+                            inSum += _data[offset];
+                            inCount++;
+                        }
+                    
+                    scanned = box[1];
+                }
+            }
+            
+            inSums[z] = inSum;
+            inCounts[z] = inCount;
+        }
+    }
+    
+    /**
+     * Rebuilds the integral images of the region data outside the (freshly rasterised) contour
+     * mask, one slice per task
+     * 
+     * @return <code>false</code> if the update was interrupted
+     */
+    private boolean updateBackgroundIntegral()
+    {
+        final int sizeZ = region_data.getSizeZ();
+        
+        if (backgroundIntegral == null || backgroundIntegral.sizeX != region_data.getSizeX() || backgroundIntegral.sizeY != region_data.getSizeY() || backgroundIntegral.sizeZ != sizeZ)
+        {
+            backgroundIntegral = new MaskedIntegralImage(region_data.getSizeX(), region_data.getSizeY(), sizeZ);
+        }
+        
+        if (sizeZ == 1)
+        {
+            backgroundIntegral.computeSlice(0, region_data.getDataXYAsFloat(0, 0, 0), contourMask_buffer.mask.get(0).mask);
+        }
+        else
+        {
+            ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(sizeZ);
+            
+            for (int z = 0; z < sizeZ; z++)
+            {
+                final int slice = z;
+                
+                tasks.add(new Callable<Object>()
+                {
+                    @Override
+                    public Object call()
+                    {
+                        backgroundIntegral.computeSlice(slice, region_data.getDataXYAsFloat(0, slice, 0), contourMask_buffer.mask.get(slice).mask);
+                        return null;
+                    }
+                });
+            }
+            
+            if (!invokeAll(tasks)) return false;
+        }
+        
+        backgroundIntegral.accumulateSlices();
+        
+        return true;
+    }
+    
+    private class LocalBackgroundStatisticsComputer implements Callable<Object>
+    {
+        final ArrayList<ActiveContour> contours;
+        
+        /**
+         * The measured intensities (merged by the caller once all tasks have completed)
+         */
+        final HashMap<TrackSegment, Double> cout = new HashMap<TrackSegment, Double>();
+        
+        public LocalBackgroundStatisticsComputer(Collection<ActiveContour> contours)
+        {
+            this.contours = new ArrayList<ActiveContour>(contours);
+        }
+        
+        @Override
+        public Object call()
+        {
+            for (ActiveContour contour : contours)
+            {
+                TrackSegment segment = segmentsAtTimeT.get(contour);
+                
+                cout.put(segment, contour.computeBackgroundIntensity(region_data, backgroundIntegral));
+            }
             
             return null;
         }
     }
     
-    private void storeResult(int t)
+    /**
+     * Sends the ROI of the specified frame to the result sink
+     */
+    private void sendResults(int t, List<ROI> rois)
+    {
+        try
+        {
+            frameSink.frameCompleted(t, rois);
+        }
+        catch (IOException e)
+        {
+            throw new IcyHandledException("Active contours: couldn't store the results of frame " + t + ": " + e.getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            // the frame is lost, but the evolution will stop as well (when exporting in the
+            // background, the interruption is reported by awaitExport())
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Notifies the result sink that the run has completed (the results gathered in memory, if
+     * any, are then made available in {@link #roiOutput})
+     */
+    private void closeResults()
+    {
+        try
+        {
+            frameSink.close();
+        }
+        catch (IOException e)
+        {
+            throw new IcyHandledException("Active contours: couldn't store the results: " + e.getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (frameSink instanceof ResultSink.Memory)
+        {
+            ArrayList<ROI> rois = new ArrayList<ROI>(Arrays.asList(((ResultSink.Memory) frameSink).getROIs()));
+            if (!deferredContours.isEmpty()) rois.addAll(createDeferredROI());
+            if (rois.size() > 0) roiOutput.setValue(rois.toArray(new ROI[rois.size()]));
+        }
+    }
+    
+    /**
+     * Creates the ROI of the contours stored during the run (see {@link #output_deferROI}), in
+     * parallel
+     * 
+     * @return the ROI (in storage order)
+     */
+    private List<ROI> createDeferredROI()
+    {
+        final ROI[] rois = new ROI[deferredContours.size()];
+        
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        
+        int blockSize = (rois.length + nbThreads - 1) / nbThreads;
+        
+        for (int from = 0; from < rois.length; from += blockSize)
+        {
+            final int start = from, end = Math.min(rois.length, from + blockSize);
+            
+            tasks.add(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    for (int i = start; i < end; i++)
+                        rois[i] = createROI(deferredContours.get(i), deferredNames.get(i));
+                    
+                    return null;
+                }
+            });
+        }
+        
+        invokeAll(tasks);
+        
+        deferredContours.clear();
+        deferredNames.clear();
+        
+        ArrayList<ROI> created = new ArrayList<ROI>(rois.length);
+        for (ROI roi : rois)
+            if (roi != null) created.add(roi);
+        
+        return created;
+    }
+    
+    /**
+     * @param contour
+     * @param name
+     * @return the ROI of the specified contour (in the requested type), or <code>null</code> if
+     *         the contour cannot be exported
+     */
+    private ROI createROI(ActiveContour contour, String name)
+    {
+        ROI roi = contour.toROI(output_roiType.getValue(), inputData);
+        
+        if (roi != null)
+        {
+            roi.setName(name);
+            roi.setColor(contour.getColor());
+        }
+        
+        return roi;
+    }
+    
+    /**
+     * Stores the results of the specified frame. The contours of the frame are gathered right away,
+     * and then exported (see {@link #exportFrame(int, List, List, List)}) either in this
+     * thread, or in the background while the next frame is being processed (see
+     * {@link #exportService}). Frames are always exported in order
+     * 
+     * @param t
+     */
+    private void storeResult(final int t)
     {
-        if (isHeadLess()) System.out.println("=> Storing result...");
+        if (isVerbose()) System.out.println("=> Storing result...");
         
-        boolean noResultsOnCurrentFrame = true;
+        awaitExport();
         
         ArrayList<TrackSegment> segments = trackGroup.getValue().getTrackSegmentList();
         
-        ArrayList<ROI> rois = null;
-        // Append the current list to the existing one
-        rois = new ArrayList<ROI>(Arrays.asList(roiOutput.getValue()));
+        final ArrayList<TrackSegment> frameSegments = new ArrayList<TrackSegment>();
+        final ArrayList<ActiveContour> contours = new ArrayList<ActiveContour>();
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<Integer> labels = new ArrayList<Integer>();
         
         int nbPaddingDigits = (int) Math.floor(Math.log10(segments.size()));
         
@@ -1424,60 +2964,354 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
             ActiveContour contour = (ActiveContour) segment.getDetectionAtTime(t);
             if (contour == null) continue;
             
-            noResultsOnCurrentFrame = false;
+            String name = contour.getName();
+            if (name == null || name.isEmpty()) name = "Object #" + StringUtil.toString(i, nbPaddingDigits + 1);
             
-            // Update volume information
-            if (!volumes.containsKey(segment))
+            // contours processed elsewhere (e.g. in time chunks) have never been displayed
+            if (overlay != null) contour.publishSnapshot();
+            
+            frameSegments.add(segment);
+            contours.add(contour);
+            names.add(name);
+            labels.add(i);
+        }
+        
+        // stop everything if there are no more contours to evolve
+        if (contours.isEmpty() && !tracking_newObjects.getValue()) globalStop = true;
+        
+        // the volumes are read by the next frame (volume constraint), hence they are measured here
+        // rather than during the export (which may still be running in the background by then)
+        measureVolumes(frameSegments, contours);
+        
+        if (exportService == null)
+        {
+            exportFrame(t, contours, names, labels);
+        }
+        else
+        {
+            pendingExport = exportService.submit(new Callable<Object>()
             {
-                volumes.put(segment, contour.getDimension(2));
-            }
+                @Override
+                public Object call() throws InterruptedException
+                {
+                    exportFrame(t, contours, names, labels);
+                    
+                    // the result sink was interrupted (see sendResults()), and the frame was not
+                    // delivered: report it to the evolution thread (see awaitExport())
+                    if (Thread.interrupted()) throw new InterruptedException("the results of frame " + t + " were not delivered");
+                    
+                    return null;
+                }
+            });
+        }
+    }
+    
+    /**
+     * Measures the volume of the contours starting a new track (volumes are only measured on the
+     * first frame of each track)
+     * 
+     * @param segments
+     *            the track segment of each contour
+     * @param contours
+     *            the contours of the frame
+     */
+    private void measureVolumes(List<TrackSegment> segments, final List<ActiveContour> contours)
+    {
+        final ArrayList<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < segments.size(); i++)
+            if (!volumes.containsKey(segments.get(i))) indices.add(i);
+        
+        final int n = indices.size();
+        if (n == 0) return;
+        
+        final double[] frameVolumes = new double[n];
+        
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        
+        int blockSize = Math.max(1, (n + nbThreads - 1) / nbThreads);
+        
+        for (int from = 0; from < n; from += blockSize)
+        {
+            final int start = from, end = Math.min(n, from + blockSize);
             
-            // output as ROIs
-            ROI roi = contour.toROI(output_roiType.getValue(), inputData);
-            if (roi != null)
+            tasks.add(new Callable<Object>()
             {
-                if (contour.getName() == null || contour.getName().isEmpty())
+                @Override
+                public Object call()
                 {
-                    roi.setName("Object #" + StringUtil.toString(i, nbPaddingDigits + 1));
+                    for (int k = start; k < end; k++)
+                        frameVolumes[k] = contours.get(indices.get(k)).getDimension(2);
+                    
+                    return null;
                 }
-                else
+            });
+        }
+        
+        // interrupted: the evolution will stop anyway
+        if (!invokeAll(tasks)) return;
+        
+        for (int k = 0; k < n; k++)
+            volumes.put(segments.get(indices.get(k)), frameVolumes[k]);
+    }
+    
+    /**
+     * Waits for the export of the previous frame (if any) to complete. The export is never
+     * abandoned (if the current thread is interrupted, it is interrupted again once the export
+     * has completed)
+     */
+    private void awaitExport()
+    {
+        if (pendingExport == null) return;
+        
+        boolean interrupted = false;
+        
+        try
+        {
+            while (true)
+                try
                 {
-                    roi.setName(contour.getName());
+                    pendingExport.get();
+                    break;
                 }
-                roi.setColor(contour.getColor());
-                rois.add(roi);
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof InterruptedException)
+            {
+                // stop the evolution as well
+                System.err.println("Warning: the export was interrupted, " + e.getCause().getMessage());
+                interrupted = true;
+                return;
             }
             
-            // output labels
-            if (output_labels.isReferenced() || output_rois.getValue() == ExportROI.AS_LABELS)
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        finally
+        {
+            pendingExport = null;
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Exports the contours of a frame: the ROI and labels are computed in parallel, and
+     * then assembled in track order (regardless of the number of threads) and sent to the result
+     * sink
+     * 
+     * @param t
+     *            the frame
+     * @param contours
+     *            the contours of the frame
+     * @param names
+     *            the ROI name of each contour
+     * @param labels
+     *            the label of each contour
+     */
+    private void exportFrame(int t, final List<ActiveContour> contours, final List<String> names, List<Integer> labels)
+    {
+        final int n = contours.size();
+        
+        final ROI[] rois = new ROI[n];
+        
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        
+        int blockSize = Math.max(1, (n + nbThreads - 1) / nbThreads);
+        
+        for (int from = 0; from < n; from += blockSize)
+        {
+            final int start = from, end = Math.min(n, from + blockSize);
+            
+            tasks.add(new Callable<Object>()
             {
-                Sequence binSeq = output_labels.getValue();
-                if (binSeq == null)
-                {
-                    output_labels.setValue(binSeq = new Sequence());
-                }
-                if (binSeq.getImage(t, (int) contour.getZ()) == null)
+                @Override
+                public Object call()
                 {
-                    binSeq.setImage(t, (int) contour.getZ(), new IcyBufferedImage(inputData.getWidth(), inputData.getHeight(), 1, DataType.USHORT));
+                    for (int i = start; i < end; i++)
+                    {
+                        if (!deferROI) rois[i] = createROI(contours.get(i), names.get(i));
+                    }
+                    
+                    return null;
                 }
-                contour.toSequence(binSeq, i);
+            });
+        }
+        
+        // output labels
+        boolean exportLabels = n > 0 && (output_labels.isReferenced() || output_rois.getValue() == ExportROI.AS_LABELS);
+        
+        if (exportLabels) tasks.addAll(createLabelTasks(t, contours, labels));
+        
+        invokeAll(tasks);
+        
+        // assemble the results in track order
+        ArrayList<ROI> frameROIs = new ArrayList<ROI>(n);
+        
+        for (int i = 0; i < n; i++)
+        {
+            if (deferROI)
+            {
+                deferredContours.add(contours.get(i));
+                deferredNames.add(names.get(i));
             }
+            else if (rois[i] != null) frameROIs.add(rois[i]);
         }
         
+        if (exportLabels && labelStack != null) flushLabels(t);
+        
         if (output_labels.getValue() != null) output_labels.getValue().dataChanged();
         
-        if (rois.size() > 0) roiOutput.setValue(rois.toArray(new ROI[0]));
+        sendResults(t, frameROIs);
+    }
+    
+    /**
+     * Creates the label slices covered by the specified contours, and the tasks painting the
+     * contours onto these slices (one task per slice)
+     * 
+     * @param t
+     *            the frame to paint
+     * @param contours
+     *            the contours of that frame
+     * @param labels
+     *            the label of each contour
+     * @return the painting tasks
+     */
+    private List<Callable<Object>> createLabelTasks(int t, List<ActiveContour> contours, List<Integer> labels)
+    {
+        Sequence binSeq = output_labels.getValue();
+        if (binSeq == null)
+        {
+            output_labels.setValue(binSeq = new Sequence());
+        }
         
-        // stop everything if there are no more contours to evolve
-        if (noResultsOnCurrentFrame && !tracking_newObjects.getValue()) globalStop = true;
+        // create the slices covered by the contours beforehand (the sequence is not thread-safe)
+        for (ActiveContour contour : contours)
+        {
+            int[] bounds = contour.getRasterBounds(inputData);
+            
+            for (int z = Math.max(0, bounds[4]); z < Math.min(inputData.getSizeZ(), bounds[5]); z++)
+                if (binSeq.getImage(t, z) == null)
+                {
+                    binSeq.setImage(t, z, new IcyBufferedImage(inputData.getWidth(), inputData.getHeight(), 1, DataType.USHORT));
+                }
+        }
+        
+        double[] values = new double[labels.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = labels.get(i);
+        
+        return LabelRenderer.createTasks(binSeq, t, contours, values, inputData, nbThreads);
+    }
+    
+    /**
+     * Writes a frame of the label sequence to the label file, and removes it from memory
+     * 
+     * @param t
+     */
+    private void flushLabels(int t)
+    {
+        Sequence binSeq = output_labels.getValue();
+        
+        try
+        {
+            labelStack.writeFrame(t, binSeq);
+        }
+        catch (IOException e)
+        {
+            throw new IcyHandledException("Active contours: couldn't write the labels of frame " + t + ": " + e.getMessage());
+        }
+        
+        binSeq.beginUpdate();
+        try
+        {
+            int sizeZ = binSeq.getSizeZ(t);
+            for (int z = 0; z < sizeZ; z++)
+                binSeq.removeImage(t, z);
+        }
+        finally
+        {
+            binSeq.endUpdate();
+        }
+    }
+    
+    /**
+     * Closes the label file (if any), and opens a view over that file if the labels are to be
+     * displayed (see {@link #output_labelView}). The labels output is cleared, since the labels
+     * are only available from the file
+     */
+    private void closeLabels()
+    {
+        if (labelStack == null) return;
+        
+        File labelFile = output_labelFile.getValue();
+        
+        try
+        {
+            labelStack.close();
+            labelStack = null;
+            
+            // the view is closed along with its viewer
+            if (output_labelView.getValue() && getUI() != null && output_rois.getValue() == ExportROI.AS_LABELS)
+            {
+                LabelStack stack = LabelStack.open(labelFile);
+                try
+                {
+                    labelView = stack.createView();
+                }
+                catch (IOException e)
+                {
+                    stack.close();
+                    throw e;
+                }
+            }
+            
+            output_labels.setValue(null);
+        }
+        catch (IOException e)
+        {
+            throw new IcyHandledException("Active contours: couldn't read the label file " + labelFile.getPath() + ": " + e.getMessage());
+        }
+    }
+    
+    private void stopExportService()
+    {
+        if (exportService == null) return;
+        
+        exportService.shutdown();
+        exportService = null;
     }
     
     @Override
     public void clean()
     {
+        stopExportService();
+        if (checkpointWriter != null)
+        {
+            // interrupted run
+            checkpointWriter.shutdown();
+            checkpointWriter = null;
+            pendingCheckpoint = null;
+        }
         if (inputData != null) inputData.removeOverlay(overlay);
         if (trackGroup.getValue() != null) trackGroup.getValue().clearAllTrackSegment();
-        multiThreadService.shutdownNow();
+        if (labelStack != null)
+        {
+            // interrupted run
+            try
+            {
+                labelStack.close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Warning: couldn't close the label file: " + e.getMessage());
+            }
+            labelStack = null;
+        }
+        releaseThreadPool();
     }
     
     @Override
@@ -1517,11 +3351,19 @@ public class ActiveContours extends EzPlug implements EzStoppable, Block
         inputMap.add("convergence value", convergence_criterion.getVariable());
         inputMap.add("max. iterations", convergence_nbIter.getVariable());
         inputMap.add("type of ROI output", output_roiType.getVariable());
+        inputMap.add("defer ROI creation", output_deferROI.getVariable());
+        inputMap.add("label file", output_labelFile.getVariable());
         inputMap.add("tracking", tracking.getVariable());
+        inputMap.add("independent frames", independent_frames.getVariable());
+        inputMap.add("parallel time chunks", tracking_chunks.getVariable());
+        inputMap.add("chunk overlap", tracking_chunkOverlap.getVariable());
+        inputMap.add("checkpoint file", tracking_checkpoint.getVariable());
+        inputMap.add("checkpoint interval", tracking_checkpointInterval.getVariable());
         inputMap.add("division sensitivity", division_sensitivity.getVariable());
         inputMap.add("axis constraint", axis_weight.getVariable());
         inputMap.add("volume constraint", volume_constraint.getVariable());
         inputMap.add("watch entering objects", tracking_newObjects.getVariable());
+        inputMap.add("reproducible results", deterministic.getVariable());
     }
     
     @Override
@@ -0,0 +1,309 @@
+package plugins.adufour.activecontours;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import icy.sequence.Sequence;
+import icy.system.SystemUtil;
+import icy.system.thread.Processor;
+
+/**
+ * Runs several active contour jobs (e.g. one per sequence) concurrently in the same JVM. All jobs
+ * share a single thread pool (instead of creating one pool per job), as well as a second pool for
+ * the jobs processing several frames or time chunks in parallel. Jobs are admitted in submission
+ * order as long as their estimated memory footprint fits within a memory budget (at least one job
+ * is always running). Typical usage:
+ * 
+ * <pre>
+ * ActiveContoursBatch batch = new ActiveContoursBatch();
+ * for (Sequence sequence : sequences)
+ * {
+ *     ActiveContours job = batch.createJob();
+ *     job.input.setValue(sequence);
+ *     job.roiInput.setValue(seeds);
+ *     // set other parameters...
+ *     batch.submit(sequence.getName(), job);
+ * }
+ * batch.run();
+ * batch.shutdown();
+ * </pre>
+ * 
+ * @author Alexandre Dufour
+ */
+public class ActiveContoursBatch
+{
+    /**
+     * Receives notifications about the jobs of a batch. Notifications are sent from the thread
+     * running each job
+     */
+    public interface Listener
+    {
+        void jobStarted(Job job);
+        
+        /**
+         * @param job
+         * @param progress
+         *            the fraction of the job completed so far (between 0 and 1)
+         */
+        void jobProgress(Job job, double progress);
+        
+        /**
+         * @param job
+         * @param error
+         *            the error that stopped the job, or <code>null</code> if the job completed
+         *            normally
+         */
+        void jobFinished(Job job, Throwable error);
+    }
+    
+    /**
+     * A job of the batch
+     */
+    public final class Job
+    {
+        private final String name;
+        
+        private final ActiveContours plugin;
+        
+        private final long memory;
+        
+        private volatile double progress = 0;
+        
+        private volatile Throwable error;
+        
+        private Job(String name, ActiveContours plugin, long memory)
+        {
+            this.name = name;
+            this.plugin = plugin;
+            this.memory = memory;
+        }
+        
+        public String getName()
+        {
+            return name;
+        }
+        
+        /**
+         * @return the plug-in instance running this job (results can be retrieved from its output
+         *         variables once the job has finished)
+         */
+        public ActiveContours getPlugin()
+        {
+            return plugin;
+        }
+        
+        /**
+         * @return the estimated memory footprint of this job (in bytes)
+         */
+        public long getMemory()
+        {
+            return memory;
+        }
+        
+        /**
+         * @return the fraction of the job completed so far (between 0 and 1)
+         */
+        public double getProgress()
+        {
+            return progress;
+        }
+        
+        /**
+         * @return the error that stopped the job, or <code>null</code> if the job hasn't failed
+         */
+        public Throwable getError()
+        {
+            return error;
+        }
+        
+        void setProgress(double progress)
+        {
+            this.progress = progress;
+            
+            for (Listener listener : listeners)
+                listener.jobProgress(this, progress);
+        }
+    }
+    
+    private final Processor sharedService;
+    
+    /**
+     * Runs the frames (or time chunks) processed in parallel by the jobs, each of which delegates
+     * its contour computations to {@link #sharedService}
+     */
+    private final Processor frameService;
+    
+    private final long memoryBudget;
+    
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    
+    private final LinkedList<Job> pendingJobs = new LinkedList<Job>();
+    
+    private final List<Thread> runningJobs = new ArrayList<Thread>();
+    
+    private long reservedMemory = 0;
+    
+    /**
+     * Creates a batch using all processors, and half of the maximum heap size as memory budget
+     */
+    public ActiveContoursBatch()
+    {
+        this(SystemUtil.getNumberOfCPUs(), Runtime.getRuntime().maxMemory() / 2);
+    }
+    
+    /**
+     * @param nbThreads
+     *            the number of threads shared by all jobs
+     * @param memoryBudget
+     *            the maximum estimated memory (in bytes) used by the jobs running concurrently
+     */
+    public ActiveContoursBatch(int nbThreads, long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        sharedService = new Processor(nbThreads);
+        sharedService.setThreadName("Active Contours (batch)");
+        frameService = new Processor(nbThreads);
+        frameService.setThreadName("Active Contours (batch frames)");
+    }
+    
+    public void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * @return a new plug-in instance running its parallel tasks on the shared thread pool. The
+     *         instance should be configured (input sequence, ROI and other parameters) before being
+     *         {@link #submit(String, ActiveContours) submitted}
+     */
+    public ActiveContours createJob()
+    {
+        return new ActiveContours(sharedService, frameService);
+    }
+    
+    /**
+     * Adds a job to the batch (jobs are started in submission order)
+     * 
+     * @param name
+     *            the name of the job (used for notifications)
+     * @param plugin
+     *            a configured plug-in instance, created by {@link #createJob()}
+     * @return the job
+     */
+    public synchronized Job submit(String name, ActiveContours plugin)
+    {
+        Sequence sequence = plugin.input.getValue();
+        
+        if (sequence == null) throw new IllegalArgumentException("Job " + name + " has no input sequence");
+        
+        // reserve memory for all the frames the job may process at once
+        long memory = ActiveContours.estimateFrameMemory(sequence, plugin.region_localise.getValue()) * plugin.getMaxParallelFrames();
+        
+        Job job = new Job(name, plugin, memory);
+        plugin.batchJob = job;
+        pendingJobs.add(job);
+        
+        return job;
+    }
+    
+    /**
+     * Runs all the submitted jobs, and waits for their completion
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted while waiting (running jobs are then
+     *             interrupted as well)
+     */
+    public synchronized void run() throws InterruptedException
+    {
+        try
+        {
+            while (!pendingJobs.isEmpty() || !runningJobs.isEmpty())
+            {
+                Job next = pendingJobs.peek();
+                
+                if (next != null && (runningJobs.isEmpty() || reservedMemory + next.memory <= memoryBudget))
+                {
+                    start(pendingJobs.poll());
+                }
+                else
+                {
+                    // wait for a running job to complete
+                    wait();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            for (Thread job : runningJobs)
+                job.interrupt();
+            
+            throw e;
+        }
+    }
+    
+    private void start(final Job job)
+    {
+        reservedMemory += job.memory;
+        
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Listener listener : listeners)
+                    listener.jobStarted(job);
+                
+                try
+                {
+                    job.plugin.execute();
+                    job.plugin.releaseThreadPool();
+                }
+                catch (Throwable error)
+                {
+                    job.error = error;
+                    
+                    try
+                    {
+                        // stop the export thread and close the label file of the failed run
+                        job.plugin.clean();
+                    }
+                    catch (Throwable e)
+                    {
+                        System.err.println("Warning: couldn't clean job " + job.name + ": " + e.getMessage());
+                    }
+                }
+                finally
+                {
+                    synchronized (ActiveContoursBatch.this)
+                    {
+                        reservedMemory -= job.memory;
+                        runningJobs.remove(Thread.currentThread());
+                        ActiveContoursBatch.this.notifyAll();
+                    }
+                    
+                    for (Listener listener : listeners)
+                        listener.jobFinished(job, job.error);
+                }
+            }
+        }, "Active Contours (batch): " + job.name);
+        
+        runningJobs.add(thread);
+        thread.start();
+    }
+    
+    /**
+     * Stops the shared thread pools (the batch cannot be used afterwards)
+     */
+    public void shutdown()
+    {
+        frameService.shutdownNow();
+        sharedService.shutdownNow();
+    }
+}
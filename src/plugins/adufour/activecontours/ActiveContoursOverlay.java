@@ -1,11 +1,16 @@
 package plugins.adufour.activecontours;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
 
 import icy.canvas.IcyCanvas;
+import icy.canvas.IcyCanvas2D;
 import icy.painter.Overlay;
 import icy.sequence.Sequence;
 import icy.sequence.SequenceEvent;
@@ -16,16 +21,59 @@ import plugins.fab.trackmanager.TrackGroup;
 import plugins.fab.trackmanager.TrackSegment;
 import plugins.nchenouard.spot.Detection;
 
+/**
+ * Overlay painting the contours of a track group on the current frame. The contours are indexed by
+ * frame, and the contours of each frame by position (on a regular grid), such that a repaint only
+ * visits the contours of the displayed frame that intersect the visible region of the canvas. The
+ * index is updated incrementally by the thread modifying the track group (see
+ * {@link #updateIndex()}), since the track group is not thread-safe and does not notify its
+ * changes: the painting thread only reads the index.
+ * 
+ * @author Alexandre Dufour
+ */
 public class ActiveContoursOverlay extends Overlay implements SequenceListener
 {
+    /**
+     * Size of the cells of the spatial index (in pixels)
+     */
+    private static final int CELL_SIZE = 64;
+    
     private TrackGroup trackGroup;
     
+    /**
+     * The indexed track segments (in track group order)
+     */
+    private final ArrayList<TrackSegment> indexedSegments = new ArrayList<TrackSegment>();
+    
+    /**
+     * The number of indexed detections of each indexed segment
+     */
+    private final ArrayList<Integer> indexedDetections = new ArrayList<Integer>();
+    
+    /**
+     * The contours of each frame
+     */
+    private final HashMap<Integer, FrameIndex> frames = new HashMap<Integer, FrameIndex>();
+    
+    /**
+     * Incremented whenever the contours may have moved (see {@link #painterChanged()}), which
+     * invalidates the spatial index of all frames
+     */
+    private volatile int geometryVersion = 0;
+    
     public ActiveContoursOverlay(TrackGroup trackGroup)
     {
         super("Active contours");
         this.trackGroup = trackGroup;
     }
     
+    @Override
+    public void painterChanged()
+    {
+        geometryVersion++;
+        super.painterChanged();
+    }
+    
     @Override
     public void paint(Graphics2D g, Sequence sequence, IcyCanvas canvas)
     {
@@ -33,40 +81,263 @@ public class ActiveContoursOverlay extends Overlay implements SequenceListener
         
         int currentPositionT = canvas.getPositionT();
         
-        ArrayList<TrackSegment> segments = new ArrayList<TrackSegment>(trackGroup.getTrackSegmentList());
+        FrameIndex frame;
         
-        for (int i = 1; i <= segments.size(); i++)
+        synchronized (this)
         {
-            TrackSegment segment = segments.get(i - 1);
+            frame = frames.get(currentPositionT);
+        }
+        
+        if (frame == null) return;
+        
+        // in 2D, only paint the contours within the visible region (of the canvas itself)
+        Rectangle2D viewBounds = null;
+        if (g != null && canvas instanceof IcyCanvas2D) viewBounds = ((IcyCanvas2D) canvas).canvasToImage(new Rectangle(0, 0, canvas.getCanvasSizeX(), canvas.getCanvasSizeY()));
+        
+        ArrayList<Integer> numbers = new ArrayList<Integer>();
+        List<ActiveContour> contours = frame.getVisibleContours(viewBounds, geometryVersion, numbers);
+        
+        for (int k = 0; k < contours.size(); k++)
+        {
+            ActiveContour contour = contours.get(k);
+            int i = numbers.get(k);
             
-            if (segment == null) continue;
+            contour.paint(g, sequence, canvas);
             
-            for (int d = 0; d < segment.getDetectionList().size(); d++)
+            // the contour may be deforming: only read its last published snapshot
+            double[] bounds = contour.getDisplayBounds();
+            
+            // 2D viewer ?
+            if (g != null && bounds != null)
             {
-                ActiveContour contour = (ActiveContour) segment.getDetectionList().get(d);
+                // in 2D, draw the contour number in its center (and mind the zoom factor)
+                float f = (float) canvas.canvasToImageLogDeltaX(18);
+                
+                float x = (float) bounds[0];
+                float y = (float) bounds[1];
+                
+                // adjust the text positioning
+                x -= (i < 10 ? f / 2 : f);
+                y += f / 2;
                 
-                if (contour == null || contour.getT() != currentPositionT) continue;
-                                
-                contour.paint(g, sequence, canvas);
+                g.drawString("" + i, x, y);
+            }
+        }
+    }
+    
+    /**
+     * Indexes the track segments and detections added to the track group since the last update.
+     * The index is rebuilt from scratch if segments or detections were removed. This method must
+     * be called by the thread modifying the track group (e.g. the evolution thread, after
+     * publishing the contour snapshots), while the track group is not being modified
+     */
+    synchronized void updateIndex()
+    {
+        ArrayList<TrackSegment> segments = trackGroup.getTrackSegmentList();
+        
+        int nbSegments = segments.size();
+        boolean rebuild = nbSegments < indexedSegments.size();
+        
+        for (int i = 0; i < indexedSegments.size() && !rebuild; i++)
+        {
+            TrackSegment segment = segments.get(i);
+            rebuild = segment != indexedSegments.get(i) || segment.getDetectionList().size() < indexedDetections.get(i);
+        }
+        
+        if (rebuild)
+        {
+            indexedSegments.clear();
+            indexedDetections.clear();
+            frames.clear();
+        }
+        
+        for (int i = 0; i < nbSegments; i++)
+        {
+            TrackSegment segment = segments.get(i);
+            
+            if (segment == null) break;
+            
+            if (i == indexedSegments.size())
+            {
+                indexedSegments.add(segment);
+                indexedDetections.add(0);
+            }
+            
+            ArrayList<Detection> detections = segment.getDetectionList();
+            int nbDetections = detections.size();
+            
+            for (int d = indexedDetections.get(i); d < nbDetections; d++)
+            {
+                ActiveContour contour = (ActiveContour) detections.get(d);
                 
-                // 2D viewer ?
-                if (g != null)
+                if (contour == null)
                 {
-                    // in 2D, draw the contour number in its center (and mind the zoom factor)
-                    float f = (float) canvas.canvasToImageLogDeltaX(18);
-                    
-                    float x = (float) contour.getX();
-                    float y = (float) contour.getY();
-                    
-                    // adjust the text positioning
-                    x -= (i < 10 ? f / 2 : f);
-                    y += f / 2;
-                    
-                    g.drawString("" + i, x, y);
+                    // not added yet
+                    nbDetections = d;
+                    break;
                 }
+                
+                FrameIndex frame = frames.get(contour.getT());
+                if (frame == null) frames.put(contour.getT(), frame = new FrameIndex());
+                
+                frame.add(contour, i + 1);
             }
+            
+            indexedDetections.set(i, nbDetections);
         }
+    }
+    
+    /**
+     * The contours of a frame, with a spatial index (built on demand, and rebuilt whenever the
+     * contours may have moved)
+     */
+    private static class FrameIndex
+    {
+        final ArrayList<ActiveContour> contours = new ArrayList<ActiveContour>();
+        
+        /**
+         * The track number of each contour
+         */
+        final ArrayList<Integer> numbers = new ArrayList<Integer>();
+        
+        /**
+         * Version of the geometry the spatial index was built for (-1 if it must be rebuilt, e.g.
+         * if some contours had no published snapshot yet)
+         */
+        private int gridVersion = -1;
+        
+        private int minCellX, minCellY, nbCellsX, nbCellsY;
+        
+        /**
+         * Offsets of the contour list of each cell in {@link #cellContours} (one more element
+         * than the number of cells)
+         */
+        private int[] cellOffsets;
+        
+        /**
+         * Contours of all cells, stored contiguously
+         */
+        private int[] cellContours;
         
+        synchronized void add(ActiveContour contour, int number)
+        {
+            contours.add(contour);
+            numbers.add(number);
+            gridVersion = -1;
+        }
+        
+        /**
+         * @param viewBounds
+         *            the visible region (in pixels), or <code>null</code> if all contours are
+         *            visible
+         * @param version
+         *            the current version of the geometry
+         * @param visibleNumbers
+         *            a list where the track number of each visible contour is added
+         * @return the contours intersecting the visible region (in insertion order)
+         */
+        synchronized List<ActiveContour> getVisibleContours(Rectangle2D viewBounds, int version, List<Integer> visibleNumbers)
+        {
+            ArrayList<ActiveContour> visible = new ArrayList<ActiveContour>();
+            
+            if (viewBounds == null)
+            {
+                visible.addAll(contours);
+                visibleNumbers.addAll(numbers);
+                return visible;
+            }
+            
+            if (gridVersion != version) buildGrid(version);
+            
+            int fromX = Math.max(0, cell(viewBounds.getMinX()) - minCellX), toX = Math.min(nbCellsX - 1, cell(viewBounds.getMaxX()) - minCellX);
+            int fromY = Math.max(0, cell(viewBounds.getMinY()) - minCellY), toY = Math.min(nbCellsY - 1, cell(viewBounds.getMaxY()) - minCellY);
+            
+            // contours spanning several cells are found several times
+            boolean[] found = new boolean[contours.size()];
+            
+            for (int cy = fromY; cy <= toY; cy++)
+                for (int cx = fromX; cx <= toX; cx++)
+                {
+                    int c = cx + cy * nbCellsX;
+                    
+                    for (int o = cellOffsets[c]; o < cellOffsets[c + 1]; o++)
+                        found[cellContours[o]] = true;
+                }
+            
+            for (int k = 0; k < found.length; k++)
+                if (found[k])
+                {
+                    visible.add(contours.get(k));
+                    visibleNumbers.add(numbers.get(k));
+                }
+            
+            return visible;
+        }
+        
+        private static int cell(double coordinate)
+        {
+            return (int) Math.floor(coordinate / CELL_SIZE);
+        }
+        
+        private void buildGrid(int version)
+        {
+            int n = contours.size();
+            
+            // cell range of each contour (taken from its last published snapshot, since the
+            // contours may be deforming, and empty for contours that have none yet)
+            int[] ranges = new int[4 * n];
+            boolean complete = true;
+            
+            minCellX = minCellY = Integer.MAX_VALUE;
+            int maxCellX = Integer.MIN_VALUE, maxCellY = Integer.MIN_VALUE;
+            
+            for (int k = 0; k < n; k++)
+            {
+                double[] bounds = contours.get(k).getDisplayBounds();
+                
+                if (bounds == null)
+                {
+                    ranges[4 * k] = ranges[4 * k + 2] = 0;
+                    ranges[4 * k + 1] = ranges[4 * k + 3] = -1;
+                    complete = false;
+                    continue;
+                }
+                
+                ranges[4 * k] = cell(bounds[2]);
+                ranges[4 * k + 1] = cell(bounds[4]);
+                ranges[4 * k + 2] = cell(bounds[3]);
+                ranges[4 * k + 3] = cell(bounds[5]);
+                
+                minCellX = Math.min(minCellX, ranges[4 * k]);
+                maxCellX = Math.max(maxCellX, ranges[4 * k + 1]);
+                minCellY = Math.min(minCellY, ranges[4 * k + 2]);
+                maxCellY = Math.max(maxCellY, ranges[4 * k + 3]);
+            }
+            
+            nbCellsX = maxCellX < minCellX ? 0 : maxCellX - minCellX + 1;
+            nbCellsY = maxCellY < minCellY ? 0 : maxCellY - minCellY + 1;
+            
+            // count the contours of each cell, then fill the cells
+            cellOffsets = new int[nbCellsX * nbCellsY + 1];
+            
+            for (int k = 0; k < n; k++)
+                for (int cy = ranges[4 * k + 2]; cy <= ranges[4 * k + 3]; cy++)
+                    for (int cx = ranges[4 * k]; cx <= ranges[4 * k + 1]; cx++)
+                        cellOffsets[cx - minCellX + (cy - minCellY) * nbCellsX + 1]++;
+            
+            for (int c = 0; c < nbCellsX * nbCellsY; c++)
+                cellOffsets[c + 1] += cellOffsets[c];
+            
+            cellContours = new int[cellOffsets[nbCellsX * nbCellsY]];
+            int[] cursors = Arrays.copyOf(cellOffsets, nbCellsX * nbCellsY);
+            
+            for (int k = 0; k < n; k++)
+                for (int cy = ranges[4 * k + 2]; cy <= ranges[4 * k + 3]; cy++)
+                    for (int cx = ranges[4 * k]; cx <= ranges[4 * k + 1]; cx++)
+                        cellContours[cursors[cx - minCellX + (cy - minCellY) * nbCellsX]++] = k;
+            
+            gridVersion = complete ? version : -1;
+        }
     }
     
     @Override
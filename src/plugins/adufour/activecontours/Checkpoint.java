@@ -0,0 +1,322 @@
+package plugins.adufour.activecontours;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import plugins.adufour.vars.lang.Var;
+import plugins.fab.trackmanager.TrackSegment;
+import plugins.nchenouard.spot.Detection;
+
+/**
+ * Snapshot of a tracking run after a given frame, stored on disk in binary form such that the run
+ * can be resumed from that frame (see {@link ActiveContours#resume(File)}). A checkpoint holds the
+ * contours of all processed frames, the links between track segments (i.e. divisions), the region
+ * statistics of each track and the state of the color generator. The output ROI and labels are not
+ * stored, since they can be recreated from the contours.<br>
+ * A snapshot is taken in the evolution thread (it only copies references to the contours of the
+ * processed frames, which are not modified afterwards), and can then be written to disk in any
+ * other thread.
+ * 
+ * @author Alexandre Dufour
+ */
+public class Checkpoint
+{
+    private static final int MAGIC   = 0x41434350; // "ACCP"
+    
+    private static final int VERSION = 2;
+    
+    private static final int POLYGON = 0;
+    
+    private static final int MESH    = 1;
+    
+    /**
+     * The first frame of the run
+     */
+    final int                startT;
+    
+    /**
+     * The last frame processed before the checkpoint
+     */
+    final int                frame;
+    
+    /**
+     * The track segments (in track group order), restricted to the processed frames
+     */
+    final List<TrackSegment> segments;
+    
+    /**
+     * The region statistics (inside and outside intensity) of each track segment
+     */
+    final Map<TrackSegment, double[]> regionStatistics;
+    
+    /**
+     * The color generator (serialized, since it is modified during the evolution)
+     */
+    private final byte[]     colorGenerator;
+    
+    private Checkpoint(int startT, int frame, List<TrackSegment> segments, Map<TrackSegment, double[]> regionStatistics, byte[] colorGenerator)
+    {
+        this.startT = startT;
+        this.frame = frame;
+        this.segments = segments;
+        this.regionStatistics = regionStatistics;
+        this.colorGenerator = colorGenerator;
+    }
+    
+    /**
+     * Takes a snapshot of a tracking run
+     * 
+     * @param startT
+     *            the first frame of the run
+     * @param frame
+     *            the last processed frame (detections on subsequent frames are ignored)
+     * @param tracks
+     *            the track segments of the run
+     * @param cin
+     *            the inner intensity of each track segment
+     * @param cout
+     *            the outer intensity of each track segment
+     * @param colorGenerator
+     *            the color generator of the run
+     * @return the snapshot
+     */
+    static Checkpoint snapshot(int startT, int frame, List<TrackSegment> tracks, Map<TrackSegment, Double> cin, Map<TrackSegment, Double> cout, Random colorGenerator)
+    {
+        // copy the segments (which keep growing during the evolution), keeping the original ones as
+        // keys to preserve the links
+        IdentityHashMap<TrackSegment, TrackSegment> copies = new IdentityHashMap<TrackSegment, TrackSegment>();
+        ArrayList<TrackSegment> segments = new ArrayList<TrackSegment>(tracks.size());
+        HashMap<TrackSegment, double[]> statistics = new HashMap<TrackSegment, double[]>();
+        
+        for (TrackSegment track : tracks)
+        {
+            TrackSegment copy = new TrackSegment();
+            
+            for (Detection detection : track.getDetectionList())
+                if (detection.getT() <= frame) copy.addDetection(detection);
+            
+            if (copy.getDetectionList().isEmpty()) continue;
+            
+            copies.put(track, copy);
+            segments.add(copy);
+            
+            Double in = cin.get(track), out = cout.get(track);
+            if (in != null && out != null) statistics.put(copy, new double[] { in, out });
+        }
+        
+        for (Map.Entry<TrackSegment, TrackSegment> copy : copies.entrySet())
+            for (TrackSegment next : copy.getKey().getNextList())
+                if (copies.containsKey(next)) copy.getValue().addNext(copies.get(next));
+        
+        return new Checkpoint(startT, frame, segments, statistics, serialize(colorGenerator));
+    }
+    
+    /**
+     * @return a copy of the color generator, in the state it was when the snapshot was taken
+     */
+    Random getColorGenerator()
+    {
+        try
+        {
+            return (Random) new ObjectInputStream(new ByteArrayInputStream(colorGenerator)).readObject();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static byte[] serialize(Random random)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(random);
+            out.close();
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            // cannot happen in memory
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Writes this checkpoint to the specified file. The checkpoint is first written to a temporary
+     * file, which then replaces the specified file, such that an interrupted write never corrupts
+     * the previous checkpoint
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException
+    {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+        
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(startT);
+            out.writeInt(frame);
+            out.writeInt(colorGenerator.length);
+            out.write(colorGenerator);
+            
+            HashMap<TrackSegment, Integer> indices = new HashMap<TrackSegment, Integer>();
+            
+            out.writeInt(segments.size());
+            
+            for (TrackSegment segment : segments)
+            {
+                indices.put(segment, indices.size());
+                
+                double[] statistics = regionStatistics.get(segment);
+                out.writeBoolean(statistics != null);
+                if (statistics != null)
+                {
+                    out.writeDouble(statistics[0]);
+                    out.writeDouble(statistics[1]);
+                }
+                
+                out.writeInt(segment.getDetectionList().size());
+                
+                for (Detection detection : segment.getDetectionList())
+                {
+                    ActiveContour contour = (ActiveContour) detection;
+                    
+                    out.writeByte(contour instanceof Mesh3D ? MESH : POLYGON);
+                    out.writeInt(contour.getT());
+                    out.writeInt(contour.getColor().getRGB());
+                    out.writeBoolean(contour.getName() != null);
+                    if (contour.getName() != null) out.writeUTF(contour.getName());
+                    
+                    contour.writeGeometry(out);
+                }
+            }
+            
+            // links between segments (divisions)
+            for (TrackSegment segment : segments)
+            {
+                out.writeInt(segment.getNextList().size());
+                for (TrackSegment next : segment.getNextList())
+                    out.writeInt(indices.get(next));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        
+        if (file.exists() && !file.delete()) throw new IOException("Cannot replace " + file.getPath());
+        if (!tmpFile.renameTo(file)) throw new IOException("Cannot rename " + tmpFile.getPath() + " to " + file.getPath());
+    }
+    
+    /**
+     * Reads a checkpoint from the specified file
+     * 
+     * @param file
+     * @param sampling
+     *            the sampling of the restored contours
+     * @param convergenceWindow
+     *            the size of the convergence window of the restored contours
+     * @return the checkpoint
+     * @throws IOException
+     *             if the file cannot be read or is not a valid checkpoint
+     */
+    public static Checkpoint read(File file, Var<Double> sampling, int convergenceWindow) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        
+        try
+        {
+            if (in.readInt() != MAGIC) throw new IOException(file.getPath() + " is not an active contours checkpoint");
+            
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported checkpoint version: " + version);
+            
+            int startT = in.readInt();
+            int frame = in.readInt();
+            byte[] colorGenerator = new byte[in.readInt()];
+            in.readFully(colorGenerator);
+            
+            int nbSegments = in.readInt();
+            ArrayList<TrackSegment> segments = new ArrayList<TrackSegment>(nbSegments);
+            HashMap<TrackSegment, double[]> statistics = new HashMap<TrackSegment, double[]>();
+            
+            for (int s = 0; s < nbSegments; s++)
+            {
+                TrackSegment segment = new TrackSegment();
+                segments.add(segment);
+                
+                if (in.readBoolean()) statistics.put(segment, new double[] { in.readDouble(), in.readDouble() });
+                
+                int nbDetections = in.readInt();
+                
+                for (int d = 0; d < nbDetections; d++)
+                {
+                    int type = in.readByte();
+                    
+                    ActiveContour contour;
+                    
+                    switch (type)
+                    {
+                        case POLYGON:
+                            contour = new Polygon2D();
+                        break;
+                        case MESH:
+                            contour = new Mesh3D();
+                        break;
+                        default:
+                            throw new IOException("Unknown contour type: " + type);
+                    }
+                    
+                    int t = in.readInt();
+                    Color color = new Color(in.readInt(), true);
+                    String name = in.readBoolean() ? in.readUTF() : null;
+                    
+                    contour.setEvolutionParameters(sampling, new SlidingWindow(convergenceWindow));
+                    contour.readGeometry(in);
+                    contour.setT(t);
+                    contour.setColor(color);
+                    contour.setName(name);
+                    
+                    segment.addDetection(contour);
+                }
+            }
+            
+            for (TrackSegment segment : segments)
+            {
+                int nbNext = in.readInt();
+                for (int n = 0; n < nbNext; n++)
+                    segment.addNext(segments.get(in.readInt()));
+            }
+            
+            return new Checkpoint(startT, frame, segments, statistics, colorGenerator);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
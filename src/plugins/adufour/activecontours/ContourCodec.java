@@ -0,0 +1,257 @@
+package plugins.adufour.activecontours;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import icy.util.XMLUtil;
+
+/**
+ * Compact binary encoding of the geometry of active contours, embedded in XML documents as a
+ * single base64 text element (instead of one XML element per point). Coordinates are stored as
+ * single-precision floats, and integers (counts, mesh faces) as variable-length integers (7 bits per
+ * byte), such that the size of the encoded data (and the time needed to save and load it) is
+ * proportional to the raw geometry.<br>
+ * Contours saved before this encoding existed have no such element, and should be read using the
+ * original XML format (see {@link #load(Node)}).
+ * 
+ * @author Alexandre Dufour
+ */
+final class ContourCodec
+{
+    /**
+     * Name of the XML element holding the encoded data
+     */
+    static final String ELEMENT = "ContourData";
+    
+    private static final String ATTRIBUTE_VERSION = "version";
+    
+    private static final int VERSION = 1;
+    
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    
+    private static final int[] BASE64_VALUES = new int[128];
+    
+    static
+    {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64.length; i++)
+            BASE64_VALUES[BASE64[i]] = i;
+    }
+    
+    private ContourCodec()
+    {
+    }
+    
+    /**
+     * Stores the specified data under the specified XML node
+     * 
+     * @param node
+     * @param data
+     *            the encoded contour (see {@link Writer})
+     */
+    static void save(Node node, byte[] data)
+    {
+        Element element = XMLUtil.addElement(node, ELEMENT);
+        XMLUtil.setAttributeIntValue(element, ATTRIBUTE_VERSION, VERSION);
+        element.setTextContent(toBase64(data));
+    }
+    
+    /**
+     * @param node
+     * @return a reader over the data stored under the specified node, or <code>null</code> if the
+     *         node has no encoded data (i.e. the contour was saved in the original XML format)
+     * @throws IOException
+     *             if the data is invalid or was encoded with a newer version
+     */
+    static Reader load(Node node) throws IOException
+    {
+        Element element = XMLUtil.getElement(node, ELEMENT);
+        
+        if (element == null) return null;
+        
+        int version = XMLUtil.getAttributeIntValue(element, ATTRIBUTE_VERSION, -1);
+        if (version != VERSION) throw new IOException("Unsupported contour data version: " + version);
+        
+        return new Reader(fromBase64(element.getTextContent()));
+    }
+    
+    /**
+     * Growable buffer encoding floats and variable-length integers
+     */
+    static final class Writer
+    {
+        private byte[] buffer;
+        
+        private int size = 0;
+        
+        /**
+         * @param capacity
+         *            the expected size of the data (in bytes)
+         */
+        Writer(int capacity)
+        {
+            buffer = new byte[Math.max(16, capacity)];
+        }
+        
+        private void ensureCapacity(int extra)
+        {
+            if (size + extra > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(size + extra, buffer.length * 2));
+        }
+        
+        /**
+         * Writes a non-negative integer using 1 to 5 bytes (smaller values use fewer bytes)
+         */
+        void writeVarInt(int value)
+        {
+            ensureCapacity(5);
+            
+            while ((value & ~0x7F) != 0)
+            {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+        
+        /**
+         * Writes a signed integer using 1 to 5 bytes (values of smaller magnitude use fewer bytes)
+         */
+        void writeSignedVarInt(int value)
+        {
+            // zig-zag encoding: 0, -1, 1, -2, 2... => 0, 1, 2, 3, 4...
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+        
+        void writeFloat(double value)
+        {
+            ensureCapacity(4);
+            
+            int bits = Float.floatToIntBits((float) value);
+            buffer[size++] = (byte) (bits >>> 24);
+            buffer[size++] = (byte) (bits >>> 16);
+            buffer[size++] = (byte) (bits >>> 8);
+            buffer[size++] = (byte) bits;
+        }
+        
+        byte[] toByteArray()
+        {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+    
+    /**
+     * Decodes the data written by a {@link Writer}
+     */
+    static final class Reader
+    {
+        private final byte[] data;
+        
+        private int position = 0;
+        
+        Reader(byte[] data)
+        {
+            this.data = data;
+        }
+        
+        private int next() throws IOException
+        {
+            if (position >= data.length) throw new IOException("Truncated contour data");
+            return data[position++];
+        }
+        
+        int readVarInt() throws IOException
+        {
+            int value = 0;
+            
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                int b = next();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            
+            throw new IOException("Invalid contour data");
+        }
+        
+        int readSignedVarInt() throws IOException
+        {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+        
+        double readFloat() throws IOException
+        {
+            int bits = (next() & 0xFF) << 24 | (next() & 0xFF) << 16 | (next() & 0xFF) << 8 | (next() & 0xFF);
+            return Float.intBitsToFloat(bits);
+        }
+    }
+    
+    static String toBase64(byte[] data)
+    {
+        StringBuilder sb = new StringBuilder(4 * ((data.length + 2) / 3));
+        
+        for (int i = 0; i < data.length; i += 3)
+        {
+            int remaining = Math.min(3, data.length - i);
+            
+            int block = (data[i] & 0xFF) << 16;
+            if (remaining > 1) block |= (data[i + 1] & 0xFF) << 8;
+            if (remaining > 2) block |= data[i + 2] & 0xFF;
+            
+            sb.append(BASE64[(block >> 18) & 0x3F]);
+            sb.append(BASE64[(block >> 12) & 0x3F]);
+            sb.append(remaining > 1 ? BASE64[(block >> 6) & 0x3F] : '=');
+            sb.append(remaining > 2 ? BASE64[block & 0x3F] : '=');
+        }
+        
+        return sb.toString();
+    }
+    
+    static byte[] fromBase64(String text) throws IOException
+    {
+        byte[] data = new byte[3 * ((text.length() + 3) / 4)];
+        int size = 0;
+        
+        int block = 0, nbChars = 0;
+        
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            
+            // padding marks the end of the data, whitespace is ignored
+            if (c == '=') break;
+            if (Character.isWhitespace(c)) continue;
+            
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) throw new IOException("Invalid character in contour data: " + c);
+            
+            block = (block << 6) | value;
+            
+            if (++nbChars == 4)
+            {
+                data[size++] = (byte) (block >> 16);
+                data[size++] = (byte) (block >> 8);
+                data[size++] = (byte) block;
+                block = 0;
+                nbChars = 0;
+            }
+        }
+        
+        // trailing (padded) block
+        if (nbChars == 2)
+        {
+            data[size++] = (byte) (block >> 4);
+        }
+        else if (nbChars == 3)
+        {
+            data[size++] = (byte) (block >> 10);
+            data[size++] = (byte) (block >> 2);
+        }
+        else if (nbChars == 1) throw new IOException("Truncated contour data");
+        
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,233 @@
+package plugins.adufour.activecontours;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Utility class splitting a population of contours into work units of comparable cost, so that
+ * parallel tasks finish at roughly the same time regardless of the size distribution of the
+ * contours. The cost of a contour is estimated from its number of points (see
+ * {@link ActiveContour#getDimension(int)}): large contours are split into independent vertex
+ * ranges, while small contours are batched together.
+ * 
+ * @author Alexandre Dufour
+ */
+public class ContourPartitioner
+{
+    /**
+     * Number of work units to create per worker thread. Using more units than workers smooths out
+     * the remaining cost estimation errors
+     */
+    private static final int UNITS_PER_WORKER = 2;
+    
+    /**
+     * Vertex ranges below this size are not worth splitting (the task overhead would dominate)
+     */
+    private static final int MIN_RANGE_COST = 256;
+    
+    /**
+     * Contours below this cost are cheaper to process in the calling thread than to split
+     */
+    private static final int MIN_SPLIT_COST = 4 * MIN_RANGE_COST;
+    
+    /**
+     * A contiguous range of vertex slots of a given contour
+     * 
+     * @author Alexandre Dufour
+     */
+    public static final class Slice
+    {
+        public final ActiveContour contour;
+        
+        /**
+         * The first vertex slot of the range (inclusive)
+         */
+        public final int from;
+        
+        /**
+         * The last vertex slot of the range (exclusive)
+         */
+        public final int to;
+        
+        Slice(ActiveContour contour, int from, int to)
+        {
+            this.contour = contour;
+            this.from = from;
+            this.to = to;
+        }
+    }
+    
+    private static final class Unit<T> implements Comparable<Unit<T>>
+    {
+        final int index;
+        
+        final List<T> items = new ArrayList<T>();
+        
+        double cost = 0;
+        
+        Unit(int index)
+        {
+            this.index = index;
+        }
+        
+        @Override
+        public int compareTo(Unit<T> other)
+        {
+            // least loaded first, then by creation order (keeps the result deterministic)
+            int c = Double.compare(cost, other.cost);
+            return c != 0 ? c : index - other.index;
+        }
+    }
+    
+    /**
+     * @param contour
+     * @return the estimated processing cost of the specified contour
+     */
+    static double getCost(ActiveContour contour)
+    {
+        return Math.max(1.0, contour.getDimension(0));
+    }
+    
+    /**
+     * @param contour
+     * @return <code>true</code> if the specified contour is large enough to benefit from being
+     *         processed as several vertex ranges in parallel
+     */
+    static boolean isSplittable(ActiveContour contour)
+    {
+        return getCost(contour) >= MIN_SPLIT_COST && contour.getVertexSlotCount() > 1;
+    }
+    
+    /**
+     * Splits the given contours into vertex-based work units. Each unit is a list of slices that
+     * should be processed sequentially by a single task, and the returned units are sorted by
+     * decreasing cost (so that the largest units are scheduled first).
+     * 
+     * @param contours
+     *            the contours to process
+     * @param nbWorkers
+     *            the number of available worker threads
+     * @return a list of work units
+     */
+    public static List<List<Slice>> partition(Collection<? extends ActiveContour> contours, int nbWorkers)
+    {
+        double totalCost = 0;
+        for (ActiveContour contour : contours)
+            totalCost += getCost(contour);
+        
+        double targetCost = Math.max(MIN_RANGE_COST, totalCost / (Math.max(1, nbWorkers) * UNITS_PER_WORKER));
+        
+        ArrayList<Unit<Slice>> units = new ArrayList<Unit<Slice>>();
+        Unit<Slice> batch = null;
+        
+        for (ActiveContour contour : contours)
+        {
+            double cost = getCost(contour);
+            int nbSlots = contour.getVertexSlotCount();
+            
+            if (cost > targetCost * 1.5 && nbSlots > 1)
+            {
+                // large contour => split its vertex range
+                int nbRanges = Math.min(nbSlots, (int) Math.ceil(cost / targetCost));
+                
+                for (int r = 0; r < nbRanges; r++)
+                {
+                    int from = (int) ((long) nbSlots * r / nbRanges);
+                    int to = (int) ((long) nbSlots * (r + 1) / nbRanges);
+                    
+                    Unit<Slice> unit = new Unit<Slice>(units.size());
+                    unit.items.add(new Slice(contour, from, to));
+                    unit.cost = cost / nbRanges;
+                    units.add(unit);
+                }
+            }
+            else
+            {
+                // small contour => batch it with others
+                if (batch == null)
+                {
+                    batch = new Unit<Slice>(units.size());
+                    units.add(batch);
+                }
+                
+                batch.items.add(new Slice(contour, 0, nbSlots));
+                batch.cost += cost;
+                
+                if (batch.cost >= targetCost) batch = null;
+            }
+        }
+        
+        return sortByDecreasingCost(units);
+    }
+    
+    /**
+     * Distributes the given contours (as a whole) into balanced batches, using a greedy
+     * "largest contour first, into the least loaded batch" strategy. This is used for operations
+     * that cannot be split along the contour (e.g. intensity statistics).
+     * 
+     * @param contours
+     *            the contours to distribute
+     * @param nbWorkers
+     *            the number of available worker threads
+     * @return a list of batches, sorted by decreasing cost
+     */
+    public static List<List<ActiveContour>> batch(Collection<? extends ActiveContour> contours, int nbWorkers)
+    {
+        ArrayList<ActiveContour> sorted = new ArrayList<ActiveContour>(contours);
+        
+        // sort by decreasing cost (the sort is stable, so equal costs keep their input order)
+        Collections.sort(sorted, new Comparator<ActiveContour>()
+        {
+            @Override
+            public int compare(ActiveContour c1, ActiveContour c2)
+            {
+                return Double.compare(getCost(c2), getCost(c1));
+            }
+        });
+        
+        int nbBatches = Math.min(sorted.size(), Math.max(1, nbWorkers) * UNITS_PER_WORKER);
+        
+        ArrayList<Unit<ActiveContour>> units = new ArrayList<Unit<ActiveContour>>(nbBatches);
+        PriorityQueue<Unit<ActiveContour>> queue = new PriorityQueue<Unit<ActiveContour>>(Math.max(1, nbBatches));
+        
+        for (int i = 0; i < nbBatches; i++)
+        {
+            Unit<ActiveContour> unit = new Unit<ActiveContour>(i);
+            units.add(unit);
+            queue.add(unit);
+        }
+        
+        for (ActiveContour contour : sorted)
+        {
+            Unit<ActiveContour> leastLoaded = queue.poll();
+            leastLoaded.items.add(contour);
+            leastLoaded.cost += getCost(contour);
+            queue.add(leastLoaded);
+        }
+        
+        return sortByDecreasingCost(units);
+    }
+    
+    private static <T> List<List<T>> sortByDecreasingCost(List<Unit<T>> units)
+    {
+        Collections.sort(units, new Comparator<Unit<T>>()
+        {
+            @Override
+            public int compare(Unit<T> u1, Unit<T> u2)
+            {
+                int c = Double.compare(u2.cost, u1.cost);
+                return c != 0 ? c : u1.index - u2.index;
+            }
+        });
+        
+        List<List<T>> result = new ArrayList<List<T>>(units.size());
+        for (Unit<T> unit : units)
+            if (!unit.items.isEmpty()) result.add(unit.items);
+        
+        return result;
+    }
+}
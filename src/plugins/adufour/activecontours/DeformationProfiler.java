@@ -402,7 +402,7 @@ public class DeformationProfiler extends PluginTrackManagerProcessor implements
                 
                 if (det.getDetectionType() != Detection.DETECTIONTYPE_VIRTUAL_DETECTION)
                 {
-                    ((Mesh3D) det).mesh.saveToVTK(new File(vtkPath + fileName));
+                    ((Mesh3D) det).getMesh().saveToVTK(new File(vtkPath + fileName));
                 }
             }
             
@@ -619,7 +619,7 @@ public class DeformationProfiler extends PluginTrackManagerProcessor implements
             {
                 if (!(det instanceof Mesh3D)) continue;
                 
-                final ROI3DTriangularMesh mesh = ((Mesh3D) det).mesh;
+                final ROI3DTriangularMesh mesh = ((Mesh3D) det).getMesh();
                 // final double samplingDistance = contour.sampling.getValue() * 3;
                 
                 results.add(service.submit(new Runnable()
@@ -728,7 +728,7 @@ public class DeformationProfiler extends PluginTrackManagerProcessor implements
                 
                 Mesh3D contour = (Mesh3D) det;
                 Point3d center = contour.getMassCenter(false);
-                double minRadius = contour.mesh.getMinDistanceTo(center, null);
+                double minRadius = contour.getMesh().getMinDistanceTo(center, null);
                 double maxRadius = contour.boundingSphere.getRadius();
                 result[trackIndex][det.getT()] = 100.0 * minRadius / maxRadius;
             }
@@ -0,0 +1,202 @@
+package plugins.adufour.activecontours;
+
+import java.util.Map;
+
+import icy.roi.BooleanMask2D;
+import icy.roi.BooleanMask3D;
+import icy.roi.ROI;
+import icy.roi.ROI2D;
+import icy.roi.ROI3D;
+import icy.type.rectangle.Rectangle5D;
+
+/**
+ * The area where contours are allowed to evolve, rasterised once (typically per frame) into a
+ * packed bitmap, such that testing whether a point lies within the field takes constant time
+ * (instead of calling {@link ROI#contains(double, double, double, double, double)} for every point
+ * of every contour at every iteration). When the field is the entire image, no bitmap is created at
+ * all, and the test reduces to a bounds check.
+ * 
+ * @author Alexandre Dufour
+ */
+public class EvolutionField
+{
+    /**
+     * Bounds of the bitmap (in pixels)
+     */
+    private final int     minX, minY, minZ, sizeX, sizeY, sizeZ;
+    
+    /**
+     * <code>true</code> if the field applies to all slices (e.g. a 2D ROI with no Z position)
+     */
+    private final boolean anyZ;
+    
+    /**
+     * The packed bitmap, indexed by <code>x + y * sizeX + z * sizeX * sizeY</code> (relative to
+     * the bounds). If <code>null</code>, the field covers its entire bounds
+     */
+    private final long[]  bits;
+    
+    /**
+     * Creates an empty field, or a field covering its entire bounds
+     */
+    private EvolutionField(int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ, boolean anyZ, boolean full)
+    {
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = Math.max(0, sizeX);
+        this.sizeY = Math.max(0, sizeY);
+        this.sizeZ = Math.max(0, sizeZ);
+        this.anyZ = anyZ;
+        
+        if (full)
+        {
+            bits = null;
+        }
+        else
+        {
+            long nbPixels = (long) this.sizeX * this.sizeY * this.sizeZ;
+            
+            if (nbPixels > 64L * Integer.MAX_VALUE) throw new UnsupportedOperationException("the region is too large");
+            
+            bits = new long[(int) ((nbPixels + 63) >> 6)];
+        }
+    }
+    
+    /**
+     * Creates a field covering an entire image. For 3D images, the last slice is excluded (i.e.
+     * contours evolve within [0, sizeZ - 1[ along Z)
+     * 
+     * @param sizeX
+     *            the image width
+     * @param sizeY
+     *            the image height
+     * @param sizeZ
+     *            the image depth
+     * @return the field
+     */
+    public static EvolutionField wholeImage(int sizeX, int sizeY, int sizeZ)
+    {
+        if (sizeZ == 1) return new EvolutionField(0, 0, 0, sizeX, sizeY, 1, true, true);
+        
+        return new EvolutionField(0, 0, 0, sizeX, sizeY, sizeZ - 1, false, true);
+    }
+    
+    /**
+     * Rasterises the specified region of interest into a field
+     * 
+     * @param roi
+     *            the region where contours are allowed to evolve
+     * @return the field
+     * @throws UnsupportedOperationException
+     *             if the region is not bounded along X and Y
+     */
+    public static EvolutionField fromROI(ROI roi) throws UnsupportedOperationException
+    {
+        if (roi instanceof ROI2D)
+        {
+            ROI2D roi2D = (ROI2D) roi;
+            BooleanMask2D mask = roi2D.getBooleanMask(true);
+            
+            int z = roi2D.getZ();
+            EvolutionField field = new EvolutionField(mask.bounds.x, mask.bounds.y, Math.max(0, z), mask.bounds.width, mask.bounds.height, 1, z == -1, false);
+            field.fill(mask, 0);
+            return field;
+        }
+        
+        if (roi instanceof ROI3D)
+        {
+            BooleanMask3D mask = ((ROI3D) roi).getBooleanMask(true);
+            
+            EvolutionField field = new EvolutionField(mask.bounds.x, mask.bounds.y, mask.bounds.z, mask.bounds.sizeX, mask.bounds.sizeY, mask.bounds.sizeZ, false, false);
+            for (Map.Entry<Integer, BooleanMask2D> slice : mask.mask.entrySet())
+                field.fill(slice.getValue(), slice.getKey() - mask.bounds.z);
+            return field;
+        }
+        
+        // other ROI types: sample the ROI at the center of each pixel of its bounds
+        Rectangle5D bounds = roi.getBounds5D();
+        
+        if (bounds.isInfiniteX() || bounds.isInfiniteY()) throw new UnsupportedOperationException("the region is not bounded along X and Y");
+        
+        boolean anyZ = bounds.isInfiniteZ();
+        int minX = (int) Math.floor(bounds.getMinX()), maxX = (int) Math.ceil(bounds.getMaxX());
+        int minY = (int) Math.floor(bounds.getMinY()), maxY = (int) Math.ceil(bounds.getMaxY());
+        int minZ = anyZ ? 0 : (int) Math.floor(bounds.getMinZ());
+        int maxZ = anyZ ? 1 : (int) Math.ceil(bounds.getMaxZ());
+        
+        EvolutionField field = new EvolutionField(minX, minY, minZ, maxX - minX, maxY - minY, maxZ - minZ, anyZ, false);
+        
+        long index = 0;
+        for (int z = minZ; z < maxZ; z++)
+            for (int y = minY; y < maxY; y++)
+                for (int x = minX; x < maxX; x++, index++)
+                    if (roi.contains(x + 0.5, y + 0.5, anyZ ? 0 : z + 0.5, 0, 0)) field.bits[(int) (index >> 6)] |= 1L << index;
+        
+        return field;
+    }
+    
+    /**
+     * Marks the pixels of the specified mask as part of the field
+     */
+    private void fill(BooleanMask2D mask, int z)
+    {
+        if (z < 0 || z >= sizeZ) return;
+        
+        boolean[] _mask = mask.mask;
+        int width = mask.bounds.width;
+        
+        for (int j = 0, offset = 0; j < mask.bounds.height; j++)
+        {
+            long index = (long) (mask.bounds.x - minX) + (long) (mask.bounds.y + j - minY) * sizeX + (long) z * sizeX * sizeY;
+            
+            for (int i = 0; i < width; i++, offset++, index++)
+                if (_mask[offset]) bits[(int) (index >> 6)] |= 1L << index;
+        }
+    }
+    
+    /**
+     * @return the width of the field bounds
+     */
+    public int getSizeX()
+    {
+        return sizeX;
+    }
+    
+    /**
+     * @return the height of the field bounds
+     */
+    public int getSizeY()
+    {
+        return sizeY;
+    }
+    
+    /**
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the specified point (in pixels) lies within the field
+     */
+    public boolean contains(double x, double y, double z)
+    {
+        // floor() (rather than a cast) so that [-1,0[ is outside
+        int i = (int) Math.floor(x) - minX;
+        if (i < 0 || i >= sizeX) return false;
+        
+        int j = (int) Math.floor(y) - minY;
+        if (j < 0 || j >= sizeY) return false;
+        
+        int k = 0;
+        if (!anyZ)
+        {
+            k = (int) Math.floor(z) - minZ;
+            if (k < 0 || k >= sizeZ) return false;
+        }
+        
+        if (bits == null) return true;
+        
+        long index = i + (long) j * sizeX + (long) k * sizeX * sizeY;
+        
+        return (bits[(int) (index >> 6)] & (1L << index)) != 0;
+    }
+}
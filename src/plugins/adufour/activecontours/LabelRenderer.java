@@ -0,0 +1,351 @@
+package plugins.adufour.activecontours;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import icy.sequence.Sequence;
+import icy.type.collection.array.Array1DUtil;
+
+/**
+ * Scan-line rasteriser used to paint contours onto label images. Each contour adds the edges of its
+ * section with a given slice (see {@link ActiveContour#addSection(LabelRenderer, int, Sequence)}),
+ * which are then filled using the even-odd rule: a pixel is painted if its centre lies inside the
+ * section. Rows are filled span by span, with a dedicated loop for each type of image data (instead
+ * of converting every pixel through {@link Array1DUtil#setValue(Object, int, double)}).<br>
+ * A renderer is not thread-safe, but slices (and bands of rows within a slice) are independent and
+ * can be painted in parallel using one renderer each (see
+ * {@link #createTasks(Sequence, int, List, double[], Sequence, int)}).
+ * 
+ * @author Alexandre Dufour
+ */
+final class LabelRenderer
+{
+    /**
+     * Edges of the current section (x1, y1, x2, y2 for each edge, in pixels)
+     */
+    private double[] edges     = new double[64];
+    
+    private int      nbEdges   = 0;
+    
+    /**
+     * Position of the top-left pixel of the filled area (subtracted from the edge coordinates)
+     */
+    private double   originX   = 0, originY = 0;
+    
+    /**
+     * Edges sorted by first row (row in the 32 high bits, edge index in the 32 low bits)
+     */
+    private long[]   sorted    = new long[16];
+    
+    /**
+     * Edges crossing the current row
+     */
+    private int[]    active    = new int[16];
+    
+    private double[] crossings = new double[16];
+    
+    /**
+     * Removes all the edges added so far
+     */
+    void clear()
+    {
+        nbEdges = 0;
+    }
+    
+    /**
+     * Sets the position of the top-left pixel of the filled area, to fill a region of a larger image
+     * (see {@link #fill(Object, int, int, double)})
+     * 
+     * @param x
+     * @param y
+     */
+    void setOrigin(int x, int y)
+    {
+        originX = x;
+        originY = y;
+    }
+    
+    /**
+     * Adds an edge to the current section. Edges can be added in any order and orientation, as long
+     * as they form closed loops
+     * 
+     * @param x1
+     * @param y1
+     * @param x2
+     * @param y2
+     */
+    void addEdge(double x1, double y1, double x2, double y2)
+    {
+        if (4 * nbEdges + 4 > edges.length) edges = Arrays.copyOf(edges, edges.length * 2);
+        
+        int e = 4 * nbEdges++;
+        edges[e] = x1 - originX;
+        edges[e + 1] = y1 - originY;
+        edges[e + 2] = x2 - originX;
+        edges[e + 3] = y2 - originY;
+    }
+    
+    /**
+     * Fills the current section into the specified slice
+     * 
+     * @param data
+     *            the data of the slice (as returned by {@link Sequence#getDataXY(int, int, int)}),
+     *            or a boolean mask
+     * @param width
+     *            the width of the slice
+     * @param height
+     *            the height of the slice
+     * @param value
+     *            the value of the pixels inside the section
+     */
+    void fill(Object data, int width, int height, double value)
+    {
+        fill(data, width, 0, height, value);
+    }
+    
+    /**
+     * Fills the current section into the specified rows of the slice (the other rows are left
+     * untouched), such that disjoint bands of the same slice can be filled in parallel
+     * 
+     * @param data
+     *            the data of the slice (as returned by {@link Sequence#getDataXY(int, int, int)}),
+     *            or a boolean mask
+     * @param width
+     *            the width of the slice
+     * @param fromRow
+     *            the first row to fill (inclusive)
+     * @param toRow
+     *            the last row to fill (exclusive, at most the height of the slice)
+     * @param value
+     *            the value of the pixels inside the section
+     */
+    void fill(Object data, int width, int fromRow, int toRow, double value)
+    {
+        if (nbEdges == 0) return;
+        
+        if (sorted.length < nbEdges) sorted = new long[Math.max(nbEdges, 2 * sorted.length)];
+        if (active.length < nbEdges) active = new int[sorted.length];
+        if (crossings.length < nbEdges) crossings = new double[sorted.length];
+        
+        // edge e crosses the centre (j + 0.5) of rows firstRow(e) to lastRow(e) (inclusive), and
+        // edges that cross no row centre (e.g. horizontal ones) are ignored
+        int nbSorted = 0;
+        for (int e = 0; e < nbEdges; e++)
+        {
+            int firstRow = Math.max(fromRow, firstRow(e));
+            if (firstRow <= Math.min(toRow - 1, lastRow(e))) sorted[nbSorted++] = ((long) firstRow << 32) | e;
+        }
+        Arrays.sort(sorted, 0, nbSorted);
+        
+        int next = 0, nbActive = 0;
+        
+        for (int j = nbSorted == 0 ? toRow : (int) (sorted[0] >> 32); j < toRow && (nbActive > 0 || next < nbSorted); j++)
+        {
+            // activate the edges starting on this row
+            while (next < nbSorted && (int) (sorted[next] >> 32) == j)
+                active[nbActive++] = (int) sorted[next++];
+            
+            // intersect the active edges with the row (dropping those that end above it)
+            double y = j + 0.5;
+            int nbCrossings = 0;
+            
+            for (int k = 0; k < nbActive; k++)
+            {
+                int e = active[k];
+                
+                if (lastRow(e) < j)
+                {
+                    active[k--] = active[--nbActive];
+                    continue;
+                }
+                
+                int i = 4 * e;
+                crossings[nbCrossings++] = edges[i] + (y - edges[i + 1]) * (edges[i + 2] - edges[i]) / (edges[i + 3] - edges[i + 1]);
+            }
+            
+            Arrays.sort(crossings, 0, nbCrossings);
+            
+            // fill the pixels whose centre lies between two consecutive crossings
+            int lineOffset = j * width;
+            
+            for (int k = 0; k + 1 < nbCrossings; k += 2)
+            {
+                int from = Math.max(0, (int) Math.ceil(crossings[k] - 0.5));
+                int to = Math.min(width, (int) Math.ceil(crossings[k + 1] - 0.5));
+                
+                if (from < to) fillSpan(data, lineOffset + from, lineOffset + to, value);
+            }
+        }
+    }
+    
+    private int firstRow(int e)
+    {
+        return (int) Math.ceil(Math.min(edges[4 * e + 1], edges[4 * e + 3]) - 0.5);
+    }
+    
+    private int lastRow(int e)
+    {
+        return (int) Math.ceil(Math.max(edges[4 * e + 1], edges[4 * e + 3]) - 0.5) - 1;
+    }
+    
+    /**
+     * Sets the elements of the specified array in [from, to[ to the specified value
+     * 
+     * @param data
+     *            a primitive array
+     * @param from
+     *            the first element (inclusive)
+     * @param to
+     *            the last element (exclusive)
+     * @param value
+     */
+    static void fillSpan(Object data, int from, int to, double value)
+    {
+        if (data instanceof boolean[])
+        {
+            Arrays.fill((boolean[]) data, from, to, value != 0);
+        }
+        else if (data instanceof byte[])
+        {
+            Arrays.fill((byte[]) data, from, to, (byte) value);
+        }
+        else if (data instanceof short[])
+        {
+            Arrays.fill((short[]) data, from, to, (short) value);
+        }
+        else if (data instanceof int[])
+        {
+            Arrays.fill((int[]) data, from, to, (int) value);
+        }
+        else if (data instanceof float[])
+        {
+            Arrays.fill((float[]) data, from, to, (float) value);
+        }
+        else if (data instanceof double[])
+        {
+            Arrays.fill((double[]) data, from, to, value);
+        }
+        else for (int i = from; i < to; i++)
+        {
+            Array1DUtil.setValue(data, i, value);
+        }
+    }
+    
+    /**
+     * Paints the specified contour onto the specified sequence (on the contour's time point, and on
+     * all the slices it covers)
+     * 
+     * @param contour
+     * @param output
+     *            the sequence to paint on (also used to convert the contour into pixel units)
+     * @param value
+     *            the value of the pixels inside the contour
+     */
+    static void render(ActiveContour contour, Sequence output, double value)
+    {
+        int[] bounds = contour.getRasterBounds(output);
+        int t = contour.getT();
+        
+        LabelRenderer renderer = new LabelRenderer();
+        
+        for (int z = Math.max(0, bounds[4]); z < Math.min(output.getSizeZ(), bounds[5]); z++)
+        {
+            Object data = output.getDataXY(t, z, 0);
+            if (data == null) continue;
+            
+            renderer.clear();
+            contour.addSection(renderer, z, output);
+            renderer.fill(data, output.getWidth(), output.getHeight(), value);
+        }
+    }
+    
+    /**
+     * Creates the tasks painting the specified contours onto a frame of the specified sequence (one
+     * task per slice, such that tasks never write to the same pixels). If there are fewer slices
+     * than tasks to create (e.g. in 2D), the slices are split into horizontal bands painted by
+     * separate tasks. Contours are painted in list order (i.e. the last contour prevails where
+     * contours overlap). The slices must exist in the output sequence before the tasks are run
+     * 
+     * @param output
+     *            the sequence to paint on
+     * @param t
+     *            the frame to paint on
+     * @param contours
+     *            the contours to paint
+     * @param labels
+     *            the value of each contour
+     * @param imageData
+     *            the image on which the contours were computed (used to convert them into pixel
+     *            units)
+     * @param nbTasks
+     *            the number of tasks to aim for (e.g. the number of threads running them)
+     * @return the painting tasks (one per slice covered by at least one contour, or per band of
+     *         such a slice)
+     */
+    static List<Callable<Object>> createTasks(final Sequence output, final int t, final List<ActiveContour> contours, final double[] labels, final Sequence imageData, int nbTasks)
+    {
+        final int sizeZ = Math.min(output.getSizeZ(), imageData.getSizeZ());
+        final int width = output.getWidth(), height = output.getHeight();
+        
+        // find the contours covering each slice
+        final int[][] bounds = new int[contours.size()][];
+        boolean[] covered = new boolean[sizeZ];
+        int nbCovered = 0;
+        
+        for (int i = 0; i < bounds.length; i++)
+        {
+            bounds[i] = contours.get(i).getRasterBounds(imageData);
+            for (int z = Math.max(0, bounds[i][4]); z < Math.min(sizeZ, bounds[i][5]); z++)
+                if (!covered[z])
+                {
+                    covered[z] = true;
+                    nbCovered++;
+                }
+        }
+        
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        
+        if (nbCovered == 0 || height == 0) return tasks;
+        
+        // split the slices into bands if there are not enough slices to keep all tasks busy
+        int nbBands = Math.min(height, Math.max(1, (nbTasks + nbCovered - 1) / nbCovered));
+        int bandHeight = (height + nbBands - 1) / nbBands;
+        
+        for (int slice = 0; slice < sizeZ; slice++)
+        {
+            if (!covered[slice]) continue;
+            
+            for (int band = 0; band < height; band += bandHeight)
+            {
+                final int z = slice;
+                final int fromRow = band, toRow = Math.min(height, band + bandHeight);
+                
+                tasks.add(new Callable<Object>()
+                {
+                    @Override
+                    public Object call()
+                    {
+                        Object data = output.getDataXY(t, z, 0);
+                        LabelRenderer renderer = new LabelRenderer();
+                        
+                        for (int i = 0; i < bounds.length; i++)
+                        {
+                            if (z < bounds[i][4] || z >= bounds[i][5]) continue;
+                            if (toRow <= bounds[i][2] || fromRow >= bounds[i][3]) continue;
+                            
+                            renderer.clear();
+                            contours.get(i).addSection(renderer, z, imageData);
+                            renderer.fill(data, width, fromRow, toRow, labels[i]);
+                        }
+                        
+                        return null;
+                    }
+                });
+            }
+        }
+        
+        return tasks;
+    }
+}
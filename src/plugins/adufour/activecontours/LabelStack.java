@@ -0,0 +1,345 @@
+package plugins.adufour.activecontours;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import icy.gui.viewer.Viewer;
+import icy.gui.viewer.ViewerEvent;
+import icy.gui.viewer.ViewerEvent.ViewerEventType;
+import icy.gui.viewer.ViewerListener;
+import icy.image.IcyBufferedImage;
+import icy.sequence.DimensionId;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Label images stored on disk, one frame at a time, such that the labels of long (3D) time-lapses
+ * never need to be held in memory as a whole. The file consists of a small header (see
+ * {@link #HEADER_SIZE}) followed by all the label planes as raw unsigned 16-bit values (big-endian),
+ * in T then Z order, such that it can also be imported as a raw image by other software. Frames can
+ * be written in any order (frames that are never written read as zeros).<br>
+ * The labels can then be displayed through a lazy view (see {@link #createView()}), which only
+ * holds the displayed frame in memory.
+ * 
+ * @author Alexandre Dufour
+ */
+public class LabelStack
+{
+    private static final int MAGIC       = 0x41434C42; // "ACLB"
+    
+    private static final int VERSION     = 1;
+    
+    /**
+     * Size of the file header (in bytes): magic number, version, sizeX, sizeY, sizeZ, sizeT
+     */
+    public static final int  HEADER_SIZE = 24;
+    
+    private final RandomAccessFile file;
+    
+    private final FileChannel      channel;
+    
+    public final int               sizeX, sizeY, sizeZ, sizeT;
+    
+    private LabelStack(RandomAccessFile file, int sizeX, int sizeY, int sizeZ, int sizeT)
+    {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeT = sizeT;
+    }
+    
+    /**
+     * Creates (or replaces) a label file of the specified dimensions
+     * 
+     * @param file
+     * @param sizeX
+     * @param sizeY
+     * @param sizeZ
+     * @param sizeT
+     * @return the (empty) label stack, ready to be written to
+     * @throws IOException
+     */
+    public static LabelStack create(File file, int sizeX, int sizeY, int sizeZ, int sizeT) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        
+        try
+        {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(sizeX);
+            raf.writeInt(sizeY);
+            raf.writeInt(sizeZ);
+            raf.writeInt(sizeT);
+            // unwritten frames read as zeros
+            raf.setLength(HEADER_SIZE + 2L * sizeX * sizeY * sizeZ * sizeT);
+            
+            return new LabelStack(raf, sizeX, sizeY, sizeZ, sizeT);
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Opens an existing label file (read-only)
+     * 
+     * @param file
+     * @return the label stack
+     * @throws IOException
+     *             if the file cannot be read or is not a valid label file
+     */
+    public static LabelStack open(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        
+        try
+        {
+            if (raf.readInt() != MAGIC) throw new IOException(file.getPath() + " is not an active contours label file");
+            
+            int version = raf.readInt();
+            if (version != VERSION) throw new IOException("Unsupported label file version: " + version);
+            
+            return new LabelStack(raf, raf.readInt(), raf.readInt(), raf.readInt(), raf.readInt());
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+    
+    private long getOffset(int t, int z)
+    {
+        return HEADER_SIZE + 2L * sizeX * sizeY * ((long) t * sizeZ + z);
+    }
+    
+    /**
+     * Writes a frame of the specified (unsigned 16-bit) label sequence to this stack. This method
+     * can be called from several threads concurrently, as long as they write different frames
+     * 
+     * @param t
+     *            the frame to write
+     * @param labels
+     *            the labels (missing slices are written as zeros)
+     * @throws IOException
+     */
+    public void writeFrame(int t, Sequence labels) throws IOException
+    {
+        writeFrame(t, labels, t);
+    }
+    
+    /**
+     * Writes a frame of the specified (unsigned 16-bit) label sequence to the specified frame of
+     * this stack (e.g. when the labels of each frame are computed in a separate sequence). This
+     * method can be called from several threads concurrently, as long as they write different
+     * frames
+     * 
+     * @param t
+     *            the frame of this stack to write
+     * @param labels
+     *            the labels (missing slices are written as zeros)
+     * @param labelsT
+     *            the frame of the label sequence to read
+     * @throws IOException
+     */
+    public void writeFrame(int t, Sequence labels, int labelsT) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * sizeX * sizeY);
+        
+        for (int z = 0; z < sizeZ; z++)
+        {
+            IcyBufferedImage slice = labels.getImage(labelsT, z);
+            
+            buffer.clear();
+            if (slice == null) Arrays.fill(buffer.array(), (byte) 0);
+            else buffer.asShortBuffer().put(slice.getDataXYAsShort(0));
+            
+            long position = getOffset(t, z);
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+    }
+    
+    /**
+     * Reads a slice of this stack
+     * 
+     * @param t
+     * @param z
+     * @return the slice (as an unsigned 16-bit image)
+     * @throws IOException
+     */
+    public IcyBufferedImage readSlice(int t, int z) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * sizeX * sizeY);
+        
+        long position = getOffset(t, z);
+        while (buffer.hasRemaining())
+        {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IOException("Truncated label file");
+            position += n;
+        }
+        buffer.flip();
+        
+        IcyBufferedImage slice = new IcyBufferedImage(sizeX, sizeY, 1, DataType.USHORT);
+        buffer.asShortBuffer().get(slice.getDataXYAsShort(0));
+        slice.dataChanged();
+        return slice;
+    }
+    
+    /**
+     * Creates a lazy view over this stack (see {@link View}), which then owns this stack
+     * 
+     * @return the view (initially showing the first frame)
+     * @throws IOException
+     */
+    public View createView() throws IOException
+    {
+        return new View();
+    }
+    
+    /**
+     * Closes the file. Views created from this stack can no longer load frames afterwards
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        file.close();
+    }
+    
+    /**
+     * Sequence view over a label stack, holding a single frame in memory at a time. All the other
+     * frames share empty placeholder slices, such that the sequence has the full dimensions of the
+     * stack. The frame shown by the viewers of the sequence (see {@link #show()}) is loaded as the
+     * viewer moves in time, and other frames can be loaded explicitly (see {@link #loadFrame(int)}).
+     * <br>
+     * The view is meant for display only: since the placeholders are shared, its images must not be
+     * modified, and its sequence should not be handed to processing that reads all frames. The view
+     * owns the stack it was created from, and closes it when its viewer is closed (or when
+     * {@link #close()} is called)
+     */
+    public class View implements ViewerListener
+    {
+        private final Sequence sequence;
+        
+        private final IcyBufferedImage[] placeholders = new IcyBufferedImage[sizeZ];
+        
+        private int loadedFrame = -1;
+        
+        View() throws IOException
+        {
+            sequence = new Sequence("Labels");
+            
+            for (int z = 0; z < sizeZ; z++)
+                placeholders[z] = new IcyBufferedImage(sizeX, sizeY, 1, DataType.USHORT);
+            
+            sequence.beginUpdate();
+            try
+            {
+                for (int t = 0; t < sizeT; t++)
+                    for (int z = 0; z < sizeZ; z++)
+                        sequence.setImage(t, z, placeholders[z]);
+            }
+            finally
+            {
+                sequence.endUpdate();
+            }
+            
+            loadFrame(0);
+        }
+        
+        /**
+         * @return the sequence of this view
+         */
+        public Sequence getSequence()
+        {
+            return sequence;
+        }
+        
+        /**
+         * Loads the specified frame into the sequence (the previously loaded frame is released)
+         * 
+         * @param t
+         * @throws IOException
+         */
+        public synchronized void loadFrame(int t) throws IOException
+        {
+            if (t == loadedFrame || t < 0 || t >= sizeT) return;
+            
+            sequence.beginUpdate();
+            try
+            {
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    if (loadedFrame != -1) sequence.setImage(loadedFrame, z, placeholders[z]);
+                    sequence.setImage(t, z, readSlice(t, z));
+                }
+            }
+            finally
+            {
+                sequence.endUpdate();
+            }
+            
+            loadedFrame = t;
+        }
+        
+        /**
+         * Displays the sequence in a new viewer, which loads each frame as it is displayed
+         */
+        public void show()
+        {
+            new Viewer(sequence).addListener(this);
+        }
+        
+        @Override
+        public void viewerChanged(ViewerEvent event)
+        {
+            if (event.getType() != ViewerEventType.POSITION_CHANGED || event.getDim() != DimensionId.T) return;
+            
+            try
+            {
+                loadFrame(event.getSource().getPositionT());
+            }
+            catch (IOException e)
+            {
+                System.err.println("Warning: couldn't load the labels of frame " + event.getSource().getPositionT() + ": " + e.getMessage());
+            }
+        }
+        
+        @Override
+        public void viewerClosed(Viewer viewer)
+        {
+            viewer.removeListener(this);
+            
+            try
+            {
+                close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Warning: couldn't close the label file: " + e.getMessage());
+            }
+        }
+        
+        /**
+         * Closes the underlying stack (no other frame can be loaded afterwards)
+         * 
+         * @throws IOException
+         */
+        public synchronized void close() throws IOException
+        {
+            LabelStack.this.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package plugins.adufour.activecontours;
+
+import java.util.Arrays;
+
+/**
+ * Summed-area tables of the image intensity and pixel count <i>outside</i> a binary mask (i.e.
+ * where the mask is <code>false</code>). Once built, the sum (and count) of unmasked pixels in any
+ * axis-aligned box is obtained in constant time, regardless of the size of the box. This is used to
+ * measure the local background intensity around each contour without re-scanning the image.<br>
+ * The tables are cumulative along Z as well, such that a single structure answers both 2D (single
+ * slice) and 3D (multiple slices) box queries.
+ * 
+ * @author Alexandre Dufour
+ */
+public class MaskedIntegralImage
+{
+    final int        sizeX, sizeY, sizeZ;
+    
+    /**
+     * Width of a table row (one more than the image width)
+     */
+    private final int lineLength;
+    
+    /**
+     * Cumulative sum of unmasked intensities. Table <code>z</code> covers slices [0, z[ (table 0
+     * is empty), and the element at <code>(x, y)</code> covers the pixels in [0, x[ x [0, y[
+     */
+    private final double[][] sums;
+    
+    /**
+     * Cumulative count of unmasked pixels (same layout as {@link #sums})
+     */
+    private final int[][]    counts;
+    
+    /**
+     * Creates empty tables for an image of the specified dimensions
+     * 
+     * @param sizeX
+     * @param sizeY
+     * @param sizeZ
+     */
+    public MaskedIntegralImage(int sizeX, int sizeY, int sizeZ)
+    {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.lineLength = sizeX + 1;
+        
+        int tableSize = lineLength * (sizeY + 1);
+        
+        sums = new double[sizeZ + 1][tableSize];
+        counts = new int[sizeZ + 1][tableSize];
+    }
+    
+    /**
+     * Fills the tables of a single slice. Slices are independent and can be computed in parallel,
+     * but {@link #accumulateSlices()} must be called once all slices have been computed
+     * 
+     * @param z
+     *            the slice index
+     * @param data
+     *            the image intensities of the slice
+     * @param mask
+     *            the mask of the slice (<code>null</code> to count all pixels)
+     */
+    void computeSlice(int z, float[] data, boolean[] mask)
+    {
+        double[] sum = sums[z + 1];
+        int[] count = counts[z + 1];
+        
+        // first line of the table remains empty
+        Arrays.fill(sum, 0, lineLength, 0.0);
+        Arrays.fill(count, 0, lineLength, 0);
+        
+        for (int j = 0, offset = 0; j < sizeY; j++)
+        {
+            int row = (j + 1) * lineLength;
+            int previousRow = row - lineLength;
+            
+            double lineSum = 0;
+            int lineCount = 0;
+            
+            sum[row] = 0.0;
+            count[row] = 0;
+            
+            for (int i = 1; i <= sizeX; i++, offset++)
+            {
+                if (mask == null || !mask[offset])
+                {
+                    lineSum += data[offset];
+                    lineCount++;
+                }
+                
+                sum[row + i] = sum[previousRow + i] + lineSum;
+                count[row + i] = count[previousRow + i] + lineCount;
+            }
+        }
+    }
+    
+    /**
+     * Accumulates the (already computed) slice tables along Z
+     */
+    void accumulateSlices()
+    {
+        for (int z = 2; z <= sizeZ; z++)
+        {
+            double[] sum = sums[z], previousSum = sums[z - 1];
+            int[] count = counts[z], previousCount = counts[z - 1];
+            
+            for (int i = 0; i < sum.length; i++)
+            {
+                sum[i] += previousSum[i];
+                count[i] += previousCount[i];
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds the tables from the specified image and mask (in the calling thread)
+     * 
+     * @param data
+     *            the image intensities, indexed as <code>data[z][x + y * sizeX]</code>
+     * @param mask
+     *            the mask, indexed as the image (<code>null</code> to count all pixels)
+     */
+    public void update(float[][] data, boolean[][] mask)
+    {
+        for (int z = 0; z < sizeZ; z++)
+            computeSlice(z, data[z], mask == null ? null : mask[z]);
+        
+        accumulateSlices();
+    }
+    
+    /**
+     * @return the sum of all unmasked intensities in the box [minX, maxX[ x [minY, maxY[ x [minZ,
+     *         maxZ[ (the box is clipped to the image bounds)
+     */
+    public double getSum(int minX, int maxX, int minY, int maxY, int minZ, int maxZ)
+    {
+        minX = clip(minX, sizeX);
+        maxX = clip(maxX, sizeX);
+        minY = clip(minY, sizeY);
+        maxY = clip(maxY, sizeY);
+        minZ = clip(minZ, sizeZ);
+        maxZ = clip(maxZ, sizeZ);
+        
+        if (minX >= maxX || minY >= maxY || minZ >= maxZ) return 0.0;
+        
+        int a = minX + minY * lineLength, b = maxX + minY * lineLength;
+        int c = minX + maxY * lineLength, d = maxX + maxY * lineLength;
+        
+        double[] upper = sums[maxZ], lower = sums[minZ];
+        
+        return (upper[d] - upper[b] - upper[c] + upper[a]) - (lower[d] - lower[b] - lower[c] + lower[a]);
+    }
+    
+    /**
+     * @return the number of unmasked pixels in the box [minX, maxX[ x [minY, maxY[ x [minZ, maxZ[
+     *         (the box is clipped to the image bounds)
+     */
+    public int getCount(int minX, int maxX, int minY, int maxY, int minZ, int maxZ)
+    {
+        minX = clip(minX, sizeX);
+        maxX = clip(maxX, sizeX);
+        minY = clip(minY, sizeY);
+        maxY = clip(maxY, sizeY);
+        minZ = clip(minZ, sizeZ);
+        maxZ = clip(maxZ, sizeZ);
+        
+        if (minX >= maxX || minY >= maxY || minZ >= maxZ) return 0;
+        
+        int a = minX + minY * lineLength, b = maxX + minY * lineLength;
+        int c = minX + maxY * lineLength, d = maxX + maxY * lineLength;
+        
+        int[] upper = counts[maxZ], lower = counts[minZ];
+        
+        return (upper[d] - upper[b] - upper[c] + upper[a]) - (lower[d] - lower[b] - lower[c] + lower[a]);
+    }
+    
+    private static int clip(int value, int size)
+    {
+        return value < 0 ? 0 : value > size ? size : value;
+    }
+}
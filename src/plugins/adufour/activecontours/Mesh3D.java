@@ -1,8 +1,17 @@
 package plugins.adufour.activecontours;
 
+import java.awt.Color;
 import java.awt.Graphics2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.vecmath.Point3d;
 import javax.vecmath.Tuple3d;
@@ -32,20 +41,13 @@ import plugins.kernel.roi.roi3d.ROI3DArea;
 public class Mesh3D extends ActiveContour
 {
     /**
-     * an active vertex is a vertex that carries motion information
+     * an active vertex is a vertex of an {@link ActiveMesh} (motion information is stored in the
+     * packed representation of the mesh, see {@link PackedMesh})
      * 
      * @author Alexandre Dufour
      */
     private static class ActiveVertex extends Vertex3D
     {
-        public final Vector3d imageForces = new Vector3d();
-        
-        public final Vector3d internalForces = new Vector3d();
-        
-        public final Vector3d feedbackForces = new Vector3d();
-        
-        public final Vector3d volumeConstraint = new Vector3d();
-        
         public ActiveVertex(ActiveVertex v)
         {
             super(v.position, v.neighbors);
@@ -92,10 +94,74 @@ public class Mesh3D extends ActiveContour
         {
             return new ActiveVertex(position);
         }
+        
+        /**
+         * Adds a triangle between the specified (existing) vertices, and links these vertices
+         * together
+         * 
+         * @param v1
+         * @param v2
+         * @param v3
+         */
+        void addTriangle(int v1, int v2, int v3)
+        {
+            addCell(createCell(v1, v2, v3));
+            
+            link(v1, v2);
+            link(v2, v3);
+            link(v3, v1);
+        }
+        
+        private void link(int v1, int v2)
+        {
+            Vertex3D a = getVertex(v1), b = getVertex(v2);
+            
+            if (!a.neighbors.contains(v2)) a.neighbors.add(v2);
+            if (!b.neighbors.contains(v1)) b.neighbors.add(v1);
+        }
     }
     
+    /**
+     * Size of the vertex blocks used to compute per-vertex reductions in parallel (large meshes
+     * only)
+     */
+    private static final int PARALLEL_BLOCK_SIZE = 4096;
+    
+    /**
+     * The mesh (N.B.: during the evolution, the mesh geometry is only updated on demand, hence
+     * {@link #getMesh()} should be used instead of direct access)
+     */
     final ActiveMesh mesh;
     
+    /**
+     * Packed representation of the mesh, used during the evolution. This representation is
+     * rebuilt whenever the mesh topology changes (e.g. after re-sampling)
+     */
+    private volatile PackedMesh packed;
+    
+    /**
+     * <code>true</code> if the packed representation has moved since it was last written back to
+     * the mesh
+     */
+    private volatile boolean meshOutOfDate = false;
+    
+    /**
+     * Bounding volume hierarchy over the packed triangles, used for inside/outside and distance
+     * queries (created on the first query, and refit after each move)
+     */
+    private volatile TriangleBVH bvh;
+    
+    /**
+     * Cached curvature of each packed vertex (see {@link #getCurvatures()}), reset after each move
+     */
+    private volatile double[] curvatures;
+    
+    /**
+     * Index of each vertex position (used by {@link #getCurvature(Point3d)}), reset with
+     * {@link #curvatures}
+     */
+    private volatile HashMap<Point3d, Integer> vertexIndex;
+    
     /**
      * DO NOT USE! This constructor is for XML loading purposes only
      */
@@ -113,7 +179,7 @@ public class Mesh3D extends ActiveContour
     {
         super(contour.sampling, new SlidingWindow(contour.convergence.getSize()));
         
-        mesh = (ActiveMesh) contour.mesh.clone();
+        mesh = (ActiveMesh) contour.getMesh().clone();
         setColor(contour.getColor());
         mesh.setColor(getColor());
         
@@ -130,6 +196,81 @@ public class Mesh3D extends ActiveContour
         updateMetaData();
     }
     
+    /**
+     * @return the packed representation of the mesh (created if necessary)
+     */
+    private PackedMesh getPacked()
+    {
+        PackedMesh p = packed;
+        
+        if (p == null) synchronized (this)
+        {
+            if (packed == null) packed = new PackedMesh(mesh);
+            p = packed;
+        }
+        
+        return p;
+    }
+    
+    /**
+     * Discards the packed representation after a topology change of the mesh (it will be rebuilt
+     * on demand)
+     */
+    private synchronized void invalidatePacked()
+    {
+        packed = null;
+        bvh = null;
+        curvatures = null;
+        vertexIndex = null;
+        meshOutOfDate = false;
+    }
+    
+    /**
+     * @return the bounding volume hierarchy of the packed mesh (created if necessary)
+     */
+    private TriangleBVH getBVH()
+    {
+        TriangleBVH b = bvh;
+        
+        if (b == null) synchronized (this)
+        {
+            if (bvh == null) bvh = new TriangleBVH(getPacked());
+            b = bvh;
+        }
+        
+        return b;
+    }
+    
+    /**
+     * Writes the geometry of the packed representation back to the mesh (if it has changed)
+     */
+    synchronized void syncMesh()
+    {
+        if (!meshOutOfDate) return;
+        
+        packed.writeTo(mesh);
+        mesh.roiChanged(true);
+        meshOutOfDate = false;
+    }
+    
+    /**
+     * @return the mesh of this contour, with up-to-date geometry
+     */
+    public ActiveMesh getMesh()
+    {
+        syncMesh();
+        return mesh;
+    }
+    
+    @Override
+    public void setColor(Color color)
+    {
+        super.setColor(color);
+        
+        // N.B.: the mesh doesn't exist yet when the super-constructor assigns the initial colour
+        if (mesh != null) mesh.setColor(color);
+    }
+    
     /**
      * Update the axis constraint force, which adjusts the takes the final forces and normalize them
      * to keep the contour shape along its principal axis <br>
@@ -137,38 +278,44 @@ public class Mesh3D extends ActiveContour
      * points. It should be used among the last to keep it most effective
      * 
      * @param weight
+     * @param axis
+     *            the (normalized) principal axis of the contour
      */
     @Override
-    void computeAxisForces(double weight)
+    void computeAxisForces(double weight, Vector3d axis, int fromIndex, int toIndex)
     {
-        Vector3d axis = getMajorAxis();
-        
         // To drive the contour along the main object axis, each displacement
         // vector is scaled by the scalar product between its normal and the main axis.
         
-        for (Vertex3D v : mesh.getVertices())
+        PackedMesh p = getPacked();
+        double[] normals = p.normals;
+        double[] imageForces = p.imageForces;
+        
+        for (int i = fromIndex; i < toIndex; i++)
         {
-            if (v == null) continue;
+            int x = 3 * i, y = x + 1, z = x + 2;
             
             // dot product between normalized vectors ranges from -1 to 1
-            double colinearity = Math.abs(v.normal.dot(axis)); // now from 0 to 1
+            double colinearity = Math.abs(normals[x] * axis.x + normals[y] * axis.y + normals[z] * axis.z); // now from 0 to 1
             
             // goal: adjust the minimum using the weight, but keep max to 1
             double threshold = Math.max(colinearity, 1 - weight);
             
-            ((ActiveVertex) v).imageForces.scale(threshold);
+            imageForces[x] *= threshold;
+            imageForces[y] *= threshold;
+            imageForces[z] *= threshold;
         }
     }
     
     @Override
-    void computeBalloonForces(double weight)
+    void computeBalloonForces(double weight, int fromIndex, int toIndex)
     {
-        for (Vertex3D v : mesh.getVertices())
-        {
-            if (v == null) continue;
-            
-            ((ActiveVertex) v).imageForces.scaleAdd(weight, v.normal, ((ActiveVertex) v).imageForces);
-        }
+        PackedMesh p = getPacked();
+        double[] normals = p.normals;
+        double[] imageForces = p.imageForces;
+        
+        for (int i = 3 * fromIndex; i < 3 * toIndex; i++)
+            imageForces[i] += weight * normals[i];
     }
     
     /**
@@ -178,7 +325,7 @@ public class Mesh3D extends ActiveContour
      * @param edgeData
      */
     @Override
-    void computeEdgeForces(Sequence edgeData, int channel, double weight)
+    void computeEdgeForces(Sequence edgeData, int channel, double weight, int fromIndex, int toIndex)
     {
         Vector3d grad = new Vector3d();
         Point3d prev = new Point3d();
@@ -188,12 +335,16 @@ public class Mesh3D extends ActiveContour
         double pixelSizeY = edgeData.getPixelSizeY();
         double pixelSizeZ = edgeData.getPixelSizeZ();
         
-        for (Vertex3D v : mesh.getVertices())
+        PackedMesh packedMesh = getPacked();
+        double[] positions = packedMesh.positions;
+        double[] imageForces = packedMesh.imageForces;
+        
+        for (int i = fromIndex; i < toIndex; i++)
         {
-            if (v == null) continue;
+            int x = 3 * i, y = x + 1, z = x + 2;
             
             // convert from metric to image space
-            p.set(v.position.x / pixelSizeX, v.position.y / pixelSizeY, v.position.z / pixelSizeZ);
+            p.set(positions[x] / pixelSizeX, positions[y] / pixelSizeY, positions[z] / pixelSizeZ);
             
             // compute the gradient (2nd order)
             
@@ -207,12 +358,14 @@ public class Mesh3D extends ActiveContour
             
             grad.sub(prev);
             grad.scale(weight);
-            ((ActiveVertex) v).imageForces.add(grad);
+            imageForces[x] += grad.x;
+            imageForces[y] += grad.y;
+            imageForces[z] += grad.z;
         }
     }
     
     @Override
-    void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout)
+    void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double cin, double cout, int fromIndex, int toIndex)
     {
         // sensitivity should be high for dim objects, low for bright objects...
         // ... but none of the following options work properly
@@ -231,15 +384,18 @@ public class Mesh3D extends ActiveContour
         
         double val, inDiff, outDiff;
         
-        for (Vertex3D v : mesh.getVertices())
+        PackedMesh p = getPacked();
+        double[] positions = p.positions;
+        double[] normals = p.normals;
+        double[] imageForces = p.imageForces;
+        
+        for (int i = fromIndex; i < toIndex; i++)
         {
-            if (v == null) continue;
-            
-            Point3d p = v.position;
+            int x = 3 * i, y = x + 1, z = x + 2;
             
-            regionForce.set(v.normal);
+            regionForce.set(normals[x], normals[y], normals[z]);
             
-            val = getPixelValue(imageData, p.x / pixelSizeX, p.y / pixelSizeY, p.z / pixelSizeZ);
+            val = getPixelValue(imageData, positions[x] / pixelSizeX, positions[y] / pixelSizeY, positions[z] / pixelSizeZ);
             
             inDiff = val - cin;
             inDiff *= inDiff;
@@ -249,30 +405,44 @@ public class Mesh3D extends ActiveContour
             
             regionForce.scale(weight * (sensitivity * outDiff) - (inDiff / sensitivity));
             
-            ((ActiveVertex) v).imageForces.add(regionForce);
+            imageForces[x] += regionForce.x;
+            imageForces[y] += regionForce.y;
+            imageForces[z] += regionForce.z;
         }
         
     }
     
     @Override
-    void computeInternalForces(double weight)
+    void computeInternalForces(double weight, int fromIndex, int toIndex)
     {
-        Vector3d internalForce = new Vector3d();
-        
         weight /= sampling.getValue();
         
-        for (Vertex3D v : mesh.getVertices())
+        PackedMesh p = getPacked();
+        double[] positions = p.positions;
+        double[] internalForces = p.internalForces;
+        int[] offsets = p.neighborOffsets;
+        int[] neighbors = p.neighbors;
+        
+        for (int i = fromIndex; i < toIndex; i++)
         {
-            if (v == null) continue;
-            
-            internalForce.scale(-v.neighbors.size(), v.position);
+            int x = 3 * i, y = x + 1, z = x + 2;
+            int nbNeighbors = offsets[i + 1] - offsets[i];
             
-            for (Integer nn : v.neighbors)
-                internalForce.add(mesh.getVertex(nn).position);
+            double fx = -nbNeighbors * positions[x];
+            double fy = -nbNeighbors * positions[y];
+            double fz = -nbNeighbors * positions[z];
             
-            internalForce.scale(weight);
+            for (int k = offsets[i]; k < offsets[i + 1]; k++)
+            {
+                int n = 3 * neighbors[k];
+                fx += positions[n];
+                fy += positions[n + 1];
+                fz += positions[n + 2];
+            }
             
-            ((ActiveVertex) v).internalForces.add(internalForce);
+            internalForces[x] += fx * weight;
+            internalForces[y] += fy * weight;
+            internalForces[z] += fz * weight;
         }
     }
     
@@ -283,17 +453,21 @@ public class Mesh3D extends ActiveContour
         // if (volumeDiff > 0): contour too small, should no longer shrink
         // if (volumeDiff < 0): contour too big, should no longer grow
         
+        PackedMesh p = getPacked();
+        double[] normals = p.normals;
+        double[] imageForces = p.imageForces;
+        double[] feedbackForces = p.feedbackForces;
+        double[] volumeConstraint = p.volumeConstraint;
+        
         Vector3d avgFeedback = new Vector3d();
         int cpt = 0;
         
-        for (Vertex3D v : mesh.getVertices())
+        for (int i = 0; i < p.size; i++)
         {
-            if (v == null) continue;
-            
-            Vector3d feedbackForce = ((ActiveVertex) v).feedbackForces;
+            int x = 3 * i, y = x + 1, z = x + 2;
             
             // 2) check whether the final force has same direction as the outer normal
-            double forceNorm = ((ActiveVertex) v).imageForces.dot(v.normal);
+            double forceNorm = imageForces[x] * normals[x] + imageForces[y] * normals[y] + imageForces[z] * normals[z];
             
             // if forces have same direction (forceNorm > 0): contour is growing
             // if forces have opposite direction (forceNorm < 0): contour is shrinking
@@ -301,7 +475,9 @@ public class Mesh3D extends ActiveContour
             // estimate an average feedback
             if (forceNorm > 0 && volumeDiff < 0)
             {
-                avgFeedback.add(feedbackForce);
+                avgFeedback.x += feedbackForces[x];
+                avgFeedback.y += feedbackForces[y];
+                avgFeedback.z += feedbackForces[z];
                 cpt++;
             }
         }
@@ -312,9 +488,11 @@ public class Mesh3D extends ActiveContour
             avgFeedback.scale(Math.abs(volumeDiff / targetVolume) / 1.5);
             
             // move the entire mesh (ugly, but amazingly efficient!!)
-            for (Vertex3D v : mesh.getVertices())
+            for (int i = 0; i < p.size; i++)
             {
-                if (v != null) ((ActiveVertex) v).volumeConstraint.add(avgFeedback);
+                volumeConstraint[3 * i] += avgFeedback.x;
+                volumeConstraint[3 * i + 1] += avgFeedback.y;
+                volumeConstraint[3 * i + 2] += avgFeedback.z;
             }
         }
     }
@@ -328,7 +506,7 @@ public class Mesh3D extends ActiveContour
      * @return the number of actual point-mesh intersection tests
      */
     @Override
-    int computeFeedbackForces(ActiveContour target)
+    int computeFeedbackForces(ActiveContour target, int fromIndex, int toIndex)
     {
         Point3d targetCenter = new Point3d();
         target.boundingSphere.getCenter(targetCenter);
@@ -340,29 +518,37 @@ public class Mesh3D extends ActiveContour
         target.boundingBox.getUpper(upperBounds);
         
         double feedback = 0;
-        Vector3d feedbackForce = new Vector3d();
+        
+        PackedMesh p = getPacked();
+        double[] positions = p.positions;
+        double[] normals = p.normals;
+        double[] feedbackForces = p.feedbackForces;
+        
+        Point3d position = new Point3d();
         
         int tests = 0;
         
-        for (Vertex3D v : mesh.getVertices())
+        for (int i = fromIndex; i < toIndex; i++)
         {
-            if (v == null) continue;
+            int x = 3 * i, y = x + 1, z = x + 2;
+            
+            position.set(positions[x], positions[y], positions[z]);
             
-            if (v.position.x < lowerBounds.x || v.position.y < lowerBounds.y || v.position.z < lowerBounds.z) continue;
+            if (position.x < lowerBounds.x || position.y < lowerBounds.y || position.z < lowerBounds.z) continue;
             
-            if (v.position.x > upperBounds.x || v.position.y > upperBounds.y || v.position.z > upperBounds.z) continue;
+            if (position.x > upperBounds.x || position.y > upperBounds.y || position.z > upperBounds.z) continue;
             
-            double distance = v.position.distance(targetCenter);
+            double distance = position.distance(targetCenter);
             
             if (distance < targetRadius)
             {
                 tests++;
                 
-                if ((feedback = target.getDistanceToEdge(v.position)) > 0)
+                if ((feedback = target.getDistanceToEdge(position)) > 0)
                 {
-                    feedbackForce.set(v.normal);
-                    feedbackForce.scale(-feedback * 10);
-                    ((ActiveVertex) v).feedbackForces.add(feedbackForce);
+                    feedbackForces[x] -= normals[x] * feedback * 10;
+                    feedbackForces[y] -= normals[y] * feedback * 10;
+                    feedbackForces[z] -= normals[z] * feedback * 10;
                 }
             }
         }
@@ -370,28 +556,118 @@ public class Mesh3D extends ActiveContour
         return tests;
     }
     
+    /**
+     * @param pt
+     *            the position of a mesh vertex
+     * @return the curvature of the mesh at the specified vertex (see {@link #getCurvatures()}), or
+     *         0 if no vertex exists at the specified position
+     */
     public double getCurvature(Point3d pt)
     {
-        for (Vertex3D v : mesh.getVertices())
+        HashMap<Point3d, Integer> index = vertexIndex;
+        
+        if (index == null)
+        {
+            PackedMesh p = getPacked();
+            
+            index = new HashMap<Point3d, Integer>(p.size * 2);
+            for (int i = 0; i < p.size; i++)
+            {
+                Point3d position = new Point3d();
+                p.getPosition(i, position);
+                index.put(position, i);
+            }
+            
+            vertexIndex = index;
+        }
+        
+        Integer i = index.get(pt);
+        
+        return i == null ? 0 : getCurvature(i);
+    }
+    
+    /**
+     * @param index
+     *            a vertex index (from 0 to {@link #getDimension(int) getDimension(0)} - 1)
+     * @return the curvature of the mesh at the specified vertex (see {@link #getCurvatures()})
+     */
+    public double getCurvature(int index)
+    {
+        double[] values = curvatures;
+        
+        if (values == null) values = computeCurvatures();
+        
+        return values[index];
+    }
+    
+    /**
+     * Computes the discrete mean curvature of the mesh at every vertex, measured via the
+     * "umbrella" operator, i.e. the length of the vector from the vertex to the average of its
+     * neighbors, signed negatively if the surface is locally convex. The result is cached until the
+     * contour moves again.
+     * 
+     * @return the curvature of each vertex, indexed as {@link #getVertexPosition(int, Point3d)}
+     */
+    public double[] getCurvatures()
+    {
+        double[] values = curvatures;
+        
+        if (values == null) values = computeCurvatures();
+        
+        return values.clone();
+    }
+    
+    private double[] computeCurvatures()
+    {
+        PackedMesh p = getPacked();
+        double[] positions = p.positions;
+        double[] normals = p.normals;
+        int[] offsets = p.neighborOffsets;
+        int[] neighbors = p.neighbors;
+        
+        double[] values = new double[p.size];
+        
+        for (int i = 0; i < p.size; i++)
         {
-            if (v == null) continue;
+            int nbNeighbors = offsets[i + 1] - offsets[i];
+            
+            if (nbNeighbors == 0) continue;
+            
+            int x = 3 * i, y = x + 1, z = x + 2;
             
-            if (!v.position.equals(pt)) continue;
+            double sx = 0, sy = 0, sz = 0;
             
-            Vector3d sum = new Vector3d();
-            Vector3d diff = new Vector3d();
-            for (Integer n : v.neighbors)
+            for (int k = offsets[i]; k < offsets[i + 1]; k++)
             {
-                Point3d neighbor = mesh.getVertex(n).position;
-                diff.sub(neighbor, pt);
-                sum.add(diff);
+                int n = 3 * neighbors[k];
+                sx += positions[n] - positions[x];
+                sy += positions[n + 1] - positions[y];
+                sz += positions[n + 2] - positions[z];
             }
-            sum.scale(1.0 / v.neighbors.size());
             
-            return sum.length() * Math.signum(sum.dot(v.normal));
+            sx /= nbNeighbors;
+            sy /= nbNeighbors;
+            sz /= nbNeighbors;
+            
+            values[i] = Math.sqrt(sx * sx + sy * sy + sz * sz) * Math.signum(sx * normals[x] + sy * normals[y] + sz * normals[z]);
         }
         
-        return 0;
+        curvatures = values;
+        
+        return values;
+    }
+    
+    /**
+     * Retrieves the position of a mesh vertex
+     * 
+     * @param index
+     *            a vertex index (from 0 to {@link #getDimension(int) getDimension(0)} - 1)
+     * @param position
+     *            the point to fill with the vertex position
+     */
+    public void getVertexPosition(int index, Point3d position)
+    {
+        getPacked().getPosition(index, position);
     }
     
     public double getDimension(int order)
@@ -399,27 +675,24 @@ public class Mesh3D extends ActiveContour
         switch (order)
         {
             case 0:
-                return mesh.getNumberOfVertices(true);
+                return getPacked().size;
             case 1:
-                return mesh.getNumberOfContourPoints();
+                return getMesh().getNumberOfContourPoints();
             case 2:
-                return mesh.getNumberOfPoints();
+                return getMesh().getNumberOfPoints();
         }
         return Double.NaN;
     }
     
-    Point3d getMassCenter(boolean convertToImageSpace)
+    @Override
+    int getVertexSlotCount()
     {
-        return mesh.getMassCenter(convertToImageSpace);
+        return getPacked().size;
     }
     
-    /**
-     * @return The major axis of this contour, i.e. an unnormalized vector formed of the two most
-     *         distant contour points
-     */
-    public Vector3d getMajorAxis()
+    Point3d getMassCenter(boolean convertToImageSpace)
     {
-        return mesh.getMajorAxis();
+        return getMesh().getMassCenter(convertToImageSpace);
     }
     
     /**
@@ -489,21 +762,21 @@ public class Mesh3D extends ActiveContour
     public double getX()
     {
         // get this in pixel units
-        return mesh.getMassCenter(true).x;
+        return getMesh().getMassCenter(true).x;
     }
     
     @Override
     public double getY()
     {
         // get this in pixel units
-        return mesh.getMassCenter(true).y;
+        return getMesh().getMassCenter(true).y;
     }
     
     @Override
     public double getZ()
     {
         // get this in pixel units
-        return mesh.getMassCenter(true).z;
+        return getMesh().getMassCenter(true).z;
     }
     
     @Override
@@ -520,7 +793,7 @@ public class Mesh3D extends ActiveContour
         
         return new Iterator<Point3d>()
         {
-            Iterator<Vertex3D> vertexIterator = mesh.getVertices().iterator();
+            Iterator<Vertex3D> vertexIterator = getMesh().getVertices().iterator();
             
             Vertex3D next;
             
@@ -561,38 +834,44 @@ public class Mesh3D extends ActiveContour
         };
     }
     
-    void move(ROI field, double timeStep)
+    @Override
+    void move(EvolutionField field, double timeStep, int fromIndex, int toIndex)
     {
         Vector3d force = new Vector3d();
         double maxDisp = sampling.getValue() * timeStep;
         
-        Point3d p = new Point3d();
         Tuple3d pixelSize = mesh.getPixelSize();
         
-        for (Vertex3D v : mesh.getVertices())
+        PackedMesh p = getPacked();
+        double[] positions = p.positions;
+        double[] imageForces = p.imageForces;
+        double[] internalForces = p.internalForces;
+        double[] feedbackForces = p.feedbackForces;
+        double[] volumeConstraint = p.volumeConstraint;
+        
+        for (int i = fromIndex; i < toIndex; i++)
         {
-            if (v == null) continue;
-            
-            ActiveVertex av = (ActiveVertex) v;
+            int x = 3 * i, y = x + 1, z = x + 2;
             
             // get the vertex location in image space
-            p.set(v.position.x / pixelSize.x, v.position.y / pixelSize.y, v.position.z / pixelSize.z);
+            double px = positions[x] / pixelSize.x;
+            double py = positions[y] / pixelSize.y;
+            double pz = positions[z] / pixelSize.z;
             
             // apply model forces if p lies within the area of interest
-            if (field != null && p.z >= 0 && field.contains(p.x, p.y, p.z, 0, 0))
+            if (field != null && pz >= 0 && field.contains(px, py, pz))
             {
-                if (av.volumeConstraint.length() > 0) av.position.add(av.volumeConstraint);
+                positions[x] += volumeConstraint[x];
+                positions[y] += volumeConstraint[y];
+                positions[z] += volumeConstraint[z];
                 
-                force.set(av.imageForces);
-                
-                force.add(av.internalForces);
-                
-                force.add(av.feedbackForces);
+                force.x = imageForces[x] + internalForces[x] + feedbackForces[x];
+                force.y = imageForces[y] + internalForces[y] + feedbackForces[y];
+                force.z = imageForces[z] + internalForces[z] + feedbackForces[z];
             }
             else
             {
-                // force.set(av.imageForces);
-                force.set(av.internalForces);
+                force.set(internalForces[x], internalForces[y], internalForces[z]);
                 force.scale(0.1);
             }
             
@@ -603,22 +882,30 @@ public class Mesh3D extends ActiveContour
             if (disp > maxDisp) force.scale(maxDisp / disp);
             
             // move the vertex
-            v.position.add(force);
+            positions[x] += force.x;
+            positions[y] += force.y;
+            positions[z] += force.z;
             
             // reset forces
-            av.imageForces.set(0, 0, 0);
-            av.internalForces.set(0, 0, 0);
-            av.feedbackForces.set(0, 0, 0);
-            av.volumeConstraint.set(0, 0, 0);
+            imageForces[x] = imageForces[y] = imageForces[z] = 0;
+            internalForces[x] = internalForces[y] = internalForces[z] = 0;
+            feedbackForces[x] = feedbackForces[y] = feedbackForces[z] = 0;
+            volumeConstraint[x] = volumeConstraint[y] = volumeConstraint[z] = 0;
         }
-        
+    }
+    
+    @Override
+    void commitMove()
+    {
         updateMetaData();
         
         // compute some convergence criterion
         
         if (convergence == null) return;
         
-        convergence.push(mesh.getNumberOfPoints());
+        // N.B.: use the volume of the packed mesh (converted to voxels) to avoid updating the mesh
+        Tuple3d pixelSize = mesh.getPixelSize();
+        convergence.push(getPacked().getVolume() / (pixelSize.x * pixelSize.y * pixelSize.z));
     }
     
     @Override
@@ -631,9 +918,189 @@ public class Mesh3D extends ActiveContour
     @Override
     protected void updateMetaData()
     {
-        super.updateMetaData();
+        final PackedMesh p = getPacked();
         
-        mesh.roiChanged(true);
+        updateNormals();
+        
+        // the vertices are split into blocks of fixed size, and the partial results are reduced in
+        // block order (this keeps the result reproducible regardless of the number of threads)
+        int nbBlocks = Math.max(1, (p.size + PARALLEL_BLOCK_SIZE - 1) / PARALLEL_BLOCK_SIZE);
+        
+        // 1) center and bounding box
+        // partial layout: [sumX, sumY, sumZ, count, minX, minY, minZ, maxX, maxY, maxZ]
+        
+        ArrayList<Callable<double[]>> boxTasks = new ArrayList<Callable<double[]>>(nbBlocks);
+        
+        for (int b = 0; b < nbBlocks; b++)
+        {
+            final int from = b * PARALLEL_BLOCK_SIZE;
+            final int to = Math.min(p.size, from + PARALLEL_BLOCK_SIZE);
+            
+            boxTasks.add(new Callable<double[]>()
+            {
+                @Override
+                public double[] call()
+                {
+                    double[] partial = { 0, 0, 0, 0, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, 0.0, 0.0, 0.0 };
+                    
+                    double[] positions = p.positions;
+                    
+                    for (int i = 3 * from; i < 3 * to; i += 3)
+                    {
+                        double x = positions[i], y = positions[i + 1], z = positions[i + 2];
+                        
+                        partial[0] += x;
+                        partial[1] += y;
+                        partial[2] += z;
+                        partial[3]++;
+                        if (x < partial[4]) partial[4] = x;
+                        if (y < partial[5]) partial[5] = y;
+                        if (z < partial[6]) partial[6] = z;
+                        if (x > partial[7]) partial[7] = x;
+                        if (y > partial[8]) partial[8] = y;
+                        if (z > partial[9]) partial[9] = z;
+                    }
+                    
+                    return partial;
+                }
+            });
+        }
+        
+        List<double[]> boxes = invokeAll(boxTasks);
+        
+        // interrupted (or empty mesh): keep the previous meta-data rather than dividing by zero
+        if (boxes == null || p.size == 0) return;
+        
+        double[] total = { 0, 0, 0, 0, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, 0.0, 0.0, 0.0 };
+        
+        for (double[] partial : boxes)
+        {
+            for (int k = 0; k < 4; k++)
+                total[k] += partial[k];
+            for (int k = 4; k < 7; k++)
+                total[k] = Math.min(total[k], partial[k]);
+            for (int k = 7; k < 10; k++)
+                total[k] = Math.max(total[k], partial[k]);
+        }
+        
+        final Point3d center = new Point3d(total[0], total[1], total[2]);
+        center.scale(1.0 / total[3]);
+        setX(center.x);
+        setY(center.y);
+        setZ(center.z);
+        
+        boundingSphere.setCenter(center);
+        
+        boundingBox.setLower(total[4], total[5], total[6]);
+        boundingBox.setUpper(total[7], total[8], total[9]);
+        
+        // 2) bounding sphere radius and second-order moments (for the major axis)
+        
+        ArrayList<Callable<double[]>> radiusTasks = new ArrayList<Callable<double[]>>(nbBlocks);
+        
+        for (int b = 0; b < nbBlocks; b++)
+        {
+            final int from = b * PARALLEL_BLOCK_SIZE;
+            final int to = Math.min(p.size, from + PARALLEL_BLOCK_SIZE);
+            
+            radiusTasks.add(new Callable<double[]>()
+            {
+                @Override
+                public double[] call()
+                {
+                    // partial layout: [radius, xx, xy, xz, yy, yz, zz]
+                    double[] partial = new double[7];
+                    
+                    double[] positions = p.positions;
+                    
+                    for (int i = 3 * from; i < 3 * to; i += 3)
+                    {
+                        double dx = positions[i] - center.x, dy = positions[i + 1] - center.y, dz = positions[i + 2] - center.z;
+                        
+                        double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                        
+                        if (d > partial[0]) partial[0] = d;
+                        
+                        partial[1] += dx * dx;
+                        partial[2] += dx * dy;
+                        partial[3] += dx * dz;
+                        partial[4] += dy * dy;
+                        partial[5] += dy * dz;
+                        partial[6] += dz * dz;
+                    }
+                    
+                    return partial;
+                }
+            });
+        }
+        
+        List<double[]> radii = invokeAll(radiusTasks);
+        
+        // interrupted: the centre and bounding box are valid, but not the radius and axis
+        if (radii == null) return;
+        
+        double radius = 0;
+        double[] moments = new double[6];
+        
+        for (double[] partial : radii)
+        {
+            if (partial[0] > radius) radius = partial[0];
+            for (int k = 0; k < 6; k++)
+                moments[k] += partial[k + 1];
+        }
+        
+        boundingSphere.setRadius(radius);
+        
+        updateMajorAxis(moments, total[3]);
+        
+        // the search structure (if any) must follow the vertices...
+        TriangleBVH b = bvh;
+        if (b != null) b.refit();
+        
+        // ...while the mesh itself and the curvature are updated on demand
+        curvatures = null;
+        vertexIndex = null;
+        meshOutOfDate = true;
+    }
+    
+    /**
+     * Runs the given tasks on the contour thread pool, and returns their results in submission order
+     * 
+     * @return the results, or <code>null</code> if the current thread was interrupted (in which case
+     *         the interrupted flag is restored, and the caller should drop any partial computation)
+     */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks)
+    {
+        List<T> results = new ArrayList<T>(tasks.size());
+        
+        try
+        {
+            if (tasks.size() == 1)
+            {
+                // no multi-threading needed
+                results.add(tasks.get(0).call());
+                return results;
+            }
+            
+            for (Future<T> future : processor.invokeAll(tasks))
+                results.add(future.get());
+        }
+        catch (InterruptedException e)
+        {
+            // restore the interrupted flag (the evolution will stop shortly)
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+        
+        return results;
     }
     
     @Override
@@ -641,7 +1108,30 @@ public class Mesh3D extends ActiveContour
     {
         if (!super.saveToXML(node)) return false;
         
-        return mesh.saveToXML(node);
+        // the packed representation holds the latest geometry, without empty slots
+        PackedMesh p = getPacked();
+        
+        ContourCodec.Writer data = new ContourCodec.Writer(10 + 12 * p.size + 2 * p.triangles.length);
+        
+        // vertex positions
+        data.writeVarInt(p.size);
+        for (int i = 0; i < 3 * p.size; i++)
+            data.writeFloat(p.positions[i]);
+        
+        // faces: each vertex index is stored as the difference to the previous one (neighboring
+        // faces share vertices with close indices, hence the differences are mostly small)
+        data.writeVarInt(p.getNumberOfTriangles());
+        
+        int previous = 0;
+        for (int index : p.triangles)
+        {
+            data.writeSignedVarInt(index - previous);
+            previous = index;
+        }
+        
+        ContourCodec.save(node, data.toByteArray());
+        
+        return true;
     }
     
     @Override
@@ -649,19 +1139,115 @@ public class Mesh3D extends ActiveContour
     {
         if (!super.loadFromXML(node)) return false;
         
-        boolean success = mesh.loadFromXML(node);
+        boolean success = true;
+        
+        try
+        {
+            ContourCodec.Reader data = ContourCodec.load(node);
+            
+            if (data == null)
+            {
+                // original format (mesh XML)
+                success = mesh.loadFromXML(node);
+            }
+            else
+            {
+                double[] positions = new double[3 * data.readVarInt()];
+                for (int i = 0; i < positions.length; i++)
+                    positions[i] = data.readFloat();
+                
+                int[] triangles = new int[3 * data.readVarInt()];
+                
+                int previous = 0;
+                for (int k = 0; k < triangles.length; k++)
+                    triangles[k] = previous += data.readSignedVarInt();
+                
+                setGeometry(positions, triangles);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Warning: couldn't read contour data: " + e.getMessage());
+            success = false;
+        }
         
         mesh.setT(getT());
         
+        invalidatePacked();
+        
         return success;
     }
     
+    @Override
+    void writeGeometry(DataOutput out) throws IOException
+    {
+        PackedMesh p = getPacked();
+        
+        out.writeInt(p.size);
+        for (int i = 0; i < 3 * p.size; i++)
+            out.writeDouble(p.positions[i]);
+        
+        out.writeInt(p.getNumberOfTriangles());
+        for (int index : p.triangles)
+            out.writeInt(index);
+    }
+    
+    @Override
+    void readGeometry(DataInput in) throws IOException
+    {
+        double[] positions = new double[3 * in.readInt()];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = in.readDouble();
+        
+        int[] triangles = new int[3 * in.readInt()];
+        for (int k = 0; k < triangles.length; k++)
+            triangles[k] = in.readInt();
+        
+        setGeometry(positions, triangles);
+        
+        updateMetaData();
+    }
+    
+    /**
+     * Rebuilds the (empty) mesh of this contour from the specified geometry
+     * 
+     * @param positions
+     *            the vertex positions (3 consecutive values per vertex)
+     * @param triangles
+     *            the vertex indices of each triangle (3 consecutive values per triangle)
+     * @throws IOException
+     *             if a triangle refers to a missing vertex
+     */
+    private void setGeometry(double[] positions, int[] triangles) throws IOException
+    {
+        int n = positions.length / 3;
+        
+        for (int index : triangles)
+            if (index < 0 || index >= n) throw new IOException("Invalid contour data");
+        
+        for (int i = 0; i < n; i++)
+            mesh.addVertex(mesh.createVertex(new Point3d(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2])));
+        
+        for (int k = 0; k < triangles.length; k += 3)
+            mesh.addTriangle(triangles[k], triangles[k + 1], triangles[k + 2]);
+        
+        invalidatePacked();
+    }
+    
     @Override
     public void reSample(double minFactor, double maxFactor) throws TopologyException
     {
+        // the packed geometry must be up to date before the mesh topology changes
+        syncMesh();
+        
         try
         {
             mesh.reSampleToAverageDistance(sampling.getValue(), 0.4);
+            
+            // rebuild the packed representation right away (this method typically runs in
+            // parallel, while the packed mesh would otherwise be rebuilt later on demand)
+            invalidatePacked();
+            getPacked();
         }
         catch (MeshTopologyException e)
         {
@@ -687,7 +1273,8 @@ public class Mesh3D extends ActiveContour
     @Override
     protected void addPoint(Point3d p)
     {
-        mesh.addVertex(mesh.createVertex(p));
+        getMesh().addVertex(mesh.createVertex(p));
+        invalidatePacked();
     }
     
     @Override
@@ -701,15 +1288,25 @@ public class Mesh3D extends ActiveContour
     public double computeAverageIntensity(Sequence regionData, BooleanMask3D mask) throws TopologyException
     {
         VarDouble avg = new VarDouble("avg", 0.0);
-        mesh.rasterScan(regionData, avg, mask);
+        getMesh().rasterScan(regionData, avg, mask);
         return avg.getValue();
     }
     
-    public double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask)
+    /**
+     * @param imageData
+     *            the image (used to convert the bounding box into pixel units)
+     * @param sizeX
+     *            the image width
+     * @param sizeY
+     *            the image height
+     * @param sizeZ
+     *            the image depth
+     * @return the window where the local background is measured, as {minX, maxX, minY, maxY,
+     *         minZ, maxZ} (exclusive upper bounds). The window spans twice the contour's bounding
+     *         box
+     */
+    private int[] getBackgroundWindow(Sequence imageData, int sizeX, int sizeY, int sizeZ)
     {
-        Rectangle3D.Integer b3 = mask.bounds;
-        
-        // attempt to calculate a localised average outside each contour
         Point3d min = new Point3d(), max = new Point3d();
         
         boundingBox.getLower(min);
@@ -725,29 +1322,39 @@ public class Mesh3D extends ActiveContour
         
         double zExtent = max.z - min.z;
         int minZ = Math.max(0, (int) Math.round(min.z - zExtent / 2));
-        int maxZ = Math.min(b3.sizeZ, (int) Math.round(max.z + zExtent / 2));
+        int maxZ = Math.min(sizeZ, (int) Math.round(max.z + zExtent / 2));
         
         double yExtent = max.y - min.y;
         int minY = Math.max(0, (int) Math.round(min.y - yExtent / 2));
-        int maxY = Math.min(b3.sizeY, (int) Math.round(max.y + yExtent / 2));
+        int maxY = Math.min(sizeY, (int) Math.round(max.y + yExtent / 2));
         
         double xExtent = max.x - min.x;
         int minX = Math.max(0, (int) Math.round(min.x - xExtent / 2));
-        int maxX = Math.min(b3.sizeX, (int) Math.round(max.x + xExtent / 2));
+        int maxX = Math.min(sizeX, (int) Math.round(max.x + xExtent / 2));
+        
+        return new int[] { minX, maxX, minY, maxY, minZ, maxZ };
+    }
+    
+    public double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask)
+    {
+        Rectangle3D.Integer b3 = mask.bounds;
+        
+        // attempt to calculate a localised average outside each contour
+        int[] window = getBackgroundWindow(imageData, b3.sizeX, b3.sizeY, b3.sizeZ);
         
         double outSum = 0, outCpt = 0;
-        for (int zSlice = minZ; zSlice < maxZ; zSlice++)
+        for (int zSlice = window[4]; zSlice < window[5]; zSlice++)
         {
             boolean[] _mask = mask.mask.get(zSlice).mask;
             float[] _data = imageData.getDataXYAsFloat(0, zSlice, 0);
             
-            for (int j = minY; j < maxY; j++)
+            for (int j = window[2]; j < window[3]; j++)
             {
-                int offset = minX + j * b3.sizeX;
-                for (int i = minX; i < maxX; i++, offset++)
+                int offset = window[0] + j * b3.sizeX;
+                for (int i = window[0]; i < window[1]; i++, offset++)
                     if (!_mask[offset])
                     {
-                        outSum += _data[i];
+                        outSum += _data[offset];
                         outCpt++;
                     }
             }
@@ -756,10 +1363,60 @@ public class Mesh3D extends ActiveContour
         return outCpt == 0 ? 0 : outSum / outCpt;
     }
     
+    @Override
+    int[] getRasterBounds(Sequence imageData)
+    {
+        Point3d min = new Point3d(), max = new Point3d();
+        
+        boundingBox.getLower(min);
+        boundingBox.getUpper(max);
+        
+        double px = imageData.getPixelSizeX(), py = imageData.getPixelSizeY(), pz = imageData.getPixelSizeZ();
+        
+        // include a 1-pixel margin (the rasterisation rounds the vertex coordinates)
+        int minX = (int) Math.floor(min.x / px) - 1, maxX = (int) Math.ceil(max.x / px) + 2;
+        int minY = (int) Math.floor(min.y / py) - 1, maxY = (int) Math.ceil(max.y / py) + 2;
+        int minZ = (int) Math.floor(min.z / pz) - 1, maxZ = (int) Math.ceil(max.z / pz) + 2;
+        
+        return new int[] { minX, maxX, minY, maxY, minZ, maxZ };
+    }
+    
+    @Override
+    public double computeBackgroundIntensity(Sequence imageData, MaskedIntegralImage background)
+    {
+        // attempt to calculate a localised average outside each contour
+        int[] window = getBackgroundWindow(imageData, background.sizeX, background.sizeY, background.sizeZ);
+        
+        double outSum = background.getSum(window[0], window[1], window[2], window[3], window[4], window[5]);
+        double outCpt = background.getCount(window[0], window[1], window[2], window[3], window[4], window[5]);
+        
+        return outCpt == 0 ? 0 : outSum / outCpt;
+    }
+    
     @Override
     public double getDistanceToEdge(Point3d p)
     {
-        return mesh.getDistanceToMesh(p);
+        TriangleBVH b = getBVH();
+        
+        // no need to compute the distance to outer points
+        if (!b.contains(p.x, p.y, p.z)) return 0;
+        
+        return Math.sqrt(b.getDistanceSq(p.x, p.y, p.z));
+    }
+    
+    /**
+     * @param p
+     *            a point (in the same metric space as the mesh vertices)
+     * @return the distance from the specified point to the mesh surface, positive if the point is
+     *         inside the mesh, and negative otherwise
+     */
+    public double getSignedDistance(Point3d p)
+    {
+        TriangleBVH b = getBVH();
+        
+        double distance = Math.sqrt(b.getDistanceSq(p.x, p.y, p.z));
+        
+        return b.contains(p.x, p.y, p.z) ? distance : -distance;
     }
     
     @SuppressWarnings("deprecation")
@@ -777,11 +1434,11 @@ public class Mesh3D extends ActiveContour
         switch (type)
         {
             case POLYGON: {
-                roi = mesh.clone();
+                roi = getMesh().clone();
                 break;
             }
             case AREA: {
-                roi = new ROI3DArea(mesh.getBooleanMask(true));
+                roi = new ROI3DArea(getMesh().getBooleanMask(true));
                 break;
             }
             default:
@@ -794,15 +1451,55 @@ public class Mesh3D extends ActiveContour
     }
     
     @Override
-    public void toSequence(Sequence output, double value)
+    void publishSnapshot()
     {
-        // TODO
+        // the overlay displays the mesh itself
+        syncMesh();
+        
+        super.publishSnapshot();
+    }
+    
+    @Override
+    void addSection(LabelRenderer renderer, int z, Sequence imageData)
+    {
+        PackedMesh p = getPacked();
+        double[] positions = p.positions;
+        int[] triangles = p.triangles;
+        
+        double px = imageData.getPixelSizeX(), py = imageData.getPixelSizeY(), pz = imageData.getPixelSizeZ();
+        
+        // cut the surface at the centre of the slice: each triangle crossing the plane adds one
+        // edge to the section, and the edges form closed loops since the surface is closed
+        double planeZ = (z + 0.5) * pz;
+        double[] cut = new double[4];
+        
+        for (int t = 0; t < triangles.length; t += 3)
+        {
+            int nbCuts = 0;
+            
+            for (int k = 0; k < 3; k++)
+            {
+                int a = 3 * triangles[t + k], b = 3 * triangles[t + (k + 1) % 3];
+                
+                // vertices lying on the plane are considered above it
+                boolean aAbove = positions[a + 2] >= planeZ, bAbove = positions[b + 2] >= planeZ;
+                if (aAbove == bAbove) continue;
+                
+                double ratio = (planeZ - positions[a + 2]) / (positions[b + 2] - positions[a + 2]);
+                cut[2 * nbCuts] = (positions[a] + ratio * (positions[b] - positions[a])) / px;
+                cut[2 * nbCuts + 1] = (positions[a + 1] + ratio * (positions[b + 1] - positions[a + 1])) / py;
+                nbCuts++;
+            }
+            
+            if (nbCuts == 2) renderer.addEdge(cut[0], cut[1], cut[2], cut[3]);
+        }
     }
     
     @Override
     protected void updateNormals()
     {
-        mesh.updateNormals();
+        PackedMesh p = getPacked();
+        p.updateNormals(0, p.size);
     }
     
     boolean isRemoving = false;
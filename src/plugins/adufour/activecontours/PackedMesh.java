@@ -0,0 +1,320 @@
+package plugins.adufour.activecontours;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import plugins.adufour.roi.mesh.Cell3D;
+import plugins.adufour.roi.mesh.Vertex3D;
+import plugins.adufour.roi.mesh.polygon.ROI3DTriangularMesh;
+
+/**
+ * Compact representation of a triangular mesh used during the evolution of a {@link Mesh3D}.
+ * Vertex positions, normals and force accumulators are stored in primitive arrays (3 consecutive
+ * values per vertex), and the topology is stored in compressed sparse row (CSR) format, i.e. the
+ * neighbors of vertex <code>i</code> are
+ * <code>neighbors[neighborOffsets[i]] ... neighbors[neighborOffsets[i+1] - 1]</code>. Unlike the
+ * vertex list of the original mesh, this representation has no empty slots.<br>
+ * A packed mesh is a snapshot of the mesh topology (vertex adjacency and faces): it must be rebuilt
+ * whenever the topology of the original mesh changes (e.g. after re-sampling), while the geometry
+ * can be written back to the original mesh using {@link #writeTo(ROI3DTriangularMesh)}.
+ * 
+ * @author Alexandre Dufour
+ */
+final class PackedMesh
+{
+    /**
+     * The number of vertices
+     */
+    final int      size;
+    
+    /**
+     * Index of each packed vertex in the vertex list of the original mesh
+     */
+    final int[]    slots;
+    
+    final double[] positions;
+    
+    final double[] normals;
+    
+    final double[] imageForces;
+    
+    final double[] internalForces;
+    
+    final double[] feedbackForces;
+    
+    final double[] volumeConstraint;
+    
+    /**
+     * Offsets of the neighbor list of each vertex in {@link #neighbors} (size + 1 elements)
+     */
+    final int[]    neighborOffsets;
+    
+    /**
+     * Neighbor lists of all vertices, stored contiguously (and sorted for each vertex)
+     */
+    final int[]    neighbors;
+    
+    /**
+     * Vertex indices of each triangle (3 consecutive values per triangle), copied from the faces of
+     * the original mesh and ordered such that the triangle normal points outwards
+     */
+    final int[]    triangles;
+    
+    /**
+     * Offsets of the list of incident triangles of each vertex in {@link #vertexTriangles} (size +
+     * 1 elements)
+     */
+    final int[]    vertexTriangleOffsets;
+    
+    /**
+     * Incident triangles of all vertices, stored contiguously
+     */
+    final int[]    vertexTriangles;
+    
+    /**
+     * Packs the specified mesh
+     * 
+     * @param mesh
+     */
+    PackedMesh(ROI3DTriangularMesh mesh)
+    {
+        int nbSlots = mesh.getVertices().size();
+        
+        // 1) map mesh slots to packed indices (skipping empty slots)
+        
+        int[] packedIndex = new int[nbSlots];
+        int n = 0;
+        for (int slot = 0; slot < nbSlots; slot++)
+            packedIndex[slot] = mesh.getVertex(slot) == null ? -1 : n++;
+        
+        size = n;
+        slots = new int[n];
+        positions = new double[3 * n];
+        normals = new double[3 * n];
+        imageForces = new double[3 * n];
+        internalForces = new double[3 * n];
+        feedbackForces = new double[3 * n];
+        volumeConstraint = new double[3 * n];
+        neighborOffsets = new int[n + 1];
+        
+        int nbLinks = 0;
+        for (int slot = 0; slot < nbSlots; slot++)
+        {
+            Vertex3D v = mesh.getVertex(slot);
+            if (v == null) continue;
+            
+            int i = packedIndex[slot];
+            slots[i] = slot;
+            positions[3 * i] = v.position.x;
+            positions[3 * i + 1] = v.position.y;
+            positions[3 * i + 2] = v.position.z;
+            normals[3 * i] = v.normal.x;
+            normals[3 * i + 1] = v.normal.y;
+            normals[3 * i + 2] = v.normal.z;
+            nbLinks += v.neighbors.size();
+        }
+        
+        // 2) adjacency (CSR, sorted, without duplicates or dangling references)
+        
+        int[] links = new int[nbLinks];
+        int cursor = 0;
+        for (int i = 0; i < n; i++)
+        {
+            neighborOffsets[i] = cursor;
+            int start = cursor;
+            
+            for (Integer nn : mesh.getVertex(slots[i]).neighbors)
+            {
+                if (nn == null || nn < 0 || nn >= nbSlots) continue;
+                int j = packedIndex[nn];
+                if (j < 0 || j == i) continue;
+                links[cursor++] = j;
+            }
+            
+            Arrays.sort(links, start, cursor);
+            
+            // remove duplicates
+            int end = start;
+            for (int k = start; k < cursor; k++)
+                if (k == start || links[k] != links[end - 1]) links[end++] = links[k];
+            cursor = end;
+        }
+        neighborOffsets[n] = cursor;
+        neighbors = Arrays.copyOf(links, cursor);
+        
+        // 3) triangles, taken from the faces of the mesh (inferring them from the adjacency graph
+        // would also turn separating 3-cycles, e.g. around a neck, into spurious faces)
+        
+        List<? extends Cell3D> cells = mesh.getCells();
+        int[] faces = new int[3 * cells.size()];
+        int nbFaces = 0;
+        
+        for (Cell3D cell : cells)
+        {
+            if (cell == null || cell.vertexIndices.length != 3) continue;
+            
+            int a = toPackedIndex(packedIndex, cell.vertexIndices[0]);
+            int b = toPackedIndex(packedIndex, cell.vertexIndices[1]);
+            int c = toPackedIndex(packedIndex, cell.vertexIndices[2]);
+            
+            // skip faces referring to removed vertices, and degenerate ones
+            if (a < 0 || b < 0 || c < 0 || a == b || b == c || a == c) continue;
+            
+            faces[3 * nbFaces] = a;
+            faces[3 * nbFaces + 1] = b;
+            faces[3 * nbFaces + 2] = c;
+            nbFaces++;
+        }
+        
+        triangles = Arrays.copyOf(faces, 3 * nbFaces);
+        
+        // make sure the triangles point outwards (i.e. the enclosed volume is positive)
+        if (getVolume() < 0) for (int t = 0; t < nbFaces; t++)
+        {
+            int tmp = triangles[3 * t + 1];
+            triangles[3 * t + 1] = triangles[3 * t + 2];
+            triangles[3 * t + 2] = tmp;
+        }
+        
+        // 4) incident triangles of each vertex (CSR)
+        
+        vertexTriangleOffsets = new int[n + 1];
+        for (int k = 0; k < triangles.length; k++)
+            vertexTriangleOffsets[triangles[k] + 1]++;
+        for (int i = 0; i < n; i++)
+            vertexTriangleOffsets[i + 1] += vertexTriangleOffsets[i];
+        
+        vertexTriangles = new int[triangles.length];
+        int[] fill = Arrays.copyOf(vertexTriangleOffsets, n);
+        for (int k = 0; k < triangles.length; k++)
+            vertexTriangles[fill[triangles[k]]++] = k / 3;
+        
+        updateNormals(0, n);
+    }
+    
+    /**
+     * @return the packed index of the specified mesh slot, or -1 if the slot is invalid or empty
+     */
+    private static int toPackedIndex(int[] packedIndex, int slot)
+    {
+        return slot < 0 || slot >= packedIndex.length ? -1 : packedIndex[slot];
+    }
+    
+    /**
+     * @return the number of triangles
+     */
+    int getNumberOfTriangles()
+    {
+        return triangles.length / 3;
+    }
+    
+    /**
+     * Stores the position of the specified vertex into the given point
+     * 
+     * @param i
+     *            the vertex index
+     * @param p
+     *            the point to fill
+     */
+    void getPosition(int i, Point3d p)
+    {
+        p.set(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]);
+    }
+    
+    /**
+     * Stores the normal of the specified vertex into the given vector
+     * 
+     * @param i
+     *            the vertex index
+     * @param n
+     *            the vector to fill
+     */
+    void getNormal(int i, Vector3d n)
+    {
+        n.set(normals[3 * i], normals[3 * i + 1], normals[3 * i + 2]);
+    }
+    
+    /**
+     * Updates the normal of the vertices in the specified range, as the area-weighted average of
+     * the normals of their incident triangles. Each vertex is processed independently, hence
+     * disjoint ranges can be processed in parallel.
+     * 
+     * @param fromIndex
+     *            the first vertex to process (inclusive)
+     * @param toIndex
+     *            the last vertex to process (exclusive)
+     */
+    void updateNormals(int fromIndex, int toIndex)
+    {
+        for (int i = fromIndex; i < toIndex; i++)
+        {
+            double nx = 0, ny = 0, nz = 0;
+            
+            for (int k = vertexTriangleOffsets[i]; k < vertexTriangleOffsets[i + 1]; k++)
+            {
+                int t = 3 * vertexTriangles[k];
+                int a = 3 * triangles[t], b = 3 * triangles[t + 1], c = 3 * triangles[t + 2];
+                
+                double abx = positions[b] - positions[a];
+                double aby = positions[b + 1] - positions[a + 1];
+                double abz = positions[b + 2] - positions[a + 2];
+                double acx = positions[c] - positions[a];
+                double acy = positions[c + 1] - positions[a + 1];
+                double acz = positions[c + 2] - positions[a + 2];
+                
+                nx += aby * acz - abz * acy;
+                ny += abz * acx - abx * acz;
+                nz += abx * acy - aby * acx;
+            }
+            
+            double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            
+            // keep the previous normal for isolated vertices
+            if (length == 0) continue;
+            
+            normals[3 * i] = nx / length;
+            normals[3 * i + 1] = ny / length;
+            normals[3 * i + 2] = nz / length;
+        }
+    }
+    
+    /**
+     * @return the volume enclosed by the mesh (in the same unit as the vertex positions), computed
+     *         with the divergence theorem
+     */
+    double getVolume()
+    {
+        double volume = 0;
+        
+        for (int t = 0; t < triangles.length; t += 3)
+        {
+            int a = 3 * triangles[t], b = 3 * triangles[t + 1], c = 3 * triangles[t + 2];
+            
+            // a . (b x c)
+            volume += positions[a] * (positions[b + 1] * positions[c + 2] - positions[b + 2] * positions[c + 1]);
+            volume += positions[a + 1] * (positions[b + 2] * positions[c] - positions[b] * positions[c + 2]);
+            volume += positions[a + 2] * (positions[b] * positions[c + 1] - positions[b + 1] * positions[c]);
+        }
+        
+        return volume / 6;
+    }
+    
+    /**
+     * Copies the vertex positions and normals back into the specified mesh (which must have the
+     * same topology as when this object was created)
+     * 
+     * @param mesh
+     */
+    void writeTo(ROI3DTriangularMesh mesh)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            Vertex3D v = mesh.getVertex(slots[i]);
+            v.position.set(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]);
+            v.normal.set(normals[3 * i], normals[3 * i + 1], normals[3 * i + 2]);
+        }
+    }
+}
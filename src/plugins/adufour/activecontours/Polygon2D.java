@@ -12,12 +12,14 @@ import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.TreeSet;
 
 import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
@@ -28,16 +30,13 @@ import org.w3c.dom.Node;
 import icy.canvas.IcyCanvas;
 import icy.canvas.IcyCanvas2D;
 import icy.gui.frame.progress.AnnounceFrame;
-import icy.main.Icy;
 import icy.roi.BooleanMask2D;
 import icy.roi.BooleanMask3D;
 import icy.roi.ROI;
 import icy.roi.ROI2D;
-import icy.roi.ROIUtil;
 import icy.sequence.Sequence;
 import icy.system.IcyHandledException;
 import icy.type.DataType;
-import icy.type.collection.array.Array1DUtil;
 import icy.type.rectangle.Rectangle3D;
 import icy.util.XMLUtil;
 import plugins.adufour.activecontours.ActiveContours.ROIType;
@@ -100,7 +99,21 @@ public class Polygon2D extends ActiveContour
     
     final ArrayList<Point3d> points = new ArrayList<Point3d>();
     
-    Path2D.Double path = new Path2D.Double();
+    /**
+     * Immutable copy of the contour points (as x,y pairs), published for display by
+     * {@link #publishSnapshot()}
+     */
+    private volatile double[] snapshot;
+    
+    /**
+     * The path painted on screen (built lazily from {@link #snapshot}, in the painting thread)
+     */
+    private Path2D.Double path;
+    
+    /**
+     * The snapshot from which {@link #path} was built
+     */
+    private double[] pathSnapshot;
     
     double cout = 0.0;
     
@@ -493,65 +506,35 @@ public class Polygon2D extends ActiveContour
      * points. It should be used among the last to keep it most effective
      * 
      * @param weight
+     * @param axis
+     *            the (normalized) principal axis of the contour
      */
     @Override
-    void computeAxisForces(double weight)
+    void computeAxisForces(double weight, Vector3d axis, int fromIndex, int toIndex)
     {
-        Vector3d axis = new Vector3d();
-        int s = (int) getDimension(0);
-        
-        // Compute the object axis as the vector between the two most distant
-        // contour points
-        // TODO this is not optimal, geometric moments should be used
-        {
-            double maxDistSq = 0;
-            Vector3d vec = new Vector3d();
-            
-            for (int i = 0; i < s; i++)
-            {
-                Point3d vi = points.get(i);
-                
-                for (int j = i + 1; j < s; j++)
-                {
-                    Point3d vj = points.get(j);
-                    
-                    vec.sub(vi, vj);
-                    double dSq = vec.lengthSquared();
-                    
-                    if (dSq > maxDistSq)
-                    {
-                        maxDistSq = dSq;
-                        axis.set(vec);
-                    }
-                }
-            }
-            axis.normalize();
-        }
+        // without points, the axis is null (and cannot be normalized)
+        if (points.isEmpty()) return;
         
         // To drive the contour along the main object axis, each displacement
         // vector is scaled by the scalar product between its normal and the main axis.
+        for (int i = fromIndex; i < toIndex; i++)
         {
-            for (int i = 0; i < s; i++)
-            {
-                Vector3d normal = contourNormals[i];
-                
-                // dot product between normalized vectors ranges from -1 to 1
-                double colinearity = Math.abs(normal.dot(axis)); // now from 0 to 1
-                
-                // goal: adjust the minimum using the weight, but keep max to 1
-                double threshold = Math.max(colinearity, 1 - weight);
-                
-                if (normal != null) modelForces[i].scale(threshold);
-            }
+            Vector3d normal = contourNormals[i];
+            
+            // dot product between normalized vectors ranges from -1 to 1
+            double colinearity = Math.abs(normal.dot(axis)); // now from 0 to 1
+            
+            // goal: adjust the minimum using the weight, but keep max to 1
+            double threshold = Math.max(colinearity, 1 - weight);
+            
+            if (normal != null) modelForces[i].scale(threshold);
         }
     }
     
     @Override
-    void computeBalloonForces(double weight)
+    void computeBalloonForces(double weight, int fromIndex, int toIndex)
     {
-        int n = points.size();
-        
-        for (int i = 0; i < n; i++)
+        for (int i = fromIndex; i < toIndex; i++)
         {
             Vector3d force = modelForces[i];
             
@@ -567,17 +550,15 @@ public class Polygon2D extends ActiveContour
      * @param edge_data
      */
     @Override
-    void computeEdgeForces(Sequence edgeData, int channel, double weight)
+    void computeEdgeForces(Sequence edgeData, int channel, double weight, int fromIndex, int toIndex)
     {
-        int n = points.size();
-        
         Vector3d grad = new Vector3d();
         
         int width = edgeData.getWidth();
         int height = edgeData.getHeight();
         float[] data = edgeData.getDataXYAsFloat(0, (int) Math.round(getZ()), channel);
         
-        for (int i = 0; i < n; i++)
+        for (int i = fromIndex; i < toIndex; i++)
         {
             Point3d p = points.get(i);
             Vector3d force = modelForces[i];
@@ -600,7 +581,7 @@ public class Polygon2D extends ActiveContour
     }
     
     @Override
-    void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double inAvg, double outAvg)
+    void computeRegionForces(Sequence imageData, int channel, double weight, double sensitivity, double inAvg, double outAvg, int fromIndex, int toIndex)
     {
         // sensitivity should be high for dim objects, low for bright objects...
         // ... but none of the following options work properly
@@ -612,7 +593,6 @@ public class Polygon2D extends ActiveContour
         Point3d p;
         Vector3d force, norm, cvms = new Vector3d();
         double val, inDiff, outDiff, forceFactor;
-        int n = points.size();
         
         int width = imageData.getWidth();
         int height = imageData.getHeight();
@@ -623,7 +603,7 @@ public class Polygon2D extends ActiveContour
         float[] _data = imageData.getDataXYAsFloat(0, myZ, channel);
         if (_data == null) throw new IllegalArgumentException("Contour.getZ() = " + getZ() + "; Stack size = " + imageData.getSizeZ());
         
-        for (int i = 0; i < n; i++)
+        for (int i = fromIndex; i < toIndex; i++)
         {
             p = points.get(i);
             force = modelForces[i];
@@ -650,7 +630,7 @@ public class Polygon2D extends ActiveContour
     }
     
     @Override
-    void computeInternalForces(double weight)
+    void computeInternalForces(double weight, int fromIndex, int toIndex)
     {
         if (feedbackForces == null) return;
         
@@ -663,36 +643,17 @@ public class Polygon2D extends ActiveContour
         
         weight /= sampling.getValue();
         
-        // first point
-        prev = points.get(n - 1);
-        curr = points.get(0);
-        next = points.get(1);
-        
-        force = feedbackForces[0];
-        
-        force.x += weight * (prev.x - 2 * curr.x + next.x);
-        force.y += weight * (prev.y - 2 * curr.y + next.y);
-        
-        // middle points
-        for (int i = 1; i < n - 1; i++)
+        for (int i = fromIndex; i < toIndex; i++)
         {
+            // the contour is closed: wrap around the first and last points
             force = feedbackForces[i];
-            prev = points.get(i - 1);
+            prev = points.get(i == 0 ? n - 1 : i - 1);
             curr = points.get(i);
-            next = points.get(i + 1);
+            next = points.get(i == n - 1 ? 0 : i + 1);
             
             force.x += weight * (prev.x - 2 * curr.x + next.x);
             force.y += weight * (prev.y - 2 * curr.y + next.y);
         }
-        
-        // last point
-        force = feedbackForces[n - 1];
-        prev = points.get(n - 2);
-        curr = points.get(n - 1);
-        next = points.get(0);
-        
-        force.x += weight * (prev.x - 2 * curr.x + next.x);
-        force.y += weight * (prev.y - 2 * curr.y + next.y);
     }
     
     void computeVolumeConstraint(double targetVolume)
@@ -757,7 +718,7 @@ public class Polygon2D extends ActiveContour
      * @return the number of actual point-mesh intersection tests
      */
     @Override
-    int computeFeedbackForces(ActiveContour target)
+    int computeFeedbackForces(ActiveContour target, int fromIndex, int toIndex)
     {
         Point3d targetCenter = new Point3d();
         target.boundingSphere.getCenter(targetCenter);
@@ -768,10 +729,11 @@ public class Polygon2D extends ActiveContour
         double penetration = 0;
         
         int tests = 0;
-        int index = 0;
         
-        for (Point3d p : points)
+        for (int index = fromIndex; index < toIndex; index++)
         {
+            Point3d p = points.get(index);
+            
             double distanceSq = p.distanceSquared(targetCenter);
             
             if (distanceSq < targetRadiusSq)
@@ -788,7 +750,6 @@ public class Polygon2D extends ActiveContour
                     modelForces[index].scale(0.05);
                 }
             }
-            index++;
         }
         
         return tests;
@@ -1053,13 +1014,20 @@ public class Polygon2D extends ActiveContour
         
     }
     
+    @Override
+    int getVertexSlotCount()
+    {
+        return points.size();
+    }
+    
     @Override
     public Iterator<Point3d> iterator()
     {
         return points.iterator();
     }
     
-    void move(ROI field, double timeStep)
+    @Override
+    void move(EvolutionField field, double timeStep, int fromIndex, int toIndex)
     {
         Vector3d force = new Vector3d();
         double maxDisp = sampling.getValue() * timeStep;
@@ -1068,17 +1036,17 @@ public class Polygon2D extends ActiveContour
         
         if (modelForces == null || modelForces.length != n) return;
         
-        for (int index = 0; index < n; index++)
+        for (int index = fromIndex; index < toIndex; index++)
         {
             Point3d p = points.get(index);
             
             if (volumeConstraintForces[index].length() > 0) p.add(volumeConstraintForces[index]);
             
             // apply model forces if p lies within the area of interest
-            if (field != null && field.contains(p.x, p.y, 0, 0, 0) && modelForces[index] != null)
+            if (field != null && field.contains(p.x, p.y, 0) && modelForces[index] != null)
             {
-                if (p.x < 1 || p.x > field.getBounds5D().getSizeX() - 2) modelForces[index].scale(0.1);
-                if (p.y < 1 || p.y > field.getBounds5D().getSizeY() - 2) modelForces[index].scale(0.1);
+                if (p.x < 1 || p.x > field.getSizeX() - 2) modelForces[index].scale(0.1);
+                if (p.y < 1 || p.y > field.getSizeY() - 2) modelForces[index].scale(0.1);
                 force.set(modelForces[index]);
             }
             else
@@ -1103,6 +1071,12 @@ public class Polygon2D extends ActiveContour
             feedbackForces[index].set(0, 0, 0);
             volumeConstraintForces[index].set(0, 0, 0);
         }
+    }
+    
+    @Override
+    void commitMove()
+    {
+        if (modelForces == null || modelForces.length != points.size()) return;
         
         updateMetaData();
         
@@ -1126,8 +1100,8 @@ public class Polygon2D extends ActiveContour
     @Override
     public void paint(Graphics2D g, Sequence sequence, IcyCanvas canvas)
     {
-        // only paint detections on the current frame
-        if (getT() != canvas.getPositionT()) return;
+        // only paint detections on the current frame (once published)
+        if (getT() != canvas.getPositionT() || snapshot == null) return;
         
         if (g != null)
         {
@@ -1146,10 +1120,7 @@ public class Polygon2D extends ActiveContour
             
             g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
             
-            synchronized (path)
-            {
-                g.draw(path);
-            }
+            g.draw(getPath());
             // this line displays the average intensity inside the object
             // g.drawString(StringUtil.toString(cin, 2), (float) getX() + 3, (float) getY());
         }
@@ -1492,31 +1463,52 @@ public class Polygon2D extends ActiveContour
         // volumeConstraintForces = new Vector3d[n];
         
         super.updateMetaData();
-        updatePath();
     }
     
-    private void updatePath()
+    @Override
+    void publishSnapshot()
     {
-        if (Icy.getMainInterface().isHeadLess()) return;
+        int nbPoints = points.size();
+        double[] xy = new double[2 * nbPoints];
         
-        Path2D.Double newPath = new Path2D.Double();
+        for (int i = 0; i < nbPoints; i++)
+        {
+            Point3d p = points.get(i);
+            xy[2 * i] = p.x;
+            xy[2 * i + 1] = p.y;
+        }
         
-        int nbPoints = points.size();
+        snapshot = xy;
         
-        if (nbPoints > 0)
+        super.publishSnapshot();
+    }
+    
+    /**
+     * @return the path of the last published snapshot (rebuilt only if a new snapshot was
+     *         published since the last call)
+     */
+    private Path2D.Double getPath()
+    {
+        double[] xy = snapshot;
+        
+        if (xy != pathSnapshot)
         {
-            Point3d p = points.get(0);
-            newPath.moveTo(p.x, p.y);
+            Path2D.Double newPath = new Path2D.Double(Path2D.WIND_NON_ZERO, xy.length / 2 + 1);
             
-            for (int i = 1; i < nbPoints; i++)
+            if (xy.length > 0)
             {
-                p = points.get(i);
-                newPath.lineTo(p.x, p.y);
+                newPath.moveTo(xy[0], xy[1]);
+                
+                for (int i = 2; i < xy.length; i += 2)
+                    newPath.lineTo(xy[i], xy[i + 1]);
             }
+            newPath.closePath();
+            
+            path = newPath;
+            pathSnapshot = xy;
         }
-        newPath.closePath();
         
-        this.path = newPath;
+        return path;
     }
     
     @SuppressWarnings("deprecation")
@@ -1534,16 +1526,10 @@ public class Polygon2D extends ActiveContour
         
         switch (type)
         {
-            case AREA: {
-                //                roi = new ROI2DArea();
-                //                ((ROI2DArea) roi).addShape(path);
-                List<Point2D> p2d = new ArrayList<Point2D>(points.size());
-                for (Point3d p : this)
-                    p2d.add(new Point2D.Double(p.x, p.y));
-                roi = (ROI2D) ROIUtil.convertToMask(new ROI2DPolygon(p2d));
-            }
+            case AREA:
+                roi = new ROI2DArea(toMask());
             break;
-        
+            
             case POLYGON: {
                 List<Point2D> p2d = new ArrayList<Point2D>(points.size());
                 for (Point3d p : this)
@@ -1559,6 +1545,32 @@ public class Polygon2D extends ActiveContour
         return roi;
     }
     
+    /**
+     * Rasterises this contour into a mask covering its bounding box, using the same rules as the
+     * label export (see {@link LabelRenderer}): a pixel belongs to the mask if its centre lies
+     * inside the contour
+     * 
+     * @return the mask of this contour
+     */
+    BooleanMask2D toMask()
+    {
+        Point3d min = new Point3d(), max = new Point3d();
+        boundingBox.getLower(min);
+        boundingBox.getUpper(max);
+        
+        int minX = (int) Math.floor(min.x), minY = (int) Math.floor(min.y);
+        int width = (int) Math.ceil(max.x) - minX + 1, height = (int) Math.ceil(max.y) - minY + 1;
+        
+        LabelRenderer renderer = new LabelRenderer();
+        renderer.setOrigin(minX, minY);
+        addSection(renderer, (int) z, null);
+        
+        boolean[] mask = new boolean[width * height];
+        renderer.fill(mask, width, height, 1);
+        
+        return new BooleanMask2D(new Rectangle(minX, minY, width, height), mask);
+    }
+    
     public double computeAverageIntensity(Sequence summedImageData, BooleanMask3D mask)
     {
         int myZ = (int) z;
@@ -1639,11 +1651,16 @@ public class Polygon2D extends ActiveContour
         return sum / count;
     }
     
-    public double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask)
+    /**
+     * @param sizeX
+     *            the image width
+     * @param sizeY
+     *            the image height
+     * @return the window where the local background is measured, as {minX, maxX, minY, maxY}
+     *         (exclusive upper bounds). The window spans three times the contour's bounding box
+     */
+    private int[] getBackgroundWindow(int sizeX, int sizeY)
     {
-        Rectangle3D.Integer b3 = mask.bounds;
-        
-        // attempt to calculate a localised average outside each contour
         Point3d min = new Point3d(), max = new Point3d();
         
         boundingBox.getLower(min);
@@ -1651,24 +1668,34 @@ public class Polygon2D extends ActiveContour
         
         double yExtent = max.y - min.y;
         int minY = Math.max(0, (int) Math.round(min.y - yExtent));
-        int maxY = Math.min(b3.sizeY, (int) Math.round(max.y + yExtent));
+        int maxY = Math.min(sizeY, (int) Math.round(max.y + yExtent));
         
         double xExtent = max.x - min.x;
         int minX = Math.max(0, (int) Math.round(min.x - xExtent));
-        int maxX = Math.min(b3.sizeX, (int) Math.round(max.x + xExtent));
+        int maxX = Math.min(sizeX, (int) Math.round(max.x + xExtent));
+        
+        return new int[] { minX, maxX, minY, maxY };
+    }
+    
+    public double computeBackgroundIntensity(Sequence imageData, BooleanMask3D mask)
+    {
+        Rectangle3D.Integer b3 = mask.bounds;
+        
+        // attempt to calculate a localised average outside each contour
+        int[] window = getBackgroundWindow(b3.sizeX, b3.sizeY);
         
         double outSum = 0, outCpt = 0;
         
         boolean[] _mask = mask.mask.get((int) z).mask;
         float[] _data = imageData.getDataXYAsFloat(0, (int) z, 0);
         
-        for (int j = minY; j < maxY; j++)
+        for (int j = window[2]; j < window[3]; j++)
         {
-            int offset = minX + j * b3.sizeX;
-            for (int i = minX; i < maxX; i++, offset++)
+            int offset = window[0] + j * b3.sizeX;
+            for (int i = window[0]; i < window[1]; i++, offset++)
                 if (!_mask[offset])
                 {
-                    outSum += _data[i];
+                    outSum += _data[offset];
                     outCpt++;
                 }
         }
@@ -1677,107 +1704,46 @@ public class Polygon2D extends ActiveContour
     }
     
     @Override
-    public void toSequence(Sequence output, double value)
+    int[] getRasterBounds(Sequence imageData)
     {
-        int myZ = (int) Math.round(getZ());
-        int myT = Math.round(getT());
+        Point3d min = new Point3d(), max = new Point3d();
         
-        Object _mask = output.getDataXY(myT, myZ, 0);
+        boundingBox.getLower(min);
+        boundingBox.getUpper(max);
         
-        int sizeX = output.getWidth();
-        int sizeY = output.getHeight();
+        int myZ = (int) z;
         
-        // compute the interior mean intensity
-        Point3d minBounds = new Point3d();
-        Point3d maxBounds = new Point3d();
-        boundingBox.getLower(minBounds);
-        boundingBox.getUpper(maxBounds);
+        if (myZ == -1 && imageData.getSizeZ() == 1) myZ = 0;
         
-        int minX = Math.max((int) minBounds.x - 2, -10);
-        int maxX = Math.min((int) maxBounds.x + 2, sizeX + 10);
-        int minY = Math.max((int) minBounds.y - 1, 0);
-        int maxY = Math.min((int) maxBounds.y + 1, sizeY);
+        // include a 1-pixel margin (the rasterisation rounds the contour points)
+        return new int[] { (int) Math.floor(min.x) - 1, (int) Math.ceil(max.x) + 2, (int) Math.floor(min.y) - 1, (int) Math.ceil(max.y) + 2, myZ, myZ + 1 };
+    }
+    
+    @Override
+    public double computeBackgroundIntensity(Sequence imageData, MaskedIntegralImage background)
+    {
+        // attempt to calculate a localised average outside each contour
+        int[] window = getBackgroundWindow(background.sizeX, background.sizeY);
+        
+        int slice = (int) z;
+        
+        double outSum = background.getSum(window[0], window[1], window[2], window[3], slice, slice + 1);
+        double outCpt = background.getCount(window[0], window[1], window[2], window[3], slice, slice + 1);
         
+        return outCpt == 0 ? 0 : outSum / outCpt;
+    }
+    
+    @Override
+    void addSection(LabelRenderer renderer, int z, Sequence imageData)
+    {
         int n = points.size();
-        Point3d p1 = null, p2 = null;
-        TreeSet<Integer> crosses = new TreeSet<Integer>();
+        Point3d p1 = points.get(n - 1);
         
-        for (int j = minY; j < maxY; j++)
+        for (int p = 0; p < n; p++)
         {
-            int lineOffset = j * sizeX;
-            int offset = lineOffset + (minX < 0 ? 0 : minX);
-            
-            crosses.clear();
-            crosses.add(minX);
-            
-            for (int p = 0; p < n - 1; p++)
-            {
-                p1 = points.get(p);
-                p2 = points.get(p + 1);
-                
-                if (j >= Math.min(p1.y, p2.y) && j <= Math.max(p1.y, p2.y))
-                {
-                    // crosses.add((int) Math.round((p1.x + p2.x) * 0.5));
-                    int cross = (int) Math.round(p1.x + ((j - p1.y) * (p2.x - p1.x) / (p2.y - p1.y)));
-                    if (crosses.contains(cross))
-                    {
-                        crosses.remove(cross);
-                        Array1DUtil.setValue(_mask, lineOffset + cross, value);
-                    }
-                    else
-                    {
-                        crosses.add(cross);
-                    }
-                }
-            }
-            p1 = points.get(0);
-            
-            if (j >= Math.min(p1.y, p2.y) && j <= Math.max(p1.y, p2.y))
-            {
-                // crosses.add((int) Math.round((p1.x + p2.x) * 0.5));
-                int cross = (int) Math.round(p1.x + ((j - p1.y) * (p2.x - p1.x) / (p2.y - p1.y)));
-                if (crosses.contains(cross))
-                {
-                    crosses.remove(cross);
-                    Array1DUtil.setValue(_mask, lineOffset + cross, value);
-                }
-                else
-                {
-                    crosses.add(cross);
-                }
-            }
-            
-            crosses.add(maxX);
-            
-            int nC = crosses.size();
-            
-            if (nC > 2)
-            {
-                boolean in = false;
-                
-                Iterator<Integer> it = crosses.iterator();
-                int start = it.next();
-                if (start < 0) start = 0;
-                
-                while (it.hasNext())
-                {
-                    int end = it.next();
-                    if (end > sizeX) end = sizeX;
-                    
-                    if (in)
-                    {
-                        for (int i = start; i < end; i++, offset++)
-                        {
-                            // if (start < 0 || end >= sizeY) continue;
-                            Array1DUtil.setValue(_mask, offset, value);
-                        }
-                    }
-                    else offset += end - start;
-                    
-                    start = end;
-                    in = !in;
-                }
-            }
+            Point3d p2 = points.get(p);
+            renderer.addEdge(p1.x, p1.y, p2.x, p2.y);
+            p1 = p2;
         }
     }
     
@@ -1807,11 +1773,78 @@ public class Polygon2D extends ActiveContour
         
     }
     
+    @Override
+    void writeGeometry(DataOutput out) throws IOException
+    {
+        int n = points.size();
+        
+        // all points lie in the same slice
+        out.writeInt(n);
+        out.writeDouble(n == 0 ? getZ() : points.get(0).z);
+        
+        for (Point3d p : points)
+        {
+            out.writeDouble(p.x);
+            out.writeDouble(p.y);
+        }
+    }
+    
+    @Override
+    void readGeometry(DataInput in) throws IOException
+    {
+        int n = in.readInt();
+        double pz = in.readDouble();
+        
+        points.clear();
+        points.ensureCapacity(n);
+        contourNormals = new Vector3d[n];
+        modelForces = new Vector3d[n];
+        feedbackForces = new Vector3d[n];
+        volumeConstraintForces = new Vector3d[n];
+        
+        for (int i = 0; i < n; i++)
+        {
+            contourNormals[i] = new Vector3d();
+            modelForces[i] = new Vector3d();
+            feedbackForces[i] = new Vector3d();
+            volumeConstraintForces[i] = new Vector3d();
+            addPoint(new Point3d(in.readDouble(), in.readDouble(), pz));
+        }
+        
+        updateMetaData();
+    }
+    
     @Override
     public boolean loadFromXML(Node node)
     {
         if (!super.loadFromXML(node)) return false;
         
+        try
+        {
+            ContourCodec.Reader data = ContourCodec.load(node);
+            
+            if (data != null)
+            {
+                int n = data.readVarInt();
+                double pz = data.readFloat();
+                
+                points.ensureCapacity(n);
+                for (int i = 0; i < n; i++)
+                    points.add(new Point3d(data.readFloat(), data.readFloat(), pz));
+                
+                publishSnapshot();
+                
+                return true;
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Warning: couldn't read contour data: " + e.getMessage());
+            return false;
+        }
+        
+        // original format (one element per point)
+        
         Element xmlElement = XMLUtil.getElement(node, "Contour");
         
         if (xmlElement == null) return false;
@@ -1824,7 +1857,7 @@ public class Polygon2D extends ActiveContour
             points.add(new Point3d(xPt, yPt, 0));
         }
         
-        updatePath();
+        publishSnapshot();
         
         return true;
     }
@@ -1834,15 +1867,20 @@ public class Polygon2D extends ActiveContour
     {
         if (!super.saveToXML(node)) return false;
         
-        Element xmlElement = XMLUtil.addElement(node, "Contour");
+        int n = points.size();
+        
+        ContourCodec.Writer data = new ContourCodec.Writer(5 + 4 + 8 * n);
+        data.writeVarInt(n);
+        data.writeFloat(n == 0 ? getZ() : points.get(0).z);
         
         for (Point3d pt : points)
         {
-            Element xmlPt = XMLUtil.addElement(xmlElement, "Point");
-            XMLUtil.setAttributeDoubleValue(xmlPt, "x", pt.x);
-            XMLUtil.setAttributeDoubleValue(xmlPt, "y", pt.y);
+            data.writeFloat(pt.x);
+            data.writeFloat(pt.y);
         }
         
+        ContourCodec.save(node, data.toByteArray());
+        
         return true;
     }
 }
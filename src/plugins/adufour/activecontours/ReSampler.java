@@ -1,106 +1,97 @@
 package plugins.adufour.activecontours;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 
-import plugins.fab.trackmanager.TrackGroup;
-import plugins.fab.trackmanager.TrackSegment;
-
+/**
+ * Re-samples a contour, and records the topology change (division or disappearance) that may
+ * result. The shared contour sets and the track group are never modified by this class: topology
+ * changes are emitted into a (lock-free) change log, which the caller applies in one batch once
+ * all re-samplers have completed.
+ */
 public class ReSampler implements Callable<Boolean>
 {
-    private final TrackGroup             trackGroup;
+    /**
+     * A topology change detected while re-sampling a contour
+     */
+    static final class TopologyChange implements Comparable<TopologyChange>
+    {
+        /**
+         * Position of the re-sampled contour in the batch (used to apply the changes in a stable
+         * order, regardless of the order in which the tasks have completed)
+         */
+        final int             order;
+        
+        /**
+         * The contour that has divided or vanished
+         */
+        final ActiveContour   contour;
+        
+        /**
+         * The contours replacing the original contour (empty if the contour has vanished)
+         */
+        final ActiveContour[] children;
+        
+        TopologyChange(int order, ActiveContour contour, ActiveContour[] children)
+        {
+            this.order = order;
+            this.contour = contour;
+            this.children = children == null ? new ActiveContour[0] : children;
+        }
+        
+        @Override
+        public int compareTo(TopologyChange other)
+        {
+            return order - other.order;
+        }
+    }
     
-    private final ActiveContour          contour;
+    private final ActiveContour         contour;
     
-    private final HashSet<ActiveContour> allContours;
+    private final int                   order;
     
-    private final HashSet<ActiveContour> evolvingContours;
+    private final Queue<TopologyChange> changes;
     
-    ReSampler(TrackGroup trackGroup, ActiveContour contour, HashSet<ActiveContour> evolvingContours, HashSet<ActiveContour> allContours)
+    /**
+     * @param contour
+     *            the contour to re-sample
+     * @param order
+     *            the position of the contour in the current batch
+     * @param changes
+     *            the (thread-safe) queue where topology changes should be emitted
+     */
+    ReSampler(ActiveContour contour, int order, Queue<TopologyChange> changes)
     {
-        this.trackGroup = trackGroup;
         this.contour = contour;
-        this.allContours = allContours;
-        this.evolvingContours = evolvingContours;
+        this.order = order;
+        this.changes = changes;
     }
     
+    /**
+     * Re-samples the contour
+     * 
+     * @return <code>true</code> if the contour is dividing or vanishing, <code>false</code>
+     *         otherwise
+     */
     public Boolean call()
     {
-        boolean change = false;
         try
         {
             contour.reSample(0.6, 1.4);
+            return false;
         }
-        catch (Exception e)
+        catch (TopologyException e)
         {
-            change = true;
-            
             // the contour is either dividing or vanishing
-            
-            contour.clean();
-            
-            // 1) remove it from the list of contours
-            
-            allContours.remove(contour);
-            evolvingContours.remove(contour);
-            
-            // 2) find the corresponding segment
-            
-            TrackSegment currentSegment = null;
-            
-            // this is a thread-safe version of TrackGroup.getTrackSegmentWithDetection(Detection)
-            for (TrackSegment segment : new ArrayList<TrackSegment>(trackGroup.getTrackSegmentList()))
-            {
-                if (segment == null) continue; // FIXME Fabrice: how could this happen?
-                    
-                if (segment.containsDetection(contour))
-                {
-                    currentSegment = segment;
-                    break;
-                }
-            }
-            
-            if (currentSegment != null)
-            {
-                currentSegment.removeDetection(contour);
-                
-                if (currentSegment.getDetectionList().size() == 0)
-                {
-                    // the current contour is the only detection in this segment
-                    // => remove the whole segment
-                    trackGroup.removeTrackSegment(currentSegment);
-                    currentSegment = null;
-                }
-            }
-            
-            if (!(e instanceof TopologyException))
-            {
-                e.printStackTrace();
-                return change;
-            }
-            
-            // 3) Deal with the children
-            
-            ActiveContour[] children = ((TopologyException) e).children;
-            
-            if (children == null) return change;
-            
-            for (ActiveContour child : children)
-            {
-                child.setT(contour.getT());
-                allContours.add(child);
-                evolvingContours.add(child);
-                
-                // create the new track segment with the child contour
-                TrackSegment childSegment = new TrackSegment();
-                childSegment.addDetection(child);
-                trackGroup.addTrackSegment(childSegment);
-                
-                if (currentSegment != null) currentSegment.addNext(childSegment);
-            }
+            changes.add(new TopologyChange(order, contour, e.children));
+        }
+        catch (Exception e)
+        {
+            // something went wrong => drop the contour
+            e.printStackTrace();
+            changes.add(new TopologyChange(order, contour, null));
         }
         
-        return change;
+        return true;
     }
-}
\ No newline at end of file
+}
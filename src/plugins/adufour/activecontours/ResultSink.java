@@ -0,0 +1,282 @@
+package plugins.adufour.activecontours;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import icy.roi.ROI;
+
+/**
+ * Destination of the results of {@link ActiveContours}, receiving the ROI of each frame as soon as
+ * the contours of that frame have converged (see {@link ActiveContours#setResultSink(ResultSink)}).
+ * Frames are delivered in order, from a single thread (usually a background export thread, while
+ * the next frame evolves). The evolution waits for each frame to be delivered before exporting the
+ * next one: a slow sink therefore eventually slows down the evolution (use {@link Async} to process
+ * the results in a separate thread, with a bounded number of pending frames).
+ * 
+ * @author Alexandre Dufour
+ */
+public interface ResultSink
+{
+    /**
+     * Receives the results of a frame
+     * 
+     * @param t
+     *            the frame index
+     * @param rois
+     *            the ROI of the contours of that frame
+     * @throws IOException
+     *             if the results cannot be stored
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting for the sink
+     */
+    void frameCompleted(int t, List<ROI> rois) throws IOException, InterruptedException;
+    
+    /**
+     * Called once all frames have been delivered
+     * 
+     * @throws IOException
+     *             if the results cannot be stored
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting for the sink
+     */
+    void close() throws IOException, InterruptedException;
+    
+    /**
+     * Gathers the results of all frames in memory (this is the default sink)
+     */
+    public static class Memory implements ResultSink
+    {
+        private final ArrayList<ROI> rois = new ArrayList<ROI>();
+        
+        @Override
+        public void frameCompleted(int t, List<ROI> frameROIs)
+        {
+            rois.addAll(frameROIs);
+        }
+        
+        @Override
+        public void close()
+        {
+        }
+        
+        /**
+         * @return the ROI of all the frames received so far
+         */
+        public ROI[] getROIs()
+        {
+            return rois.toArray(new ROI[rois.size()]);
+        }
+    }
+    
+    /**
+     * Saves the results of each frame to a separate XML file (named <code>rois_T[t].xml</code>),
+     * such that they do not accumulate in memory
+     */
+    public static class Files implements ResultSink
+    {
+        private final File folder;
+        
+        /**
+         * @param folder
+         *            the folder where the files are created (created if necessary)
+         */
+        public Files(File folder)
+        {
+            this.folder = folder;
+        }
+        
+        @Override
+        public void frameCompleted(int t, List<ROI> rois) throws IOException
+        {
+            if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Cannot create folder " + folder.getPath());
+            
+            try
+            {
+                Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+                Element root = document.createElement("rois");
+                document.appendChild(root);
+                
+                for (ROI roi : rois)
+                {
+                    Element roiElement = document.createElement("roi");
+                    root.appendChild(roiElement);
+                    if (!roi.saveToXML(roiElement)) throw new IOException("Cannot save ROI " + roi.getName());
+                }
+                
+                File file = new File(folder, String.format("rois_T%05d.xml", t));
+                TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(file));
+            }
+            catch (ParserConfigurationException e)
+            {
+                throw new IOException(e);
+            }
+            catch (TransformerException e)
+            {
+                throw new IOException(e);
+            }
+        }
+        
+        @Override
+        public void close()
+        {
+        }
+    }
+    
+    /**
+     * Forwards the results to another sink in a separate thread, such that the evolution does not
+     * wait for the results to be processed. At most <code>capacity</code> frames can be pending:
+     * beyond that, the evolution waits for the other sink to catch up.<br>
+     * The same instance can be used for several runs: the thread is started with the first frame
+     * of each run, and stops once the run is closed
+     */
+    public static class Async implements ResultSink
+    {
+        /**
+         * Marks the end of the results
+         */
+        private static final List<ROI> END = new ArrayList<ROI>(0);
+        
+        private final ResultSink sink;
+        
+        private final int capacity;
+        
+        /**
+         * The run in progress, or <code>null</code> if no frame has been received since the last
+         * run was closed
+         */
+        private Consumer consumer;
+        
+        /**
+         * @param sink
+         *            the sink processing the results
+         * @param capacity
+         *            the maximum number of pending frames
+         */
+        public Async(ResultSink sink, int capacity)
+        {
+            this.sink = sink;
+            this.capacity = capacity;
+        }
+        
+        /**
+         * Thread forwarding the results of a single run
+         */
+        private final class Consumer extends Thread
+        {
+            private final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<Object[]>(capacity);
+            
+            private volatile Exception error;
+            
+            Consumer()
+            {
+                super("Active Contours (results)");
+            }
+            
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        Object[] frame = queue.take();
+                        
+                        if (frame[1] == END) break;
+                        
+                        // keep draining the queue after an error, to never block the evolution
+                        if (error != null) continue;
+                        
+                        @SuppressWarnings("unchecked")
+                        List<ROI> rois = (List<ROI>) frame[1];
+                        
+                        try
+                        {
+                            sink.frameCompleted((Integer) frame[0], rois);
+                        }
+                        catch (Exception e)
+                        {
+                            error = e;
+                        }
+                    }
+                    
+                    if (error == null) sink.close();
+                }
+                catch (Exception e)
+                {
+                    if (error == null) error = e;
+                }
+            }
+            
+            void checkError() throws IOException
+            {
+                if (error != null) throw new IOException("Cannot process the results: " + error.getMessage(), error);
+            }
+        }
+        
+        @Override
+        public void frameCompleted(int t, List<ROI> rois) throws IOException, InterruptedException
+        {
+            Consumer current;
+            
+            synchronized (this)
+            {
+                if (consumer == null)
+                {
+                    consumer = new Consumer();
+                    consumer.start();
+                }
+                current = consumer;
+            }
+            
+            current.checkError();
+            current.queue.put(new Object[] { t, rois });
+        }
+        
+        @Override
+        public void close() throws IOException, InterruptedException
+        {
+            Consumer current;
+            
+            synchronized (this)
+            {
+                current = consumer;
+                consumer = null;
+            }
+            
+            if (current == null)
+            {
+                // no frame in this run
+                sink.close();
+                return;
+            }
+            
+            try
+            {
+                current.queue.put(new Object[] { -1, END });
+                current.join();
+            }
+            catch (InterruptedException e)
+            {
+                // give up on the pending results
+                current.interrupt();
+                throw e;
+            }
+            
+            current.checkError();
+        }
+    }
+}
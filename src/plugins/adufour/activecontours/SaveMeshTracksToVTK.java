@@ -52,7 +52,7 @@ public class SaveMeshTracksToVTK extends Plugin implements Block
                 String timeID = "_T" + StringUtil.toString(detection.getT(), 3);
                 String fileName = prefix.getValue() + meshID + timeID + ".vtk";
                 File vtkFile = new File(folder.getValue(true).getPath() + File.separator + fileName);
-                ((Mesh3D) detection).mesh.saveToVTK(vtkFile);
+                ((Mesh3D) detection).getMesh().saveToVTK(vtkFile);
             }
         }
     }
@@ -0,0 +1,355 @@
+package plugins.adufour.activecontours;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import icy.system.thread.Processor;
+import plugins.fab.trackmanager.TrackSegment;
+import plugins.nchenouard.spot.Detection;
+
+/**
+ * Streaming loader for track groups saved by the track manager (e.g. the results of a tracking
+ * run). Unlike the standard loader, the file is never loaded into memory as a whole: it is parsed
+ * as a stream, and only the detections within the requested time range are materialised (as a small
+ * detached XML element each, from which the detection is then loaded). Detections are loaded in
+ * parallel (one task per track segment) while the rest of the file is being parsed.<br>
+ * Active contours ({@link Polygon2D} and {@link Mesh3D}) are created directly; other detection
+ * types are created by reflection from their class name.
+ * 
+ * @author Alexandre Dufour
+ */
+public class TrackGroupReader
+{
+    private static final String TRACK     = "track";
+    
+    private static final String DETECTION = "detection";
+    
+    private static final String LINK      = "link";
+    
+    private static final String ID        = "id";
+    
+    private static final String CLASSNAME = "classname";
+    
+    private static final String T         = "t";
+    
+    private static final String FROM      = "from";
+    
+    private static final String TO        = "to";
+    
+    /**
+     * Loads all the track segments of the specified file
+     * 
+     * @param file
+     * @param nbThreads
+     *            the number of threads used to load the detections
+     * @return the track segments (linked according to the file)
+     * @throws IOException
+     */
+    public static List<TrackSegment> read(File file, int nbThreads) throws IOException
+    {
+        return read(file, Integer.MIN_VALUE, Integer.MAX_VALUE, nbThreads);
+    }
+    
+    /**
+     * Loads the track segments of the specified file within the specified time range
+     * 
+     * @param file
+     * @param minT
+     *            the first time point to load
+     * @param maxT
+     *            the last time point to load
+     * @param nbThreads
+     *            the number of threads used to load the detections
+     * @return the track segments with at least one detection within the time range (restricted to
+     *         that range, and linked according to the file)
+     * @throws IOException
+     */
+    public static List<TrackSegment> read(File file, int minT, int maxT, int nbThreads) throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        
+        try
+        {
+            return read(in, minT, maxT, nbThreads);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * Loads the track segments of the specified stream within the specified time range
+     * 
+     * @param in
+     * @param minT
+     *            the first time point to load
+     * @param maxT
+     *            the last time point to load
+     * @param nbThreads
+     *            the number of threads used to load the detections
+     * @return the track segments with at least one detection within the time range (restricted to
+     *         that range, and linked according to the stream)
+     * @throws IOException
+     */
+    public static List<TrackSegment> read(InputStream in, int minT, int maxT, int nbThreads) throws IOException
+    {
+        Processor service = nbThreads > 1 ? new Processor(nbThreads) : null;
+        if (service != null) service.setThreadName("Track group reader");
+        
+        ArrayList<String> ids = new ArrayList<String>();
+        ArrayList<Future<TrackSegment>> tracks = new ArrayList<Future<TrackSegment>>();
+        ArrayList<String[]> links = new ArrayList<String[]>();
+        
+        try
+        {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            
+            String trackId = null;
+            Document trackDocument = null;
+            ArrayList<Element> detections = null;
+            
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    String name = reader.getLocalName();
+                    
+                    if (TRACK.equals(name))
+                    {
+                        trackId = reader.getAttributeValue(null, ID);
+                        // one document per track, such that tracks can be loaded concurrently
+                        trackDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+                        detections = new ArrayList<Element>();
+                    }
+                    else if (DETECTION.equals(name) && detections != null)
+                    {
+                        String t = reader.getAttributeValue(null, T);
+                        
+                        if (t != null && !isInRange(t, minT, maxT))
+                        {
+                            skipElement(reader);
+                        }
+                        else
+                        {
+                            detections.add(readElement(reader, trackDocument));
+                        }
+                    }
+                    else if (LINK.equals(name))
+                    {
+                        links.add(new String[] { reader.getAttributeValue(null, FROM), reader.getAttributeValue(null, TO) });
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT && TRACK.equals(reader.getLocalName()))
+                {
+                    if (!detections.isEmpty())
+                    {
+                        ids.add(trackId);
+                        
+                        if (service != null)
+                        {
+                            tracks.add(service.submit(createTrack(detections)));
+                        }
+                        else
+                        {
+                            FutureTask<TrackSegment> task = new FutureTask<TrackSegment>(createTrack(detections));
+                            task.run();
+                            tracks.add(task);
+                        }
+                    }
+                    
+                    detections = null;
+                    trackDocument = null;
+                }
+            }
+            
+            reader.close();
+            
+            // gather the tracks (in file order) and link them
+            
+            ArrayList<TrackSegment> segments = new ArrayList<TrackSegment>(tracks.size());
+            HashMap<String, TrackSegment> segmentsById = new HashMap<String, TrackSegment>();
+            
+            for (int i = 0; i < tracks.size(); i++)
+            {
+                TrackSegment segment = tracks.get(i).get();
+                
+                if (segment.getDetectionList().isEmpty()) continue;
+                
+                segments.add(segment);
+                if (ids.get(i) != null) segmentsById.put(ids.get(i), segment);
+            }
+            
+            for (String[] link : links)
+            {
+                TrackSegment from = segmentsById.get(link[0]);
+                TrackSegment to = segmentsById.get(link[1]);
+                
+                if (from != null && to != null) from.addNext(to);
+            }
+            
+            return segments;
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+        catch (ParserConfigurationException e)
+        {
+            throw new IOException(e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading tracks");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            if (service != null) service.shutdownNow();
+        }
+    }
+    
+    private static boolean isInRange(String t, int minT, int maxT)
+    {
+        try
+        {
+            int time = Integer.parseInt(t.trim());
+            return time >= minT && time <= maxT;
+        }
+        catch (NumberFormatException e)
+        {
+            // let the detection decide
+            return true;
+        }
+    }
+    
+    /**
+     * @return a task loading a track segment from the specified (detached) detection elements
+     */
+    private static Callable<TrackSegment> createTrack(final List<Element> detections)
+    {
+        return new Callable<TrackSegment>()
+        {
+            @Override
+            public TrackSegment call() throws Exception
+            {
+                TrackSegment segment = new TrackSegment();
+                
+                for (Element element : detections)
+                {
+                    Detection detection = createDetection(element.getAttribute(CLASSNAME));
+                    
+                    if (detection.loadFromXML(element))
+                    {
+                        segment.addDetection(detection);
+                    }
+                    else
+                    {
+                        System.err.println("Warning: couldn't load a detection of type " + detection.getClass().getSimpleName());
+                    }
+                }
+                
+                return segment;
+            }
+        };
+    }
+    
+    private static Detection createDetection(String className) throws Exception
+    {
+        if (Polygon2D.class.getName().equals(className)) return new Polygon2D();
+        if (Mesh3D.class.getName().equals(className)) return new Mesh3D();
+        if (className == null || className.isEmpty()) return new Detection(0, 0, 0, 0);
+        
+        return (Detection) Class.forName(className).newInstance();
+    }
+    
+    /**
+     * Reads the current element (and its content) into a detached element of the specified
+     * document. When this method returns, the reader is positioned on the end of the element
+     */
+    private static Element readElement(XMLStreamReader reader, Document document) throws XMLStreamException
+    {
+        Element root = createElement(reader, document);
+        Node current = root;
+        
+        while (current != null)
+        {
+            switch (reader.next())
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                {
+                    Element child = createElement(reader, document);
+                    current.appendChild(child);
+                    current = child;
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (!reader.isWhiteSpace()) current.appendChild(document.createTextNode(reader.getText()));
+                break;
+                case XMLStreamConstants.END_ELEMENT:
+                    current = current == root ? null : current.getParentNode();
+                break;
+                default:
+            }
+        }
+        
+        return root;
+    }
+    
+    private static Element createElement(XMLStreamReader reader, Document document)
+    {
+        Element element = document.createElement(reader.getLocalName());
+        
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+            element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        
+        return element;
+    }
+    
+    /**
+     * Skips the current element (and its content). When this method returns, the reader is
+     * positioned on the end of the element
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+    {
+        int depth = 1;
+        
+        while (depth > 0)
+        {
+            int event = reader.next();
+            
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+}
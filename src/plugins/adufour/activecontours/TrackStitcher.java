@@ -0,0 +1,202 @@
+package plugins.adufour.activecontours;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.vecmath.Point3d;
+
+import plugins.fab.trackmanager.TrackSegment;
+import plugins.nchenouard.spot.Detection;
+
+/**
+ * Utility class joining the tracks of consecutive time chunks (processed independently) into
+ * continuous tracks. Consecutive chunks overlap by a few frames: the overlapping frames are owned by
+ * the earlier chunk, and are only processed by the later chunk to let its (provisional) seeds
+ * converge. Tracks are then reconciled on the last overlapping frame, based on the overlap of the
+ * contours found by both chunks.
+ * 
+ * @author Alexandre Dufour
+ */
+public class TrackStitcher
+{
+    /**
+     * Minimum overlap (intersection over union of the bounding boxes) for two contours to be
+     * considered as the same object
+     */
+    private static final double MIN_OVERLAP = 0.25;
+    
+    /**
+     * Stitches the tracks of a time chunk to the tracks found so far
+     * 
+     * @param tracks
+     *            the tracks found so far (up to and including the frame preceding
+     *            <code>firstFrame</code>). Tracks continued by the chunk are extended in place
+     * @param chunkTracks
+     *            the tracks of the next chunk (with absolute time points), starting at or before
+     *            the frame preceding <code>firstFrame</code>
+     * @param firstFrame
+     *            the first frame owned by the next chunk
+     * @param keepNewObjects
+     *            <code>true</code> to keep the chunk tracks that match no existing track (i.e.
+     *            objects entering the field), <code>false</code> to discard them (unless they
+     *            result from the division of a matched track)
+     * @return the tracks of the chunk that do not continue an existing track, and should be added
+     *         as new tracks (possibly linked to an existing track in case of division)
+     */
+    public static List<TrackSegment> stitch(Collection<TrackSegment> tracks, Collection<TrackSegment> chunkTracks, int firstFrame, boolean keepNewObjects)
+    {
+        int matchingFrame = firstFrame - 1;
+        
+        // existing tracks => the chunk tracks they match with
+        Map<TrackSegment, List<TrackSegment>> matches = new LinkedHashMap<TrackSegment, List<TrackSegment>>();
+        List<TrackSegment> newTracks = new ArrayList<TrackSegment>();
+        List<TrackSegment> discardedTracks = new ArrayList<TrackSegment>();
+        
+        for (TrackSegment chunkTrack : chunkTracks)
+        {
+            Detection matchingDetection = chunkTrack.getDetectionAtTime(matchingFrame);
+            
+            // remove the detections on frames owned by the previous chunk
+            for (Detection detection : new ArrayList<Detection>(chunkTrack.getDetectionList()))
+                if (detection.getT() < firstFrame) chunkTrack.removeDetection(detection);
+            
+            if (chunkTrack.getDetectionList().isEmpty())
+            {
+                discardedTracks.add(chunkTrack);
+                continue;
+            }
+            
+            TrackSegment match = null;
+            
+            if (matchingDetection != null)
+            {
+                double bestOverlap = MIN_OVERLAP;
+                
+                for (TrackSegment track : tracks)
+                {
+                    Detection detection = track.getDetectionAtTime(matchingFrame);
+                    
+                    if (detection == null) continue;
+                    
+                    double overlap = getOverlap((ActiveContour) detection, (ActiveContour) matchingDetection);
+                    
+                    if (overlap >= bestOverlap)
+                    {
+                        bestOverlap = overlap;
+                        match = track;
+                    }
+                }
+            }
+            
+            if (match == null)
+            {
+                // the object appeared within the chunk (or could not be matched)
+                newTracks.add(chunkTrack);
+                continue;
+            }
+            
+            List<TrackSegment> matchList = matches.get(match);
+            if (matchList == null) matches.put(match, matchList = new ArrayList<TrackSegment>(1));
+            matchList.add(chunkTrack);
+        }
+        
+        if (!keepNewObjects)
+        {
+            // only keep the unmatched tracks descending from a matched track
+            Set<TrackSegment> descendants = new HashSet<TrackSegment>();
+            List<TrackSegment> queue = new ArrayList<TrackSegment>();
+            for (List<TrackSegment> chunkMatches : matches.values())
+                queue.addAll(chunkMatches);
+            
+            while (!queue.isEmpty())
+                for (TrackSegment next : queue.remove(queue.size() - 1).getNextList())
+                    if (descendants.add(next)) queue.add(next);
+            
+            for (int i = 0; i < newTracks.size(); i++)
+                if (!descendants.contains(newTracks.get(i))) discardedTracks.add(newTracks.remove(i--));
+        }
+        
+        // unlink the tracks that only existed on the overlapping frames (or were discarded)
+        for (TrackSegment discarded : discardedTracks)
+            for (TrackSegment next : new ArrayList<TrackSegment>(discarded.getNextList()))
+                discarded.removeNext(next);
+        
+        for (Map.Entry<TrackSegment, List<TrackSegment>> match : matches.entrySet())
+        {
+            TrackSegment track = match.getKey();
+            List<TrackSegment> chunkMatches = match.getValue();
+            
+            if (chunkMatches.size() == 1 && track.getNextList().isEmpty())
+            {
+                // same object => continue the existing track
+                TrackSegment chunkTrack = chunkMatches.get(0);
+                
+                for (Detection detection : chunkTrack.getDetectionList())
+                    track.addDetection(detection);
+                
+                for (TrackSegment next : new ArrayList<TrackSegment>(chunkTrack.getNextList()))
+                {
+                    chunkTrack.removeNext(next);
+                    track.addNext(next);
+                }
+            }
+            else
+            {
+                // the object has divided on the overlapping frames (or the existing track already
+                // ends with a division, and cannot be continued without breaking its links)
+                for (TrackSegment chunkTrack : chunkMatches)
+                {
+                    track.addNext(chunkTrack);
+                    newTracks.add(chunkTrack);
+                }
+            }
+        }
+        
+        return newTracks;
+    }
+    
+    /**
+     * @return the overlap of the bounding boxes of the specified contours, measured as the
+     *         intersection over union (flat dimensions, e.g. Z for 2D contours, only require the
+     *         boxes to be at the same position)
+     */
+    static double getOverlap(ActiveContour c1, ActiveContour c2)
+    {
+        Point3d min1 = new Point3d(), max1 = new Point3d();
+        Point3d min2 = new Point3d(), max2 = new Point3d();
+        
+        c1.boundingBox.getLower(min1);
+        c1.boundingBox.getUpper(max1);
+        c2.boundingBox.getLower(min2);
+        c2.boundingBox.getUpper(max2);
+        
+        double[] lo1 = { min1.x, min1.y, min1.z }, hi1 = { max1.x, max1.y, max1.z };
+        double[] lo2 = { min2.x, min2.y, min2.z }, hi2 = { max2.x, max2.y, max2.z };
+        
+        double intersection = 1, volume1 = 1, volume2 = 1;
+        
+        for (int i = 0; i < 3; i++)
+        {
+            double extent1 = hi1[i] - lo1[i], extent2 = hi2[i] - lo2[i];
+            
+            if (extent1 == 0 && extent2 == 0)
+            {
+                if (lo1[i] != lo2[i]) return 0;
+                continue;
+            }
+            
+            intersection *= Math.max(0, Math.min(hi1[i], hi2[i]) - Math.max(lo1[i], lo2[i]));
+            volume1 *= extent1;
+            volume2 *= extent2;
+        }
+        
+        double union = volume1 + volume2 - intersection;
+        
+        return union <= 0 ? 0 : intersection / union;
+    }
+}
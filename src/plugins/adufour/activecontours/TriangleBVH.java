@@ -0,0 +1,463 @@
+package plugins.adufour.activecontours;
+
+import java.util.Arrays;
+
+/**
+ * Bounding volume hierarchy (axis-aligned boxes) over the triangles of a {@link PackedMesh}, used
+ * to answer inside/outside and distance queries in logarithmic time. The hierarchy is built once
+ * for a given topology, and only needs to be refit (see {@link #refit()}) when the vertices move.
+ * Queries are read-only and can be issued concurrently (but not while refitting).
+ * 
+ * @author Alexandre Dufour
+ */
+final class TriangleBVH
+{
+    /**
+     * Maximum number of triangles per leaf
+     */
+    private static final int MAX_LEAF_SIZE = 4;
+    
+    /**
+     * Direction of the rays used for the inside/outside test (chosen so as to avoid grazing
+     * triangle edges in axis-aligned configurations)
+     */
+    private static final double RAY_X = 3 / Math.sqrt(14), RAY_Y = 2 / Math.sqrt(14), RAY_Z = 1 / Math.sqrt(14);
+    
+    /**
+     * Orthonormal basis of the plane orthogonal to the rays
+     */
+    private static final double[] RAY_U = { 1 / Math.sqrt(6), -2 / Math.sqrt(6), 1 / Math.sqrt(6) };
+    
+    private static final double[] RAY_V = { 2 / Math.sqrt(21), -1 / Math.sqrt(21), -4 / Math.sqrt(21) };
+    
+    private final double[] positions;
+    
+    private final int[]    triangles;
+    
+    /**
+     * Triangle indices, ordered such that each leaf covers a contiguous range
+     */
+    private final int[]    order;
+    
+    private int            nbNodes = 0;
+    
+    /**
+     * Bounds of each node (minX, minY, minZ, maxX, maxY, maxZ)
+     */
+    private final double[] bounds;
+    
+    /**
+     * First triangle of each leaf in {@link #order} (unused for inner nodes)
+     */
+    private final int[]    nodeStart;
+    
+    /**
+     * Number of triangles of each leaf (0 for inner nodes)
+     */
+    private final int[]    nodeCount;
+    
+    /**
+     * Children of each inner node (children are always created after their parent)
+     */
+    private final int[]    nodeLeft, nodeRight;
+    
+    /**
+     * Builds a hierarchy over the triangles of the specified mesh
+     * 
+     * @param mesh
+     */
+    TriangleBVH(PackedMesh mesh)
+    {
+        positions = mesh.positions;
+        triangles = mesh.triangles;
+        
+        int nbTriangles = mesh.getNumberOfTriangles();
+        
+        order = new int[nbTriangles];
+        for (int t = 0; t < nbTriangles; t++)
+            order[t] = t;
+        
+        int maxNodes = Math.max(1, 2 * nbTriangles);
+        bounds = new double[6 * maxNodes];
+        nodeStart = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        nodeLeft = new int[maxNodes];
+        nodeRight = new int[maxNodes];
+        
+        double[] centroids = new double[3 * nbTriangles];
+        for (int t = 0; t < nbTriangles; t++)
+            for (int d = 0; d < 3; d++)
+                centroids[3 * t + d] = (positions[3 * triangles[3 * t] + d] + positions[3 * triangles[3 * t + 1] + d] + positions[3 * triangles[3 * t + 2] + d]) / 3;
+        
+        build(0, nbTriangles, centroids);
+        
+        refit();
+    }
+    
+    private int build(int start, int end, double[] centroids)
+    {
+        int node = nbNodes++;
+        
+        if (end - start <= MAX_LEAF_SIZE)
+        {
+            nodeStart[node] = start;
+            nodeCount[node] = Math.max(1, end - start);
+            return node;
+        }
+        
+        // split along the largest extent of the triangle centroids
+        double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int k = start; k < end; k++)
+            for (int d = 0; d < 3; d++)
+            {
+                double c = centroids[3 * order[k] + d];
+                if (c < min[d]) min[d] = c;
+                if (c > max[d]) max[d] = c;
+            }
+        
+        int axis = 0;
+        for (int d = 1; d < 3; d++)
+            if (max[d] - min[d] > max[axis] - min[axis]) axis = d;
+        
+        double middle = (min[axis] + max[axis]) / 2;
+        
+        // partition the range around the middle of the extent
+        int split = start;
+        for (int k = start; k < end; k++)
+            if (centroids[3 * order[k] + axis] < middle)
+            {
+                int tmp = order[k];
+                order[k] = order[split];
+                order[split++] = tmp;
+            }
+        
+        // degenerate case (all centroids on the same side): split by count
+        if (split == start || split == end) split = (start + end) / 2;
+        
+        nodeCount[node] = 0;
+        nodeLeft[node] = build(start, split, centroids);
+        nodeRight[node] = build(split, end, centroids);
+        
+        return node;
+    }
+    
+    /**
+     * Updates the node bounds after the vertices have moved (the tree structure is kept as is)
+     */
+    void refit()
+    {
+        // children have larger indices than their parent => process the nodes backwards
+        for (int node = nbNodes - 1; node >= 0; node--)
+        {
+            int b = 6 * node;
+            
+            if (nodeCount[node] > 0)
+            {
+                bounds[b] = bounds[b + 1] = bounds[b + 2] = Double.MAX_VALUE;
+                bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = -Double.MAX_VALUE;
+                
+                int end = Math.min(order.length, nodeStart[node] + nodeCount[node]);
+                
+                for (int k = nodeStart[node]; k < end; k++)
+                    for (int v = 0; v < 3; v++)
+                    {
+                        int p = 3 * triangles[3 * order[k] + v];
+                        for (int d = 0; d < 3; d++)
+                        {
+                            if (positions[p + d] < bounds[b + d]) bounds[b + d] = positions[p + d];
+                            if (positions[p + d] > bounds[b + 3 + d]) bounds[b + 3 + d] = positions[p + d];
+                        }
+                    }
+            }
+            else
+            {
+                int l = 6 * nodeLeft[node], r = 6 * nodeRight[node];
+                for (int d = 0; d < 3; d++)
+                {
+                    bounds[b + d] = Math.min(bounds[l + d], bounds[r + d]);
+                    bounds[b + 3 + d] = Math.max(bounds[l + 3 + d], bounds[r + 3 + d]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return <code>true</code> if the specified point lies within the bounding box of the mesh
+     */
+    boolean boundsContain(double x, double y, double z)
+    {
+        if (order.length == 0) return false;
+        
+        return x >= bounds[0] && y >= bounds[1] && z >= bounds[2] && x <= bounds[3] && y <= bounds[4] && z <= bounds[5];
+    }
+    
+    /**
+     * @return <code>true</code> if the specified point lies inside the (closed) mesh, using the
+     *         parity of the number of intersections between the mesh and a ray cast from the point
+     */
+    boolean contains(double x, double y, double z)
+    {
+        if (!boundsContain(x, y, z)) return false;
+        
+        int crossings = 0;
+        
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        
+        while (top > 0)
+        {
+            int node = stack[--top];
+            
+            if (!rayHitsBox(node, x, y, z)) continue;
+            
+            if (nodeCount[node] > 0)
+            {
+                int end = Math.min(order.length, nodeStart[node] + nodeCount[node]);
+                
+                for (int k = nodeStart[node]; k < end; k++)
+                    if (rayHitsTriangle(order[k], x, y, z)) crossings++;
+            }
+            else
+            {
+                if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                stack[top++] = nodeLeft[node];
+                stack[top++] = nodeRight[node];
+            }
+        }
+        
+        return (crossings & 1) == 1;
+    }
+    
+    /**
+     * @return the squared distance from the specified point to the closest triangle of the mesh
+     */
+    double getDistanceSq(double x, double y, double z)
+    {
+        double best = Double.MAX_VALUE;
+        
+        if (order.length == 0) return best;
+        
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        
+        while (top > 0)
+        {
+            int node = stack[--top];
+            
+            if (boxDistanceSq(node, x, y, z) >= best) continue;
+            
+            if (nodeCount[node] > 0)
+            {
+                int end = Math.min(order.length, nodeStart[node] + nodeCount[node]);
+                
+                for (int k = nodeStart[node]; k < end; k++)
+                {
+                    double d = triangleDistanceSq(order[k], x, y, z);
+                    if (d < best) best = d;
+                }
+            }
+            else
+            {
+                if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                
+                // visit the closest child first (it is popped first)
+                int left = nodeLeft[node], right = nodeRight[node];
+                if (boxDistanceSq(left, x, y, z) < boxDistanceSq(right, x, y, z))
+                {
+                    stack[top++] = right;
+                    stack[top++] = left;
+                }
+                else
+                {
+                    stack[top++] = left;
+                    stack[top++] = right;
+                }
+            }
+        }
+        
+        return best;
+    }
+    
+    private double boxDistanceSq(int node, double x, double y, double z)
+    {
+        int b = 6 * node;
+        double dx = Math.max(0, Math.max(bounds[b] - x, x - bounds[b + 3]));
+        double dy = Math.max(0, Math.max(bounds[b + 1] - y, y - bounds[b + 4]));
+        double dz = Math.max(0, Math.max(bounds[b + 2] - z, z - bounds[b + 5]));
+        return dx * dx + dy * dy + dz * dz;
+    }
+    
+    private boolean rayHitsBox(int node, double x, double y, double z)
+    {
+        int b = 6 * node;
+        
+        // slab test (all ray components are strictly positive)
+        double tMin = Math.max(Math.max((bounds[b] - x) / RAY_X, (bounds[b + 1] - y) / RAY_Y), (bounds[b + 2] - z) / RAY_Z);
+        double tMax = Math.min(Math.min((bounds[b + 3] - x) / RAY_X, (bounds[b + 4] - y) / RAY_Y), (bounds[b + 5] - z) / RAY_Z);
+        
+        // tolerate rounding errors, such that a ray passing exactly through an edge or vertex lying
+        // on the box boundary still reaches the triangle owning it (see rayHitsTriangle)
+        double tolerance = 1e-9 * (Math.abs(tMin) + Math.abs(tMax));
+        
+        return tMax + tolerance >= Math.max(0, tMin);
+    }
+    
+    /**
+     * Ray/triangle intersection test (two-sided). The triangle is projected onto the plane
+     * orthogonal to the ray (along {@link #RAY_U} and {@link #RAY_V}), where the ray becomes the
+     * origin, and the origin is tested against each edge. The test of an edge only depends on its
+     * two vertices (it is exactly opposite for both triangles sharing it), and rays passing exactly
+     * through an edge or vertex are assigned to a single triangle with a top-left rule, such that
+     * such rays are never counted twice (or missed)
+     */
+    private boolean rayHitsTriangle(int t, double x, double y, double z)
+    {
+        int a = 3 * triangles[3 * t], b = 3 * triangles[3 * t + 1], c = 3 * triangles[3 * t + 2];
+        
+        // project the vertices (relative to the ray origin)
+        double ax = positions[a] - x, ay = positions[a + 1] - y, az = positions[a + 2] - z;
+        double bx = positions[b] - x, by = positions[b + 1] - y, bz = positions[b + 2] - z;
+        double cx = positions[c] - x, cy = positions[c + 1] - y, cz = positions[c + 2] - z;
+        
+        double au = ax * RAY_U[0] + ay * RAY_U[1] + az * RAY_U[2], av = ax * RAY_V[0] + ay * RAY_V[1] + az * RAY_V[2];
+        double bu = bx * RAY_U[0] + by * RAY_U[1] + bz * RAY_U[2], bv = bx * RAY_V[0] + by * RAY_V[1] + bz * RAY_V[2];
+        double cu = cx * RAY_U[0] + cy * RAY_U[1] + cz * RAY_U[2], cv = cx * RAY_V[0] + cy * RAY_V[1] + cz * RAY_V[2];
+        
+        // edge functions (twice the signed area of the origin with each edge)
+        double ab = au * bv - av * bu;
+        double bc = bu * cv - bv * cu;
+        double ca = cu * av - cv * au;
+        
+        double area = ab + bc + ca;
+        
+        // the triangle is parallel to the ray
+        if (area == 0) return false;
+        
+        // orient the triangle counter-clockwise (in the projection plane)
+        double sign = area > 0 ? 1 : -1;
+        
+        if (!isInside(sign * ab, sign * (bu - au), sign * (bv - av))) return false;
+        if (!isInside(sign * bc, sign * (cu - bu), sign * (cv - bv))) return false;
+        if (!isInside(sign * ca, sign * (au - cu), sign * (av - cv))) return false;
+        
+        // distance along the ray (interpolated from the barycentric coordinates of the origin)
+        double distance = (bc * (ax * RAY_X + ay * RAY_Y + az * RAY_Z) + ca * (bx * RAY_X + by * RAY_Y + bz * RAY_Z) + ab * (cx * RAY_X + cy * RAY_Y + cz * RAY_Z)) / area;
+        
+        return distance > 0;
+    }
+    
+    /**
+     * Top-left rule: the origin lies inside an edge if it lies strictly on its left, or exactly on
+     * it if the edge points upwards (or exactly rightwards). Since the same edge is traversed in
+     * opposite directions by its two triangles, exactly one of them owns it
+     * 
+     * @param edge
+     *            the edge function at the origin
+     * @param du
+     *            the direction of the edge along U
+     * @param dv
+     *            the direction of the edge along V
+     */
+    private static boolean isInside(double edge, double du, double dv)
+    {
+        if (edge != 0) return edge > 0;
+        
+        return dv > 0 || (dv == 0 && du > 0);
+    }
+    
+    /**
+     * @return the squared distance between the specified point and triangle (see C. Ericson,
+     *         Real-Time Collision Detection, section 5.1.5)
+     */
+    private double triangleDistanceSq(int t, double x, double y, double z)
+    {
+        int ia = 3 * triangles[3 * t], ib = 3 * triangles[3 * t + 1], ic = 3 * triangles[3 * t + 2];
+        
+        double ax = positions[ia], ay = positions[ia + 1], az = positions[ia + 2];
+        double abx = positions[ib] - ax, aby = positions[ib + 1] - ay, abz = positions[ib + 2] - az;
+        double acx = positions[ic] - ax, acy = positions[ic + 1] - ay, acz = positions[ic + 2] - az;
+        double apx = x - ax, apy = y - ay, apz = z - az;
+        
+        double cx, cy, cz; // closest point
+        
+        double d1 = abx * apx + aby * apy + abz * apz;
+        double d2 = acx * apx + acy * apy + acz * apz;
+        
+        if (d1 <= 0 && d2 <= 0)
+        {
+            // vertex region A
+            cx = ax;
+            cy = ay;
+            cz = az;
+        }
+        else
+        {
+            double bpx = apx - abx, bpy = apy - aby, bpz = apz - abz;
+            double d3 = abx * bpx + aby * bpy + abz * bpz;
+            double d4 = acx * bpx + acy * bpy + acz * bpz;
+            
+            double cpx = apx - acx, cpy = apy - acy, cpz = apz - acz;
+            double d5 = abx * cpx + aby * cpy + abz * cpz;
+            double d6 = acx * cpx + acy * cpy + acz * cpz;
+            
+            double vc = d1 * d4 - d3 * d2;
+            double vb = d5 * d2 - d1 * d6;
+            double va = d3 * d6 - d5 * d4;
+            
+            if (d3 >= 0 && d4 <= d3)
+            {
+                // vertex region B
+                cx = ax + abx;
+                cy = ay + aby;
+                cz = az + abz;
+            }
+            else if (d6 >= 0 && d5 <= d6)
+            {
+                // vertex region C
+                cx = ax + acx;
+                cy = ay + acy;
+                cz = az + acz;
+            }
+            else if (vc <= 0 && d1 >= 0 && d3 <= 0)
+            {
+                // edge region AB
+                double v = d1 / (d1 - d3);
+                cx = ax + v * abx;
+                cy = ay + v * aby;
+                cz = az + v * abz;
+            }
+            else if (vb <= 0 && d2 >= 0 && d6 <= 0)
+            {
+                // edge region AC
+                double w = d2 / (d2 - d6);
+                cx = ax + w * acx;
+                cy = ay + w * acy;
+                cz = az + w * acz;
+            }
+            else if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0)
+            {
+                // edge region BC
+                double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+                cx = ax + abx + w * (acx - abx);
+                cy = ay + aby + w * (acy - aby);
+                cz = az + abz + w * (acz - abz);
+            }
+            else
+            {
+                // face region
+                double denom = 1 / (va + vb + vc);
+                double v = vb * denom;
+                double w = vc * denom;
+                cx = ax + v * abx + w * acx;
+                cy = ay + v * aby + w * acy;
+                cz = az + v * abz + w * acz;
+            }
+        }
+        
+        double dx = x - cx, dy = y - cy, dz = z - cz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+}